@@ -0,0 +1,284 @@
+import logging
+import threading
+import time
+from dataclasses import dataclass
+from typing import Any, Callable, Dict, Optional, Tuple
+
+import statsd
+from django.conf import settings
+from django.db import connection, transaction
+from django.utils import timezone
+from sentry_sdk.api import capture_exception
+
+from ee.clickhouse.client import run_concurrently, sync_execute
+from ee.clickhouse.sql.backfill import (
+    BACKFILL_CHUNK_FILTER,
+    BACKFILL_CHUNK_TEAM_FILTER,
+    CLEAR_BACKFILL_CHUNK_SQL,
+    GET_BACKFILL_CHUNKS_SQL,
+    GET_TABLE_MERGE_PRESSURE_SQL,
+)
+from ee.clickhouse.sql.clickhouse import data_table, on_cluster
+from ee.clickhouse.sql.events import EVENTS_TABLE
+from ee.models.backfill import BackfillChunk
+from posthog.constants import QueryProfile
+
+logger = logging.getLogger(__name__)
+
+DEFAULT_CONCURRENCY = 2
+# Well below ClickHouse's own limits (see GET_TABLE_MERGE_PRESSURE_SQL), so that ingestion into the same table is
+# never slowed down by a backfill
+DEFAULT_MAX_MERGES = 8
+DEFAULT_MAX_PARTS_PER_PARTITION = 100
+THROTTLE_POLL_INTERVAL_SECONDS = 5
+
+
+@dataclass
+class Backfill:
+    """
+    A rewrite of the data of `table` (e.g. into a table with a new sort key, or of a new column), run in chunks: one
+    per partition of `table`, and per team within it if `by_team`. `sql` is run once for each chunk and restricts
+    itself to it with a `{chunk_filter}` placeholder, for example
+    `INSERT INTO events_new SELECT * FROM events WHERE {chunk_filter}`. Literal % signs in it must be doubled.
+    Inserts are held back while `target_table` (`table` by default) has too many merges or parts to go through.
+    When `target_table` is another table, chunks left half done by a crash or a failure are deleted from it before
+    they're run again. Queries rewriting `table` in place must be safe to run twice themselves. `settings` go with
+    every chunk's query, e.g. mutations_sync for mutations.
+    """
+
+    name: str
+    sql: str
+    table: str = EVENTS_TABLE
+    target_table: Optional[str] = None
+    partition_expression: str = "toYYYYMM(timestamp)"
+    by_team: bool = True
+    settings: Optional[Dict[str, Any]] = None
+
+
+class BackfillAlreadyRunning(Exception):
+    pass
+
+
+class BackfillProgress:
+    def __init__(self, backfill: Backfill, log: Callable[[str], None]):
+        self.backfill = backfill
+        self.log = log
+        self.start_time = time.monotonic()
+        self.chunks_total = BackfillChunk.objects.filter(backfill=backfill.name).count()
+        self.chunks_done = BackfillChunk.objects.filter(
+            backfill=backfill.name, status=BackfillChunk.Status.DONE
+        ).count()
+        self.chunks_failed = 0
+        self.rows = 0
+        self._lock = threading.Lock()
+
+    @property
+    def rows_per_second(self) -> float:
+        return self.rows / max(time.monotonic() - self.start_time, 0.001)
+
+    def chunk_done(self, chunk: BackfillChunk, seconds: float) -> None:
+        with self._lock:
+            self.chunks_done += 1
+            self.rows += chunk.rows
+            self.log(
+                "{} {}: {} rows in {:.1f}s ({:.0f} rows/s). {}/{} chunks done, {:.0f} rows/s overall".format(
+                    self.backfill.name,
+                    _chunk_name(chunk),
+                    chunk.rows,
+                    seconds,
+                    chunk.rows / max(seconds, 0.001),
+                    self.chunks_done,
+                    self.chunks_total,
+                    self.rows_per_second,
+                )
+            )
+            gauge = statsd.Gauge("%s_clickhouse_backfill" % (settings.STATSD_PREFIX,))
+            gauge.send("{}.rows_per_second".format(self.backfill.name), self.rows_per_second)
+            gauge.send("{}.chunks_remaining".format(self.backfill.name), self.chunks_total - self.chunks_done)
+
+    def chunk_failed(self, chunk: BackfillChunk, err: Exception) -> None:
+        with self._lock:
+            self.chunks_failed += 1
+            self.log("{} {} failed: {}".format(self.backfill.name, _chunk_name(chunk), err))
+
+
+def run_backfill(
+    backfill: Backfill,
+    concurrency: int = DEFAULT_CONCURRENCY,
+    max_merges: int = DEFAULT_MAX_MERGES,
+    max_parts_per_partition: int = DEFAULT_MAX_PARTS_PER_PARTITION,
+    log: Callable[[str], None] = logger.info,
+) -> BackfillProgress:
+    """
+    Runs the chunks of `backfill` that aren't done yet, up to `concurrency` of them at a time. Progress is kept in
+    BackfillChunk, so running it again after a crash (or after chunks failed) carries on where it stopped. Raises
+    BackfillAlreadyRunning if another run of the backfill is going.
+    """
+    with connection.cursor() as cursor:
+        cursor.execute("SELECT pg_try_advisory_lock(hashtext(%s))", [_lock_name(backfill.name)])
+        if not cursor.fetchone()[0]:
+            raise BackfillAlreadyRunning("Backfill {} is already running".format(backfill.name))
+    try:
+        return _run_backfill(backfill, concurrency, max_merges, max_parts_per_partition, log)
+    finally:
+        with connection.cursor() as cursor:
+            cursor.execute("SELECT pg_advisory_unlock(hashtext(%s))", [_lock_name(backfill.name)])
+
+
+def _run_backfill(
+    backfill: Backfill,
+    concurrency: int,
+    max_merges: int,
+    max_parts_per_partition: int,
+    log: Callable[[str], None],
+) -> BackfillProgress:
+    _list_chunks(backfill)
+    # Left running by a run that crashed, or failed: either way they need to be run again, from scratch
+    for chunk in BackfillChunk.objects.filter(
+        backfill=backfill.name, status__in=[BackfillChunk.Status.RUNNING, BackfillChunk.Status.FAILED]
+    ):
+        _clear_chunk(backfill, chunk)
+        chunk.status = BackfillChunk.Status.PENDING
+        chunk.save(update_fields=["status"])
+
+    progress = BackfillProgress(backfill, log)
+    log(
+        "{}: {} of {} chunks left to run".format(
+            backfill.name, progress.chunks_total - progress.chunks_done, progress.chunks_total
+        )
+    )
+
+    def work() -> None:
+        try:
+            while True:
+                chunk = _claim_next_chunk(backfill.name)
+                if chunk is None:
+                    return
+                _wait_for_merges(backfill.target_table or backfill.table, max_merges, max_parts_per_partition)
+                _run_chunk(backfill, chunk, progress)
+        finally:
+            if concurrency > 1:
+                # Each worker thread has its own Postgres connection
+                connection.close()
+
+    run_concurrently([work] * concurrency, concurrency)
+    return progress
+
+
+def get_backfill_status(name: str) -> Dict[str, int]:
+    """
+    Number of chunks of the backfill by status.
+    """
+    counts = {status: 0 for status in BackfillChunk.Status.values}
+    for status in BackfillChunk.objects.filter(backfill=name).values_list("status", flat=True):
+        counts[status] += 1
+    return counts
+
+
+def _lock_name(name: str) -> str:
+    return "clickhouse_backfill:" + name
+
+
+def _list_chunks(backfill: Backfill) -> None:
+    # Chunks are listed once, so that rows ingested while the backfill runs don't add more chunks
+    if BackfillChunk.objects.filter(backfill=backfill.name).exists():
+        return
+    rows = sync_execute(
+        GET_BACKFILL_CHUNKS_SQL.format(
+            partition_expression=backfill.partition_expression,
+            team_id="team_id" if backfill.by_team else "0",
+            table=backfill.table,
+        ),
+        profile=QueryProfile.BACKGROUND_TASK,
+    )
+    BackfillChunk.objects.bulk_create(
+        [
+            BackfillChunk(
+                backfill=backfill.name,
+                partition=partition,
+                team_id=team_id if backfill.by_team else None,
+                rows=row_count,
+            )
+            for partition, team_id, row_count in rows
+        ]
+    )
+
+
+def _claim_next_chunk(name: str) -> Optional[BackfillChunk]:
+    with transaction.atomic():
+        chunk = (
+            BackfillChunk.objects.select_for_update(skip_locked=True)
+            .filter(backfill=name, status=BackfillChunk.Status.PENDING)
+            .order_by("id")
+            .first()
+        )
+        if chunk is not None:
+            chunk.status = BackfillChunk.Status.RUNNING
+            chunk.started_at = timezone.now()
+            chunk.save(update_fields=["status", "started_at"])
+    return chunk
+
+
+def _wait_for_merges(table: str, max_merges: int, max_parts_per_partition: int) -> None:
+    while True:
+        merges, parts = sync_execute(
+            GET_TABLE_MERGE_PRESSURE_SQL, {"table": data_table(table)}, profile=QueryProfile.BACKGROUND_TASK
+        )[0]
+        if merges <= max_merges and (parts or 0) <= max_parts_per_partition:
+            return
+        time.sleep(THROTTLE_POLL_INTERVAL_SECONDS)
+
+
+def _chunk_filter(backfill: Backfill, chunk: BackfillChunk) -> Tuple[str, Dict[str, object]]:
+    chunk_filter = BACKFILL_CHUNK_FILTER.format(partition_expression=backfill.partition_expression)
+    params: Dict[str, object] = {"partition": chunk.partition}
+    if chunk.team_id is not None:
+        chunk_filter += BACKFILL_CHUNK_TEAM_FILTER
+        params["team_id"] = chunk.team_id
+    return chunk_filter, params
+
+
+def _clear_chunk(backfill: Backfill, chunk: BackfillChunk) -> None:
+    if backfill.target_table is None or backfill.target_table == backfill.table:
+        return
+    chunk_filter, params = _chunk_filter(backfill, chunk)
+    sync_execute(
+        CLEAR_BACKFILL_CHUNK_SQL.format(
+            table=data_table(backfill.target_table), on_cluster=on_cluster(), chunk_filter=chunk_filter
+        ),
+        params,
+        settings={"mutations_sync": 1},
+        profile=QueryProfile.BACKGROUND_TASK,
+    )
+
+
+def _run_chunk(backfill: Backfill, chunk: BackfillChunk, progress: BackfillProgress) -> None:
+    chunk_filter, params = _chunk_filter(backfill, chunk)
+    start_time = time.monotonic()
+    try:
+        # Not str.format, so that the query can contain braces of its own
+        sync_execute(
+            backfill.sql.replace("{chunk_filter}", chunk_filter),
+            params,
+            settings=backfill.settings,
+            profile=QueryProfile.BACKGROUND_TASK,
+        )
+    except Exception as err:
+        capture_exception(err)
+        chunk.status = BackfillChunk.Status.FAILED
+        chunk.error = str(err)
+        chunk.save(update_fields=["status", "error"])
+        progress.chunk_failed(chunk, err)
+        return
+
+    chunk.status = BackfillChunk.Status.DONE
+    chunk.error = None
+    chunk.finished_at = timezone.now()
+    chunk.save(update_fields=["status", "error", "finished_at"])
+    progress.chunk_done(chunk, time.monotonic() - start_time)
+
+
+def _chunk_name(chunk: BackfillChunk) -> str:
+    if chunk.team_id is None:
+        return "partition {}".format(chunk.partition)
+    return "partition {} team {}".format(chunk.partition, chunk.team_id)
@@ -1,8 +1,14 @@
 import asyncio
+import contextvars
+import datetime
+import decimal
 import hashlib
 import json
-from time import time
-from typing import Any, Dict, List, Tuple
+import uuid
+import zlib
+from concurrent.futures import ThreadPoolExecutor
+from time import sleep, time
+from typing import Any, Callable, Dict, List, Optional, Tuple
 
 import sqlparse
 import statsd
@@ -16,14 +22,27 @@ from django.utils.timezone import now
 from sentry_sdk.api import capture_exception
 
 from posthog import redis
-from posthog.constants import RDBMS
+from posthog.constants import (
+    INSIGHT_FUNNELS,
+    INSIGHT_LIFECYCLE,
+    INSIGHT_PATHS,
+    INSIGHT_RETENTION,
+    INSIGHT_SESSIONS,
+    INSIGHT_STICKINESS,
+    INSIGHT_TRENDS,
+    RDBMS,
+    QueryProfile,
+)
 from posthog.settings import (
     CLICKHOUSE_ASYNC,
     CLICKHOUSE_CA,
     CLICKHOUSE_DATABASE,
     CLICKHOUSE_HOST,
+    CLICKHOUSE_INTERACTIVE_MAX_EXECUTION_TIME,
     CLICKHOUSE_PASSWORD,
     CLICKHOUSE_SECURE,
+    CLICKHOUSE_SHARDED,
+    CLICKHOUSE_SHARDING_KEY,
     CLICKHOUSE_USER,
     CLICKHOUSE_VERIFY,
     PRIMARY_DB,
@@ -32,12 +51,83 @@ from posthog.settings import (
     STATSD_PREFIX,
     TEST,
 )
-from posthog.utils import get_safe_cache
+from posthog.utils import get_query_profile, get_query_tags, get_safe_cache
 
 if STATSD_HOST is not None:
     statsd.Connection.set_defaults(host=STATSD_HOST, port=STATSD_PORT)
 
 CACHE_TTL = 60  # seconds
+# Heavier insights are cached for longer, as recomputing them is costlier and they're refreshed less often anyway
+CACHE_TTL_BY_INSIGHT = {
+    INSIGHT_TRENDS: 60,
+    INSIGHT_STICKINESS: 60,
+    INSIGHT_SESSIONS: 60,
+    INSIGHT_LIFECYCLE: 120,
+    INSIGHT_FUNNELS: 300,
+    INSIGHT_PATHS: 300,
+    INSIGHT_RETENTION: 300,
+}
+# How long a query may run while other workers wait for its result instead of running it themselves
+CACHE_LOCK_TIMEOUT = 60  # seconds
+CACHE_LOCK_POLL_INTERVAL = 0.1  # seconds
+# Deletes the lock only if it still holds the token of the worker releasing it. It may have expired and been taken by
+# another worker in the meantime, if the query ran for longer than CACHE_LOCK_TIMEOUT.
+RELEASE_CACHE_LOCK_SCRIPT = """
+if redis.call("get", KEYS[1]) == ARGV[1] then
+    return redis.call("del", KEYS[1])
+end
+return 0
+"""
+# Serialized results bigger than this are compressed
+CACHE_COMPRESSION_THRESHOLD = 16 * 1024  # bytes
+# Bumped whenever the encoding of cached results changes, so that workers running different versions during a deploy
+# don't read each other's entries
+CACHE_KEY_PREFIX = b"clickhouse_query_v2_"
+
+# ClickHouse settings by query profile. Interactive queries get the most threads and the highest priority (lowest
+# value), so that dashboard refreshes and background tasks don't starve what users are waiting on. Interactive queries
+# aren't time limited unless CLICKHOUSE_INTERACTIVE_MAX_EXECUTION_TIME is set.
+QUERY_PROFILE_SETTINGS: Dict[QueryProfile, Dict[str, int]] = {
+    QueryProfile.INTERACTIVE: {
+        "max_threads": 32,
+        "max_execution_time": CLICKHOUSE_INTERACTIVE_MAX_EXECUTION_TIME,
+        "max_memory_usage": 10 * 1024 ** 3,
+        "priority": 1,
+    },
+    QueryProfile.DASHBOARD_REFRESH: {
+        "max_threads": 16,
+        "max_execution_time": 600,
+        "max_memory_usage": 10 * 1024 ** 3,
+        "priority": 5,
+    },
+    QueryProfile.EXPORT: {
+        "max_threads": 8,
+        "max_execution_time": 600,
+        "max_memory_usage": 10 * 1024 ** 3,
+        "priority": 5,
+    },
+    QueryProfile.BACKGROUND_TASK: {
+        "max_threads": 8,
+        "max_execution_time": 1800,
+        "max_memory_usage": 20 * 1024 ** 3,
+        "priority": 10,
+    },
+}
+
+# Applied to every query when sharded, see CLICKHOUSE_SHARDED. Queries filter on team_id, so with team_id sharding only
+# the team's shard is read, and joins between the (Distributed) tables are run on each shard against its local tables,
+# as a team's persons and events are on the same shard. With distinct_id sharding persons are elsewhere, joins then
+# ship the right-hand side to every shard instead. Aggregations grouped by the sharding key are finished on the shards
+# (as with distributed_group_by_no_merge), as no group can span two of them.
+SHARDED_QUERY_SETTINGS: Dict[str, Any] = (
+    {
+        "optimize_skip_unused_shards": 1,
+        "optimize_distributed_group_by_sharding_key": 1,
+        "distributed_product_mode": "local" if CLICKHOUSE_SHARDING_KEY == "team_id" else "global",
+    }
+    if CLICKHOUSE_SHARDED
+    else {}
+)
 
 _save_query_user_id = False
 
@@ -47,10 +137,13 @@ if PRIMARY_DB != RDBMS.CLICKHOUSE:
     def async_execute(query, args=None, settings=None):
         return
 
-    def sync_execute(query, args=None, settings=None):
+    def sync_execute(query, args=None, settings=None, profile=None):
         return
 
-    def cache_sync_execute(query, args=None, redis_client=None, ttl=None, settings=None):
+    def cache_sync_execute(query, args=None, redis_client=None, ttl=None, settings=None, insight=None, profile=None):
+        return
+
+    def stream_execute(query, args=None, settings=None, profile=QueryProfile.EXPORT):
         return
 
 
@@ -111,29 +204,68 @@ else:
         def async_execute(query, args=None, settings=None):
             return sync_execute(query, args, settings=settings)
 
-    def cache_sync_execute(query, args=None, redis_client=None, ttl=CACHE_TTL, settings=None):
+    def cache_sync_execute(query, args=None, redis_client=None, ttl=None, settings=None, profile=None):
+        """
+        Runs the query, caching its result in Redis for `ttl` seconds (by default depending on the insight the
+        surrounding tag_queries block is for). Concurrent cache misses for the same query are single-flighted: one
+        worker runs the query while the others wait for its result, for up to CACHE_LOCK_TIMEOUT.
+        """
         if not redis_client:
             redis_client = redis.get_client()
+        if ttl is None:
+            ttl = CACHE_TTL_BY_INSIGHT.get(get_query_tags().get("insight"), CACHE_TTL)
         key = _key_hash(query, args)
-        if redis_client.exists(key):
-            result = _deserialize(redis_client.get(key))
-            return result
-        else:
-            result = sync_execute(query, args, settings=settings)
-            redis_client.set(key, _serialize(result), ex=ttl)
+        lock_key = key + b"_lock"
+
+        result = _get_cached_result(redis_client, key)
+        if result is not None:
             return result
 
-    def sync_execute(query, args=None, settings=None):
+        token = uuid.uuid4().hex
+        deadline = time() + CACHE_LOCK_TIMEOUT
+        while True:
+            acquired = bool(redis_client.set(lock_key, token, nx=True, ex=CACHE_LOCK_TIMEOUT))
+            if acquired:
+                break
+            # Another worker is running the query, wait for it
+            sleep(CACHE_LOCK_POLL_INTERVAL)
+            result = _get_cached_result(redis_client, key)
+            if result is not None:
+                return result
+            if time() > deadline:
+                # The worker holding the lock takes too long (or died), don't wait on it any longer
+                break
+
+        try:
+            statsd.Counter("%s_clickhouse_query_cache_miss" % (STATSD_PREFIX,)).increment()
+            result = sync_execute(query, args, settings=settings, profile=profile)
+            serialized = _serialize(result)
+            statsd.Gauge("%s_clickhouse_query_cache" % (STATSD_PREFIX,)).send("result_bytes", len(serialized))
+            redis_client.set(key, serialized, ex=ttl)
+        finally:
+            if acquired:
+                redis_client.eval(RELEASE_CACHE_LOCK_SCRIPT, 1, lock_key, token)
+        return result
+
+    def sync_execute(query, args=None, settings=None, profile=None):
+        """
+        Runs the query with the settings of `profile`, by default the profile of the surrounding query_profile block.
+        Explicitly passed `settings` take precedence over the profile's.
+        """
+        profile = QueryProfile(profile or get_query_profile())
+        tags = get_query_tags()
         with ch_pool.get_client() as client:
             start_time = time()
-            settings = settings or {}
-            settings["max_threads"] = 48  # :TODO: Nuke this, update configuration
             try:
-                result = client.execute(query, args, settings=settings)
+                result = client.execute(
+                    query, args, settings=_settings_for(profile, settings, tags), query_id=_query_id(tags)
+                )
             finally:
                 execution_time = time() - start_time
                 g = statsd.Gauge("%s_clickhouse_sync_execution_time" % (STATSD_PREFIX,))
                 g.send("clickhouse_sync_query_time", execution_time)
+                statsd.Timer("%s_clickhouse_query_time" % (STATSD_PREFIX,)).send(profile.value, execution_time)
+                _report_tagged_query(client, tags, execution_time)
                 if app_settings.SHELL_PLUS_PRINT_SQL:
                     print(format_sql(query, args))
                     print("Execution time: %.6fs" % (execution_time,))
@@ -141,20 +273,145 @@ else:
                     save_query(query, args, execution_time)
         return result
 
+    def stream_execute(query, args=None, settings=None, profile=QueryProfile.EXPORT):
+        """
+        Like sync_execute, but yields rows as ClickHouse sends them instead of loading the whole result in memory.
+        The pooled connection is held until the generator is exhausted or closed.
+        """
+        tags = get_query_tags()
+        with ch_pool.get_client() as client:
+            start_time = time()
+            exhausted = False
+            try:
+                yield from client.execute_iter(
+                    query, args, settings=_settings_for(profile, settings, tags), query_id=_query_id(tags)
+                )
+                exhausted = True
+            finally:
+                if not exhausted:
+                    # The rest of the result is still on the wire, don't hand that connection back to the pool as is
+                    client.disconnect()
+                execution_time = time() - start_time
+                g = statsd.Gauge("%s_clickhouse_stream_execution_time" % (STATSD_PREFIX,))
+                g.send("clickhouse_stream_query_time", execution_time)
+                statsd.Timer("%s_clickhouse_query_time" % (STATSD_PREFIX,)).send(profile.value, execution_time)
+                if exhausted:
+                    _report_tagged_query(client, tags, execution_time)
+                if app_settings.SHELL_PLUS_PRINT_SQL:
+                    print(format_sql(query, args))
+                    print("Execution time: %.6fs" % (execution_time,))
+
+
+def run_concurrently(functions: List[Callable[[], Any]], max_workers: int) -> List[Any]:
+    """
+    Calls `functions` on up to `max_workers` threads and returns their results in order, e.g. to send independent
+    queries over separate pool connections. Each call sees the query profile and tags of the caller. If calls fail,
+    the exception of the first failing one is raised once all of them are done.
+    """
+    if len(functions) <= 1 or max_workers <= 1:
+        return [function() for function in functions]
+
+    with ThreadPoolExecutor(max_workers=min(max_workers, len(functions))) as executor:
+        futures = [executor.submit(contextvars.copy_context().run, function) for function in functions]
+        return [future.result() for future in futures]
+
+
+def _settings_for(
+    profile: QueryProfile, settings: Optional[Dict[str, Any]], tags: Optional[Dict[str, Any]] = None
+) -> Dict[str, Any]:
+    result = {**SHARDED_QUERY_SETTINGS, **QUERY_PROFILE_SETTINGS[profile], **(settings or {})}
+    if tags:
+        # Lands in system.query_log, see the clickhouse_query_log_summary command
+        result["log_comment"] = json.dumps({**tags, "profile": profile.value}, sort_keys=True)
+    return result
+
+
+def _query_id(tags: Dict[str, Any]) -> Optional[str]:
+    if not tags:
+        return None
+    return "{}_{}_{}".format(tags.get("insight", "query").lower(), tags.get("team_id", ""), uuid.uuid4().hex)
+
+
+def _query_tag_name(tags: Dict[str, Any]) -> str:
+    # Tags with unbounded values (team id, filter hash) are left out, metrics are per kind of query
+    if not tags.get("insight"):
+        return "untagged"
+    return "_".join(str(tags[key]).lower() for key in ("insight", "kind") if tags.get(key))
+
+
+def _report_tagged_query(client: SyncClient, tags: Dict[str, Any], execution_time: float) -> None:
+    tag = _query_tag_name(tags)
+    statsd.Timer("%s_clickhouse_query_time_by_tag" % (STATSD_PREFIX,)).send(tag, execution_time)
+    last_query = getattr(client, "last_query", None)
+    if last_query is not None and last_query.progress is not None:
+        statsd.Counter("%s_clickhouse_query_rows_read" % (STATSD_PREFIX,)).increment(tag, last_query.progress.rows)
+        statsd.Counter("%s_clickhouse_query_bytes_read" % (STATSD_PREFIX,)).increment(tag, last_query.progress.bytes)
+
+
+def _get_cached_result(redis_client, key: bytes) -> Optional[List[Tuple]]:
+    result_bytes = redis_client.get(key)
+    if result_bytes is None:
+        return None
+    statsd.Counter("%s_clickhouse_query_cache_hit" % (STATSD_PREFIX,)).increment()
+    return _deserialize(result_bytes)
+
+
+# Serialized results are prefixed with a byte telling how they're encoded
+_RAW = b"r"
+_ZLIB = b"z"
+
 
 def _deserialize(result_bytes: bytes) -> List[Tuple]:
-    results = []
-    for x in json.loads(result_bytes):
-        results.append(tuple(x))
-    return results
+    encoding, payload = result_bytes[:1], result_bytes[1:]
+    if encoding == _ZLIB:
+        payload = zlib.decompress(payload)
+    return json.loads(payload, object_hook=_decode_value)
 
 
 def _serialize(result: Any) -> bytes:
-    return json.dumps(result).encode("utf-8")
+    payload = json.dumps(_encode_value(result), separators=(",", ":")).encode("utf-8")
+    if len(payload) > CACHE_COMPRESSION_THRESHOLD:
+        return _ZLIB + zlib.compress(payload, 1)
+    return _RAW + payload
+
+
+# Plain JSON turns tuples into lists and datetimes, UUIDs and decimals into strings, those are tagged to be restored
+def _encode_value(value: Any) -> Any:
+    if isinstance(value, tuple):
+        return {"__tuple__": [_encode_value(item) for item in value]}
+    if isinstance(value, list):
+        return [_encode_value(item) for item in value]
+    if isinstance(value, dict):
+        return {key: _encode_value(item) for key, item in value.items()}
+    if isinstance(value, datetime.datetime):
+        return {"__datetime__": value.isoformat()}
+    if isinstance(value, datetime.date):
+        return {"__date__": value.isoformat()}
+    if isinstance(value, uuid.UUID):
+        return {"__uuid__": str(value)}
+    if isinstance(value, decimal.Decimal):
+        return {"__decimal__": str(value)}
+    return value
+
+
+def _decode_value(obj: Dict[str, Any]) -> Any:
+    if len(obj) == 1:
+        tag, value = next(iter(obj.items()))
+        if tag == "__tuple__":
+            return tuple(value)
+        if tag == "__datetime__":
+            return datetime.datetime.fromisoformat(value)
+        if tag == "__date__":
+            return datetime.date.fromisoformat(value)
+        if tag == "__uuid__":
+            return uuid.UUID(value)
+        if tag == "__decimal__":
+            return decimal.Decimal(value)
+    return obj
 
 
 def _key_hash(query: str, args: Any) -> bytes:
-    key = hashlib.md5(query.encode("utf-8") + json.dumps(args).encode("utf-8")).digest()
+    key = CACHE_KEY_PREFIX + hashlib.md5(query.encode("utf-8") + json.dumps(args).encode("utf-8")).digest()
     return key
 
 
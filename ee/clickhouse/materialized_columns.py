@@ -0,0 +1,206 @@
+import hashlib
+import re
+import time
+from collections import Counter
+from datetime import timedelta
+from typing import Dict, List, Tuple
+
+from clickhouse_driver.errors import ServerException
+from django.conf import settings
+from django.utils import timezone
+
+from ee.clickhouse.backfill import Backfill, BackfillAlreadyRunning, run_backfill
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.sql.clickhouse import data_table, on_cluster
+from ee.clickhouse.sql.events import ADD_EVENTS_TABLE_INDEX_SQL, EVENTS_TABLE
+from ee.clickhouse.sql.materialized_columns import (
+    ADD_DISTRIBUTED_COLUMN_SQL,
+    ADD_MATERIALIZED_COLUMN_SQL,
+    BACKFILL_MATERIALIZED_COLUMN_SQL,
+    GET_DEFAULT_MATERIALIZED_COLUMNS_SQL,
+    GET_MATERIALIZED_COLUMNS_SQL,
+    INSERT_MATERIALIZED_COLUMN_SQL,
+    MATERIALIZED_PROPERTY_EXPRESSION,
+    MODIFY_MATERIALIZED_COLUMN_SQL,
+)
+from ee.models.backfill import BackfillChunk
+from posthog.constants import QueryProfile
+from posthog.models.team import Team
+
+# Every query with a property filter looks the columns up, so keep them around for a bit. Until the cache expires
+# other processes just keep JSON-parsing the new property, which gives the same results.
+MATERIALIZED_COLUMNS_CACHE_SECONDS = 5 * 60
+
+MATERIALIZED_COLUMN_INDEX = "%s TYPE bloom_filter(0.01) GRANULARITY 4"
+
+_cache: Dict[str, Tuple[float, Dict[str, str]]] = {}
+
+
+def get_materialized_columns(table: str = EVENTS_TABLE) -> Dict[str, str]:
+    """
+    Property key -> column name for every property materialized on `table`.
+    """
+    cached = _cache.get(table)
+    if cached is not None and time.monotonic() - cached[0] < MATERIALIZED_COLUMNS_CACHE_SECONDS:
+        return cached[1]
+
+    try:
+        rows = sync_execute(GET_MATERIALIZED_COLUMNS_SQL, {"table": table})
+    except ServerException:
+        # registry table isn't there (yet), fall back to JSON extraction
+        rows = []
+    columns = {property: column for property, column, _ in rows}
+    _cache[table] = (time.monotonic(), columns)
+    return columns
+
+
+def clear_materialized_columns_cache() -> None:
+    _cache.clear()
+
+
+def materialized_column_name(property: str) -> str:
+    column = re.sub(r"[^a-z0-9_]", "_", property.lower())
+    if column != property:
+        # $browser and _browser, or Plan and plan, must not end up in the same column
+        column += "_" + hashlib.md5(property.encode("utf-8")).hexdigest()[:6]
+    return "mat_" + column
+
+
+def materialized_column_index_name(column: str) -> str:
+    return "{}_bloom_filter".format(column)
+
+
+def materialize(property: str, table: str = EVENTS_TABLE) -> str:
+    """
+    Adds a column for `property` and records it, queries use it right away. Parts written before this are not
+    rewritten, ClickHouse computes the column for them when read until backfill_materialized_column has run.
+    """
+    column = materialized_column_name(property)
+    sync_execute(
+        ADD_MATERIALIZED_COLUMN_SQL.format(
+            table=data_table(table),
+            on_cluster=on_cluster(),
+            column=column,
+            expression=MATERIALIZED_PROPERTY_EXPRESSION,
+        ),
+        {"property": property},
+        profile=QueryProfile.BACKGROUND_TASK,
+    )
+    if data_table(table) != table:
+        sync_execute(
+            ADD_DISTRIBUTED_COLUMN_SQL.format(table=table, on_cluster=on_cluster(), column=column),
+            profile=QueryProfile.BACKGROUND_TASK,
+        )
+    add_materialized_column_index(column, table)
+    _record(table, property, column, backfilled=False)
+    return column
+
+
+def add_materialized_column_index(column: str, table: str = EVENTS_TABLE) -> None:
+    # The backfill rewrites the column, which builds the index for the parts it touches as well
+    sync_execute(
+        ADD_EVENTS_TABLE_INDEX_SQL.format(
+            table=data_table(table),
+            on_cluster=on_cluster(),
+            name=materialized_column_index_name(column),
+            definition=MATERIALIZED_COLUMN_INDEX % column,
+        ),
+        profile=QueryProfile.BACKGROUND_TASK,
+    )
+
+
+def backfill_materialized_column(property: str, table: str = EVENTS_TABLE) -> None:
+    """
+    Stores the column of `property` for the last MATERIALIZE_COLUMNS_BACKFILL_PERIOD_DAYS, one partition at a time.
+    The column is DEFAULT until every partition is done: if this is stopped or partitions fail, it stays that way and
+    get_interrupted_backfills finds it, running this again carries on with the partitions left.
+    """
+    column = get_materialized_columns(table).get(property)
+    if column is None:
+        return
+
+    def modify(kind: str) -> None:
+        sync_execute(
+            MODIFY_MATERIALIZED_COLUMN_SQL.format(
+                table=data_table(table),
+                on_cluster=on_cluster(),
+                column=column,
+                kind=kind,
+                expression=MATERIALIZED_PROPERTY_EXPRESSION,
+            ),
+            {"property": property},
+            profile=QueryProfile.BACKGROUND_TASK,
+        )
+
+    cutoff = timezone.now() - timedelta(days=settings.MATERIALIZE_COLUMNS_BACKFILL_PERIOD_DAYS)
+    backfill = Backfill(
+        name="materialize_{}_{}".format(table, column),
+        sql=BACKFILL_MATERIALIZED_COLUMN_SQL.format(
+            table=data_table(table), on_cluster=on_cluster(), column=column, cutoff=cutoff.strftime("%Y-%m-%d %H:%M:%S")
+        ),
+        table=table,
+        by_team=False,
+        settings={"mutations_sync": 1},
+    )
+    modify("DEFAULT")
+    try:
+        progress = run_backfill(backfill, concurrency=1)
+    except BackfillAlreadyRunning:
+        # That run switches the column back once done
+        return
+    if progress.chunks_failed:
+        return
+
+    modify("MATERIALIZED")
+    BackfillChunk.objects.filter(backfill=backfill.name).delete()
+    _record(table, property, column, backfilled=True)
+
+
+def get_interrupted_backfills(table: str = EVENTS_TABLE) -> List[str]:
+    """
+    Properties whose backfill_materialized_column didn't finish, leaving their column DEFAULT.
+    """
+    rows = sync_execute(GET_DEFAULT_MATERIALIZED_COLUMNS_SQL, {"table": data_table(table)})
+    default_columns = {row[0] for row in rows}
+    return [property for property, column in get_materialized_columns(table).items() if column in default_columns]
+
+
+def get_hot_properties(limit: int) -> List[str]:
+    """
+    Event properties used the most in insight filters across all teams, as counted by
+    calculate_event_property_usage. Ties are broken by event volume.
+    """
+    usage_count: Counter = Counter()
+    volume: Counter = Counter()
+    for properties_with_usage in Team.objects.values_list("event_properties_with_usage", flat=True):
+        for item in properties_with_usage or []:
+            if item.get("usage_count"):
+                usage_count[item["key"]] += item["usage_count"]
+                volume[item["key"]] += item.get("volume") or 0
+
+    return sorted(usage_count, key=lambda key: (usage_count[key], volume[key]), reverse=True)[:limit]
+
+
+def materialize_hot_properties(table: str = EVENTS_TABLE) -> List[str]:
+    """
+    Materializes the most filtered on properties, up to MATERIALIZE_COLUMNS_MAX_COLUMNS columns in total.
+    Returns the newly materialized properties, these still need backfilling.
+    """
+    existing = get_materialized_columns(table)
+    available = settings.MATERIALIZE_COLUMNS_MAX_COLUMNS - len(existing)
+    if available <= 0:
+        return []
+
+    candidates = get_hot_properties(settings.MATERIALIZE_COLUMNS_MAX_COLUMNS)
+    properties = [property for property in candidates if property not in existing][:available]
+    for property in properties:
+        materialize(property, table)
+    return properties
+
+
+def _record(table: str, property: str, column: str, backfilled: bool) -> None:
+    now = timezone.now()
+    sync_execute(
+        INSERT_MATERIALIZED_COLUMN_SQL, [(table, property, column, int(backfilled), now, now)],
+    )
+    clear_materialized_columns_cache()
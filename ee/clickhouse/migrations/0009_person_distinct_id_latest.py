@@ -0,0 +1,16 @@
+from infi.clickhouse_orm import migrations
+
+from ee.clickhouse.sql.person import (
+    DISTRIBUTED_PERSON_DISTINCT_ID_LATEST_TABLE_SQL,
+    PERSON_DISTINCT_ID_LATEST_MV_SQL,
+    PERSON_DISTINCT_ID_LATEST_TABLE_SQL,
+    POPULATE_PERSON_DISTINCT_ID_LATEST_SQL,
+)
+from posthog.settings import CLICKHOUSE_SHARDED
+
+operations = [
+    migrations.RunSQL(PERSON_DISTINCT_ID_LATEST_TABLE_SQL),
+    *([migrations.RunSQL(DISTRIBUTED_PERSON_DISTINCT_ID_LATEST_TABLE_SQL)] if CLICKHOUSE_SHARDED else []),
+    migrations.RunSQL(PERSON_DISTINCT_ID_LATEST_MV_SQL),
+    migrations.RunSQL(POPULATE_PERSON_DISTINCT_ID_LATEST_SQL),
+]
@@ -0,0 +1,7 @@
+from infi.clickhouse_orm import migrations
+
+from ee.clickhouse.sql.materialized_columns import MATERIALIZED_COLUMNS_TABLE_SQL
+
+operations = [
+    migrations.RunSQL(MATERIALIZED_COLUMNS_TABLE_SQL),
+]
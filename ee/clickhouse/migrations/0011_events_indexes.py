@@ -0,0 +1,45 @@
+from infi.clickhouse_orm import migrations
+
+from ee.clickhouse.sql.clickhouse import data_table
+from ee.clickhouse.sql.events import (
+    ADD_EVENTS_TABLE_INDEX_SQL,
+    EVENTS_TABLE,
+    EVENTS_TABLE_INDEXES,
+    MATERIALIZE_EVENTS_TABLE_INDEX_SQL,
+)
+
+
+def add_materialized_column_indexes(database):
+    from ee.clickhouse.client import sync_execute
+    from ee.clickhouse.materialized_columns import (
+        add_materialized_column_index,
+        get_materialized_columns,
+        materialized_column_index_name,
+    )
+
+    for column in get_materialized_columns(EVENTS_TABLE).values():
+        add_materialized_column_index(column, EVENTS_TABLE)
+        sync_execute(
+            MATERIALIZE_EVENTS_TABLE_INDEX_SQL.format(
+                table=data_table(EVENTS_TABLE), on_cluster="", name=materialized_column_index_name(column)
+            )
+        )
+
+
+operations = [
+    *(
+        migrations.RunSQL(
+            ADD_EVENTS_TABLE_INDEX_SQL.format(
+                table=data_table(EVENTS_TABLE), on_cluster="", name=name, definition=definition
+            )
+        )
+        for name, definition in EVENTS_TABLE_INDEXES.items()
+    ),
+    *(
+        migrations.RunSQL(
+            MATERIALIZE_EVENTS_TABLE_INDEX_SQL.format(table=data_table(EVENTS_TABLE), on_cluster="", name=name)
+        )
+        for name in EVENTS_TABLE_INDEXES
+    ),
+    migrations.RunPython(add_materialized_column_indexes),
+]
@@ -0,0 +1,28 @@
+from infi.clickhouse_orm import migrations
+
+from ee.clickhouse.sql.events import (
+    DISTRIBUTED_EVENT_COUNTS_DAILY_TABLE_SQL,
+    EVENT_COUNTS_DAILY_TABLE_SQL,
+    POPULATE_EVENT_COUNTS_DAILY_SQL,
+    event_counts_daily_mv_sql,
+)
+from posthog.settings import CLICKHOUSE_SHARDED
+
+
+def create_and_populate_event_counts_daily(database):
+    """
+    Splits the counting at the start of the day: the view counts today's events on, the populate those before. Events
+    timestamped before today that are only ingested after this runs aren't counted.
+    """
+    from django.utils.timezone import now
+
+    boundary = now().strftime("%Y-%m-%d 00:00:00")
+    database.raw(event_counts_daily_mv_sql(since=boundary))
+    database.raw(POPULATE_EVENT_COUNTS_DAILY_SQL.format(until=boundary))
+
+
+operations = [
+    migrations.RunSQL(EVENT_COUNTS_DAILY_TABLE_SQL),
+    *([migrations.RunSQL(DISTRIBUTED_EVENT_COUNTS_DAILY_TABLE_SQL)] if CLICKHOUSE_SHARDED else []),
+    migrations.RunPython(create_and_populate_event_counts_daily),
+]
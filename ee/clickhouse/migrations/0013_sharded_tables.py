@@ -0,0 +1,50 @@
+from infi.clickhouse_orm import migrations
+
+from ee.clickhouse.sql.events import DISTRIBUTED_EVENTS_TABLE_SQL, EVENTS_TABLE
+from ee.clickhouse.sql.person import (
+    DISTRIBUTED_PERSONS_DISTINCT_ID_TABLE_SQL,
+    DISTRIBUTED_PERSONS_TABLE_SQL,
+    PERSONS_DISTINCT_ID_TABLE,
+    PERSONS_TABLE,
+)
+from ee.clickhouse.sql.session_recording_events import (
+    DISTRIBUTED_SESSION_RECORDING_EVENTS_TABLE_SQL,
+    SESSION_RECORDING_EVENTS_TABLE,
+)
+from posthog.settings import CLICKHOUSE_SHARDED
+
+# Created by 0001, 0003 and 0006, which only make the shard-local table when sharded
+SHARDED_TABLES = [EVENTS_TABLE, PERSONS_TABLE, PERSONS_DISTINCT_ID_TABLE, SESSION_RECORDING_EVENTS_TABLE]
+
+
+def check_sharded_tables(database):
+    """
+    Deployments that ran the earlier migrations before turning on CLICKHOUSE_SHARDED have plain tables where the
+    Distributed ones go, and no sharded_* tables. Their data needs copying over first, so refuse to go on.
+    """
+    from ee.clickhouse.client import sync_execute
+
+    engines = dict(
+        sync_execute(
+            "SELECT name, engine FROM system.tables WHERE database = %(database)s", {"database": database.db_name}
+        )
+    )
+    for table in SHARDED_TABLES:
+        if "sharded_" + table not in engines or engines.get(table, "Distributed") != "Distributed":
+            raise Exception(
+                "CLICKHOUSE_SHARDED is set but {} isn't sharded. Move its rows to sharded_{} and replace it with a "
+                "Distributed table before migrating.".format(table, table)
+            )
+
+
+operations = (
+    [
+        migrations.RunPython(check_sharded_tables),
+        migrations.RunSQL(DISTRIBUTED_EVENTS_TABLE_SQL),
+        migrations.RunSQL(DISTRIBUTED_PERSONS_TABLE_SQL),
+        migrations.RunSQL(DISTRIBUTED_PERSONS_DISTINCT_ID_TABLE_SQL),
+        migrations.RunSQL(DISTRIBUTED_SESSION_RECORDING_EVENTS_TABLE_SQL),
+    ]
+    if CLICKHOUSE_SHARDED
+    else []
+)
@@ -0,0 +1,114 @@
+import json
+
+from infi.clickhouse_orm import migrations
+
+from ee.clickhouse.sql.clickhouse import data_table
+from ee.clickhouse.sql.events import (
+    EVENT_COUNTS_DAILY_MV_SQL,
+    EVENT_COUNTS_DAILY_TABLE,
+    EVENTS_SAMPLING_KEY,
+    EVENTS_TABLE,
+    EVENTS_TABLE_MV_SQL,
+    events_data_table_sql,
+)
+
+EVENTS_COLUMNS = (
+    "uuid, event, properties, timestamp, team_id, distinct_id, elements_chain, created_at, _timestamp, _offset"
+)
+
+
+def move_events_to_sampling_key(database):
+    """
+    Events tables created before this sample by uuid, which ClickHouse refuses to run SAMPLE queries on. The sorting
+    key can't be changed in place, so the table is swapped for a new one sampled by EVENTS_SAMPLING_KEY, and the old
+    rows are copied over partition by partition. Ingestion goes to the new table right away, older events show up in
+    queries as their partition is copied.
+
+    Copies go through a staging table whose partitions are moved into events, so that event_counts_daily doesn't count
+    them a second time. A copied partition is dropped from the old table: running this again after it was interrupted
+    carries on with the partitions left, and the old table is dropped once empty. Applied on every host, like all
+    migrations.
+    """
+    from ee.clickhouse.materialized_columns import MATERIALIZED_COLUMN_INDEX, materialized_column_index_name
+
+    def select(query):
+        return [json.loads(line) for line in database.raw(query + " FORMAT JSONEachRow").splitlines() if line]
+
+    def sampling_key(name):
+        rows = select(
+            "SELECT sampling_key FROM system.tables WHERE database = '{}' AND name = '{}'".format(
+                database.db_name, name
+            )
+        )
+        return rows[0]["sampling_key"] if rows else None
+
+    def create_like_events(name, source):
+        # Left behind by a run that stopped halfway
+        database.raw("DROP TABLE IF EXISTS {}".format(name))
+        database.raw(events_data_table_sql(name))
+        # Properties materialized at runtime, see ee.clickhouse.materialized_columns
+        for column in select(
+            "SELECT name, type, default_expression FROM system.columns "
+            "WHERE database = '{}' AND table = '{}' AND name LIKE 'mat\\_%'".format(database.db_name, source)
+        ):
+            database.raw(
+                "ALTER TABLE {} ADD COLUMN IF NOT EXISTS {} {} MATERIALIZED {}".format(
+                    name, column["name"], column["type"], column["default_expression"]
+                )
+            )
+            database.raw(
+                "ALTER TABLE {} ADD INDEX IF NOT EXISTS {} {}".format(
+                    name, materialized_column_index_name(column["name"]), MATERIALIZED_COLUMN_INDEX % column["name"]
+                )
+            )
+
+    table = data_table(EVENTS_TABLE)
+    unsampled_table = table + "_unsampled"
+    staging_table = table + "_staging"
+
+    if sampling_key(table) != EVENTS_SAMPLING_KEY:
+        create_like_events(table + "_sampled", table)
+        database.raw("RENAME TABLE {0} TO {1}, {0}_sampled TO {0}".format(table, unsampled_table))
+
+    if sampling_key(unsampled_table) is None:
+        return
+
+    # Views writing to or reading from events may have followed it to its new name. The event_counts_daily view no
+    # longer needs the boundary it was created with, 0012 was done populating the rollup before.
+    if table == EVENTS_TABLE:
+        database.raw("DROP TABLE IF EXISTS {}_mv".format(EVENTS_TABLE))
+        database.raw(EVENTS_TABLE_MV_SQL)
+    database.raw("DROP TABLE IF EXISTS {}_mv".format(data_table(EVENT_COUNTS_DAILY_TABLE)))
+    database.raw(EVENT_COUNTS_DAILY_MV_SQL)
+
+    create_like_events(staging_table, table)
+    for part in select(
+        "SELECT DISTINCT partition, partition_id FROM system.parts "
+        "WHERE active AND database = '{}' AND table = '{}' ORDER BY partition DESC".format(
+            database.db_name, unsampled_table
+        )
+    ):
+        partition_filter = "toYYYYMM(timestamp) = {}".format(part["partition"])
+        # Moved by a run that stopped before dropping it from the old table. Rows ingested since the swap have other
+        # uuids.
+        database.raw(
+            "ALTER TABLE {table} DELETE WHERE {filter} AND uuid IN (SELECT uuid FROM {source} WHERE {filter})".format(
+                table=table, source=unsampled_table, filter=partition_filter
+            ),
+            settings={"mutations_sync": 1},
+        )
+        database.raw(
+            "INSERT INTO {table} ({columns}) SELECT {columns} FROM {source} WHERE {filter}".format(
+                table=staging_table, columns=EVENTS_COLUMNS, source=unsampled_table, filter=partition_filter
+            )
+        )
+        database.raw(
+            "ALTER TABLE {} MOVE PARTITION ID '{}' TO TABLE {}".format(staging_table, part["partition_id"], table)
+        )
+        database.raw("ALTER TABLE {} DROP PARTITION ID '{}'".format(unsampled_table, part["partition_id"]))
+
+    database.raw("DROP TABLE {}".format(staging_table))
+    database.raw("DROP TABLE {}".format(unsampled_table))
+
+
+operations = [migrations.RunPython(move_events_to_sampling_key)]
@@ -15,8 +15,10 @@ from ee.clickhouse.sql.person import (
     DELETE_PERSON_BY_ID,
     DELETE_PERSON_DISTINCT_ID_BY_PERSON_ID,
     DELETE_PERSON_EVENTS_BY_ID,
+    DELETE_PERSON_LATEST_DISTINCT_ID_BY_PERSON_ID,
     GET_DISTINCT_IDS_SQL,
     GET_DISTINCT_IDS_SQL_BY_ID,
+    GET_LATEST_PERSON_SQL,
     GET_PERSON_BY_DISTINCT_ID,
     GET_PERSON_IDS_BY_FILTER,
     GET_PERSON_SQL,
@@ -25,6 +27,7 @@ from ee.clickhouse.sql.person import (
     PERSON_DISTINCT_ID_EXISTS_SQL,
     UPDATE_PERSON_ATTACHED_DISTINCT_ID,
     UPDATE_PERSON_IS_IDENTIFIED,
+    UPDATE_PERSON_LATEST_ATTACHED_DISTINCT_ID,
     UPDATE_PERSON_PROPERTIES,
 )
 from ee.kafka_client.client import ClickhouseProducer
@@ -103,6 +106,14 @@ def distinct_ids_exist(team_id: int, ids: List[str]) -> bool:
     return bool(sync_execute(PERSON_DISTINCT_ID_EXISTS_SQL.format([str(id) for id in ids]), {"team_id": team_id})[0][0])
 
 
+def get_latest_person_sql(query: str = "") -> str:
+    """
+    SQL for the latest version of each person of the team (`%(team_id)s`), read in a single pass.
+    `query` is added to its WHERE clause, e.g. "AND ..." person property filters.
+    """
+    return GET_LATEST_PERSON_SQL.format(query=query)
+
+
 def get_persons(team_id: int):
     result = sync_execute(GET_PERSON_SQL, {"team_id": team_id})
     return ClickhousePersonSerializer(result, many=True).data
@@ -148,10 +159,9 @@ def merge_people(team_id: int, target: Dict, old_id: UUID, old_props: Dict) -> N
     parsed_other_person_distinct_ids = ClickhousePersonDistinctIdSerializer(other_person_distinct_ids, many=True).data
 
     for person_distinct_id in parsed_other_person_distinct_ids:
-        sync_execute(
-            UPDATE_PERSON_ATTACHED_DISTINCT_ID,
-            {"person_id": target["id"], "distinct_id": person_distinct_id["distinct_id"]},
-        )
+        params = {"person_id": target["id"], "distinct_id": person_distinct_id["distinct_id"]}
+        sync_execute(UPDATE_PERSON_ATTACHED_DISTINCT_ID, params)
+        sync_execute(UPDATE_PERSON_LATEST_ATTACHED_DISTINCT_ID, params)
     delete_person(old_id)
 
 
@@ -164,6 +174,7 @@ def delete_person(person_id: UUID, delete_events: bool = False, team_id: int = F
 
     sync_execute(DELETE_PERSON_BY_ID, {"id": person_id,})
     sync_execute(DELETE_PERSON_DISTINCT_ID_BY_PERSON_ID, {"id": person_id,})
+    sync_execute(DELETE_PERSON_LATEST_DISTINCT_ID_BY_PERSON_ID, {"id": person_id,})
 
 
 class ClickhousePersonSerializer(serializers.Serializer):
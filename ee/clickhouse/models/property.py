@@ -5,9 +5,10 @@ from django.conf import settings
 from django.utils import timezone
 
 from ee.clickhouse.client import sync_execute
+from ee.clickhouse.materialized_columns import get_materialized_columns
 from ee.clickhouse.models.cohort import format_filter_query
 from ee.clickhouse.models.util import is_int, is_json
-from ee.clickhouse.sql.events import SELECT_PROP_VALUES_SQL, SELECT_PROP_VALUES_SQL_WITH_FILTER
+from ee.clickhouse.sql.events import EVENTS_TABLE, SELECT_PROP_VALUES_SQL, SELECT_PROP_VALUES_SQL_WITH_FILTER
 from ee.clickhouse.sql.person import GET_DISTINCT_IDS_BY_PROPERTY_SQL
 from posthog.models.cohort import Cohort
 from posthog.models.event import Selector
@@ -24,6 +25,7 @@ def parse_prop_clauses(
     allow_denormalized_props: bool = False,
     filter_test_accounts=False,
     is_person_query=False,
+    allow_materialized_columns: bool = True,
 ) -> Tuple[str, Dict]:
     final = []
     params: Dict[str, Any] = {}
@@ -70,6 +72,7 @@ def parse_prop_clauses(
                 prepend,
                 prop_var="{}properties".format(table_name),
                 allow_denormalized_props=allow_denormalized_props,
+                events_table_alias=table_name if allow_materialized_columns else None,
             )
 
             final.append(f"{filter_query} AND {table_name}team_id = %(team_id)s" if team_id else filter_query)
@@ -78,7 +81,12 @@ def parse_prop_clauses(
 
 
 def prop_filter_json_extract(
-    prop: Property, idx: int, prepend: str = "", prop_var: str = "properties", allow_denormalized_props: bool = False
+    prop: Property,
+    idx: int,
+    prepend: str = "",
+    prop_var: str = "properties",
+    allow_denormalized_props: bool = False,
+    events_table_alias: Optional[str] = None,
 ) -> Tuple[str, Dict[str, Any]]:
     # Once all queries are migrated over we can get rid of allow_denormalized_props
     is_denormalized = prop.key.lower() in settings.CLICKHOUSE_DENORMALIZED_PROPERTIES and allow_denormalized_props
@@ -86,6 +94,16 @@ def prop_filter_json_extract(
         idx=idx, prepend=prepend, prop_var=prop_var
     )
     denormalized = "properties_{}".format(prop.key.lower())
+    # Materialized columns hold the same value as json_extract. They're only used when `prop_var` is the properties
+    # column of events, which callers say by passing the alias events are read under ("" or e.g. "e.")
+    materialized_column = (
+        _materialized_column(prop.key, events_table_alias)
+        if events_table_alias is not None and not is_denormalized
+        else None
+    )
+    if materialized_column:
+        is_denormalized = True
+        denormalized = materialized_column
     operator = prop.operator
     params: Dict[str, Any] = {}
 
@@ -132,7 +150,8 @@ def prop_filter_json_extract(
         )
     elif operator == "is_set":
         params = {"k{}_{}".format(prepend, idx): prop.key, "v{}_{}".format(prepend, idx): prop.value}
-        if is_denormalized:
+        # a materialized column can't tell a missing key from an empty value, so these stay on the JSON
+        if is_denormalized and not materialized_column:
             return (
                 "AND NOT isNull({left})".format(left=denormalized),
                 params,
@@ -143,7 +162,7 @@ def prop_filter_json_extract(
         )
     elif operator == "is_not_set":
         params = {"k{}_{}".format(prepend, idx): prop.key, "v{}_{}".format(prepend, idx): prop.value}
-        if is_denormalized:
+        if is_denormalized and not materialized_column:
             return (
                 "AND isNull({left})".format(left=denormalized),
                 params,
@@ -183,7 +202,11 @@ def prop_filter_json_extract(
             params,
         )
     else:
-        if is_json(prop.value) and not is_denormalized:
+        if materialized_column:
+            # `IN` rather than `has`, so that the column's skipping index applies
+            clause = "AND {left} IN %(v{prepend}_{idx})s"
+            params = {"k{}_{}".format(prepend, idx): prop.key, "v{}_{}".format(prepend, idx): box_value(prop.value)}
+        elif is_json(prop.value) and not is_denormalized:
             clause = "AND has(%(v{prepend}_{idx})s, replaceRegexpAll(visitParamExtractRaw({prop_var}, %(k{prepend}_{idx})s),' ', ''))"
             params = {
                 "k{}_{}".format(prepend, idx): prop.key,
@@ -200,6 +223,13 @@ def prop_filter_json_extract(
         )
 
 
+def _materialized_column(key: str, events_table_alias: str) -> Optional[str]:
+    column = get_materialized_columns(EVENTS_TABLE).get(key)
+    if column is None:
+        return None
+    return events_table_alias + column
+
+
 def box_value(value: Any, remove_spaces=False) -> List[Any]:
     if not isinstance(value, List):
         value = [value]
@@ -0,0 +1,57 @@
+import json
+from uuid import uuid4
+
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.models.person import create_person_distinct_id, get_latest_person_sql
+from ee.clickhouse.sql.person import GET_LATEST_PERSON_DISTINCT_ID_SQL
+from ee.clickhouse.util import ClickhouseTestMixin
+from posthog.test.base import BaseTest
+
+
+class TestLatestPersonDistinctId(ClickhouseTestMixin, BaseTest):
+    def _latest(self):
+        return sorted(
+            (distinct_id, str(person_id))
+            for distinct_id, person_id, _ in sync_execute(GET_LATEST_PERSON_DISTINCT_ID_SQL, {"team_id": self.team.pk})
+        )
+
+    def test_inserts_feed_latest_table(self):
+        person_id = str(uuid4())
+        create_person_distinct_id(1, self.team.pk, "a", person_id)
+        create_person_distinct_id(2, self.team.pk, "b", person_id)
+        create_person_distinct_id(3, self.team.pk + 1, "c", person_id)
+
+        self.assertEqual(self._latest(), [("a", person_id), ("b", person_id)])
+
+    def test_latest_person_wins(self):
+        old_person_id, new_person_id = str(uuid4()), str(uuid4())
+        for offset, person_id in [(2, new_person_id), (1, old_person_id)]:
+            sync_execute(
+                "INSERT INTO person_distinct_id SELECT 1, 'a', %(person_id)s, %(team_id)s, now(), %(offset)s",
+                {"person_id": person_id, "team_id": self.team.pk, "offset": offset},
+            )
+
+        self.assertEqual(self._latest(), [("a", new_person_id)])
+
+
+class TestLatestPerson(ClickhouseTestMixin, BaseTest):
+    def _insert_person_version(self, person_id: str, properties: dict, timestamp: str) -> None:
+        sync_execute(
+            "INSERT INTO person SELECT %(id)s, now(), %(team_id)s, %(properties)s, 0, %(timestamp)s, 0",
+            {"id": person_id, "team_id": self.team.pk, "properties": json.dumps(properties), "timestamp": timestamp},
+        )
+
+    def test_latest_person_version_is_read(self):
+        person_id = str(uuid4())
+        self._insert_person_version(person_id, {"plan": "free"}, "2021-01-01 00:00:00")
+        self._insert_person_version(person_id, {"plan": "paid"}, "2021-01-02 00:00:00")
+
+        persons = sync_execute(get_latest_person_sql(), {"team_id": self.team.pk})
+        self.assertEqual(len(persons), 1)
+        self.assertEqual(json.loads(persons[0][3]), {"plan": "paid"})
+
+        # Filters apply to the latest version only
+        filter_query = "AND JSONExtractString(properties, 'plan') = %(plan)s"
+        for plan, expected in [("free", 0), ("paid", 1)]:
+            persons = sync_execute(get_latest_person_sql(filter_query), {"team_id": self.team.pk, "plan": plan})
+            self.assertEqual(len(persons), expected)
@@ -4,6 +4,7 @@ from uuid import UUID, uuid4
 import pytest
 
 from ee.clickhouse.client import sync_execute
+from ee.clickhouse.materialized_columns import materialize
 from ee.clickhouse.models.event import create_event
 from ee.clickhouse.models.property import parse_prop_clauses, prop_filter_json_extract
 from ee.clickhouse.util import ClickhouseTestMixin
@@ -265,6 +266,70 @@ class TestPropDenormalized(ClickhouseTestMixin, BaseTest):
             self.assertEqual(len(self._run_query(filter)), 1)
 
 
+class TestPropMaterialized(ClickhouseTestMixin, BaseTest):
+    CLASS_DATA_LEVEL_SETUP = False
+
+    def _run_query(self, filter: Filter) -> List:
+        query, params = parse_prop_clauses(filter.properties, self.team.pk)
+        final_query = "SELECT uuid FROM events WHERE team_id = %(team_id)s {}".format(query)
+        return sync_execute(final_query, {**params, "team_id": self.team.pk})
+
+    def test_prop_event_materialized(self):
+        _create_event(
+            event="$pageview", team=self.team, distinct_id="whatever", properties={"$browser": "Firefox"},
+        )
+        _create_event(
+            event="$pageview", team=self.team, distinct_id="whatever", properties={"$browser": "Chrome"},
+        )
+        _create_event(
+            event="$pageview", team=self.team, distinct_id="whatever", properties={"$os": "Mac OS X"},
+        )
+        column = materialize("$browser")
+        _create_event(
+            event="$pageview", team=self.team, distinct_id="whatever", properties={"$browser": "Chrome"},
+        )
+
+        filter = Filter(data={"properties": [{"key": "$browser", "value": "Chrome"}],})
+        query, _ = parse_prop_clauses(filter.properties, self.team.pk)
+        self.assertIn(column, query)
+        self.assertNotIn("json", query.lower())
+        self.assertEqual(len(self._run_query(filter)), 2)
+
+        filter = Filter(data={"properties": [{"key": "$browser", "value": "Chrome", "operator": "is_not"}],})
+        self.assertEqual(len(self._run_query(filter)), 2)
+
+        filter = Filter(data={"properties": [{"key": "$browser", "value": "Fire", "operator": "icontains"}],})
+        self.assertEqual(len(self._run_query(filter)), 1)
+
+        filter = Filter(data={"properties": [{"key": "$browser", "value": "^Chr", "operator": "regex"}],})
+        self.assertEqual(len(self._run_query(filter)), 2)
+
+        filter = Filter(data={"properties": [{"key": "$browser", "value": "", "operator": "is_set"}],})
+        self.assertEqual(len(self._run_query(filter)), 3)
+
+        filter = Filter(data={"properties": [{"key": "$browser", "value": "", "operator": "is_not_set"}],})
+        self.assertEqual(len(self._run_query(filter)), 1)
+
+    def test_prop_event_materialized_with_table_alias(self):
+        _create_event(
+            event="$pageview", team=self.team, distinct_id="whatever", properties={"plan": "free"},
+        )
+        column = materialize("plan")
+
+        filter = Filter(data={"properties": [{"key": "plan", "value": "free"}],})
+        query, params = parse_prop_clauses(filter.properties, self.team.pk, table_name="e")
+        self.assertIn("e.{}".format(column), query)
+        final_query = "SELECT uuid FROM events e WHERE e.team_id = %(team_id)s {}".format(query)
+        self.assertEqual(len(sync_execute(final_query, {**params, "team_id": self.team.pk})), 1)
+
+    def test_materialized_columns_not_used_when_disallowed(self):
+        materialize("plan")
+
+        filter = Filter(data={"properties": [{"key": "plan", "value": "free"}],})
+        query, _ = parse_prop_clauses(filter.properties, self.team.pk, allow_materialized_columns=False)
+        self.assertIn("JSONExtractRaw", query)
+
+
 @pytest.fixture
 def test_events(db, team) -> List[UUID]:
     return [
@@ -295,3 +360,25 @@ def test_prop_filter_json_extract(test_events, property, expected_event_indexes)
     expected = list(sorted([test_events[index] for index in expected_event_indexes]))
 
     assert uuids == expected
+
+
+@pytest.mark.parametrize(
+    "property,expected_event_indexes",
+    [
+        (Property(key="email", value="test@posthog.com"), [0]),
+        (Property(key="attr", value="5"), [4]),
+        (Property(key="attr", value=10, operator="gt"), [3]),
+        (Property(key="email", value="test@posthog.com", operator="is_not"), range(1, 5)),
+        (Property(key="email", value=r".*est@.*", operator="regex"), [0]),
+    ],
+)
+def test_prop_filter_json_extract_materialized(test_events, property, expected_event_indexes):
+    materialize("email")
+    materialize("attr")
+
+    query, params = prop_filter_json_extract(property, 0, events_table_alias="")
+    uuids = list(sorted([uuid for (uuid,) in sync_execute(f"SELECT uuid FROM events WHERE 1 = 1 {query}", params)]))
+    expected = list(sorted([test_events[index] for index in expected_event_indexes]))
+
+    assert "JSONExtractRaw" not in query
+    assert uuids == expected
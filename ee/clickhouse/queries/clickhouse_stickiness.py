@@ -9,12 +9,11 @@ from sentry_sdk.api import capture_exception
 
 from ee.clickhouse.client import sync_execute
 from ee.clickhouse.models.action import format_action_filter
-from ee.clickhouse.models.person import ClickhousePersonSerializer
+from ee.clickhouse.models.person import ClickhousePersonSerializer, get_latest_person_sql
 from ee.clickhouse.models.property import parse_prop_clauses
 from ee.clickhouse.queries.util import get_trunc_func_ch, parse_timestamps
 from ee.clickhouse.sql.person import (
     GET_LATEST_PERSON_DISTINCT_ID_SQL,
-    GET_LATEST_PERSON_SQL,
     INSERT_COHORT_ALL_PEOPLE_SQL,
     PEOPLE_SQL,
     PERSON_STATIC_COHORT_TABLE,
@@ -125,7 +124,7 @@ def retrieve_stickiness_people(target_entity: Entity, filter: StickinessFilter,
         PEOPLE_SQL.format(
             content_sql=content_sql,
             query="",
-            latest_person_sql=GET_LATEST_PERSON_SQL.format(query=""),
+            latest_person_sql=get_latest_person_sql(),
             latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
         ),
         params,
@@ -140,7 +139,7 @@ def insert_stickiness_people_into_cohort(cohort: Cohort, target_entity: Entity,
             INSERT_COHORT_ALL_PEOPLE_SQL.format(
                 content_sql=content_sql,
                 query="",
-                latest_person_sql=GET_LATEST_PERSON_SQL.format(query=""),
+                latest_person_sql=get_latest_person_sql(),
                 cohort_table=PERSON_STATIC_COHORT_TABLE,
                 latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
             ),
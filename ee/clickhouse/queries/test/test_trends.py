@@ -1,10 +1,20 @@
+import datetime
+from unittest.mock import patch
 from uuid import uuid4
 
 from freezegun import freeze_time
 
+from ee.clickhouse.client import sync_execute
 from ee.clickhouse.models.event import create_event
 from ee.clickhouse.models.person import create_person, create_person_distinct_id
 from ee.clickhouse.queries.trends.clickhouse_trends import ClickhouseTrends
+from ee.clickhouse.queries.trends.normal import ClickhouseTrendsNormal
+from ee.clickhouse.queries.trends.util import events_table_can_be_sampled, process_math
+from ee.clickhouse.sql.events import (
+    DROP_EVENT_COUNTS_DAILY_MV_SQL,
+    POPULATE_EVENT_COUNTS_DAILY_SQL,
+    event_counts_daily_mv_sql,
+)
 from ee.clickhouse.util import ClickhouseTestMixin
 from posthog.models.action import Action
 from posthog.models.action_step import ActionStep
@@ -434,3 +444,175 @@ class TestClickhouseTrends(ClickhouseTestMixin, trend_test_factory(ClickhouseTre
         filter = Filter(data=data)
         result = ClickhouseTrends().run(filter, self.team,)
         self.assertEqual(result[0]["data"], [0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 0.0, 2.0, 2.0, 2.0, 0.0])
+
+    def test_event_count_from_rollup(self):
+        for timestamp in [
+            "2020-01-02T12:00:00Z",
+            "2020-01-02T23:59:00Z",
+            "2020-01-05T00:00:00Z",
+            "2020-01-09T10:00:00Z",
+        ]:
+            _create_event(team=self.team, event="$pageview", distinct_id="p1", timestamp=timestamp)
+        _create_event(team=self.team, event="$pageleave", distinct_id="p1", timestamp="2020-01-05T12:00:00Z")
+
+        for interval, display in [("day", "ActionsLineGraph"), ("week", "ActionsLineGraph"), ("day", "ActionsPie")]:
+            filter = Filter(
+                data={
+                    "date_from": "2020-01-01",
+                    "date_to": "2020-01-10",
+                    "interval": interval,
+                    "display": display,
+                    "events": [{"id": "$pageview", "type": "events", "order": 0}],
+                }
+            )
+            with self.settings(CLICKHOUSE_TRENDS_USE_ROLLUP=False):
+                expected = ClickhouseTrends().run(filter, self.team)
+            with self.settings(CLICKHOUSE_TRENDS_USE_ROLLUP=True):
+                result = ClickhouseTrends().run(filter, self.team)
+            self.assertEqual(result, expected)
+
+        with freeze_time("2020-01-10T12:00:00Z"):
+            filter = Filter(data={"date_from": "-14d", "events": [{"id": "$pageview", "type": "events", "order": 0}]})
+            result = ClickhouseTrends().run(filter, self.team)
+        self.assertEqual(result[0]["count"], 4)
+
+    def test_rollup_populated_once_around_view_boundary(self):
+        sync_execute(DROP_EVENT_COUNTS_DAILY_MV_SQL)
+        _create_event(team=self.team, event="$pageview", distinct_id="p1", timestamp="2020-01-02T12:00:00Z")
+        sync_execute(event_counts_daily_mv_sql(since="2020-01-05 00:00:00"))
+        # Ingested between creating the view and populating, on either side of the boundary
+        _create_event(team=self.team, event="$pageview", distinct_id="p1", timestamp="2020-01-03T12:00:00Z")
+        _create_event(team=self.team, event="$pageview", distinct_id="p1", timestamp="2020-01-05T12:00:00Z")
+        sync_execute(POPULATE_EVENT_COUNTS_DAILY_SQL.format(until="2020-01-05 00:00:00"))
+        _create_event(team=self.team, event="$pageview", distinct_id="p1", timestamp="2020-01-06T12:00:00Z")
+
+        self.assertEqual(
+            sync_execute(
+                "SELECT day, sum(count) FROM event_counts_daily WHERE team_id = %(team_id)s GROUP BY day ORDER BY day",
+                {"team_id": self.team.pk},
+            ),
+            [
+                (datetime.date(2020, 1, 2), 1),
+                (datetime.date(2020, 1, 3), 1),
+                (datetime.date(2020, 1, 5), 1),
+                (datetime.date(2020, 1, 6), 1),
+            ],
+        )
+
+    def test_rollup_eligibility(self):
+        normal = ClickhouseTrendsNormal()
+
+        def can_use_rollup(data, entity_data={"id": "$pageview", "type": "events"}) -> bool:
+            filter = Filter(data={"events": [entity_data], **data})
+            entity = filter.entities[0]
+            aggregate_operation, _, _ = process_math(entity)
+            props_to_filter = [*filter.properties, *entity.properties]
+            return normal._can_use_rollup(entity, filter, props_to_filter, aggregate_operation)
+
+        self.assertTrue(can_use_rollup({}))
+        self.assertTrue(can_use_rollup({"interval": "month"}))
+        self.assertTrue(can_use_rollup({}, {"id": "$pageview", "type": "events", "math": "total"}))
+        self.assertFalse(can_use_rollup({"interval": "hour"}))
+        self.assertFalse(can_use_rollup({"date_from": "-24h"}))
+        self.assertFalse(can_use_rollup({"properties": [{"key": "$browser", "value": "Chrome"}]}))
+        self.assertFalse(can_use_rollup({}, {"id": "$pageview", "type": "events", "math": "dau"}))
+        self.assertFalse(can_use_rollup({}, {"id": "$pageview", "type": "events", "math": "weekly_active"}))
+        self.assertFalse(
+            can_use_rollup(
+                {}, {"id": "$pageview", "type": "events", "properties": [{"key": "$browser", "value": "Chrome"}]}
+            )
+        )
+        with self.settings(CLICKHOUSE_TRENDS_USE_ROLLUP=False):
+            self.assertFalse(can_use_rollup({}))
+
+    def test_sampled_trends(self):
+        for hour in range(20):
+            _create_event(team=self.team, event="$pageview", distinct_id="p1", timestamp=f"2020-01-02T{hour:02}:00:00Z")
+
+        filter = Filter(
+            data={
+                "date_from": "2020-01-01",
+                "date_to": "2020-01-03",
+                "sampling_factor": 0.5,
+                "events": [
+                    {"id": "$pageview", "type": "events", "order": 0},
+                    {"id": "$pageview", "type": "events", "order": 1, "math": "dau"},
+                ],
+            }
+        )
+        sql, _, _ = ClickhouseTrends()._get_sql_for_entity(filter, filter.entities[0], self.team.pk)
+        self.assertIn("SAMPLE 0.5", sql)
+
+        with self.settings(CLICKHOUSE_TRENDS_USE_ROLLUP=False):
+            sampled, dau = ClickhouseTrends().run(filter, self.team)
+
+        # counts are scaled up from the sample and come with a margin per bucket
+        self.assertEqual(sampled["sampling_factor"], 0.5)
+        self.assertTrue(all(value % 2 == 0 for value in sampled["data"]))
+        self.assertEqual(sampled["count"], sum(sampled["data"]))
+        self.assertEqual(len(sampled["error_margin"]), len(sampled["data"]))
+        self.assertEqual(sampled["error_margin"][0], 0)
+        # unique users can't be estimated from a sample of events, those stay exact
+        self.assertNotIn("sampling_factor", dau)
+
+        with self.settings(CLICKHOUSE_TRENDS_USE_ROLLUP=False):
+            exact = ClickhouseTrends().run(Filter(data={**filter._data, "sampling_factor": None}), self.team)
+        self.assertEqual(exact[0]["count"], 20)
+        self.assertNotIn("error_margin", exact[0])
+
+    def test_sampling_factor_ignored_without_integer_sampling_key(self):
+        self.assertTrue(events_table_can_be_sampled())
+
+        _create_event(team=self.team, event="$pageview", distinct_id="p1", timestamp="2020-01-02T12:00:00Z")
+        filter = Filter(
+            data={
+                "date_from": "2020-01-01",
+                "date_to": "2020-01-03",
+                "sampling_factor": 0.5,
+                "events": [{"id": "$pageview", "type": "events", "order": 0}],
+            }
+        )
+        # As for events tables still sampled by uuid, see 0014_events_sampling_key
+        with patch("ee.clickhouse.queries.trends.util.events_table_can_be_sampled", return_value=False):
+            sql, _, _ = ClickhouseTrends()._get_sql_for_entity(filter, filter.entities[0], self.team.pk)
+            with self.settings(CLICKHOUSE_TRENDS_USE_ROLLUP=False):
+                result = ClickhouseTrends().run(filter, self.team)
+
+        self.assertNotIn("SAMPLE", sql)
+        self.assertEqual(result[0]["count"], 1)
+        self.assertNotIn("sampling_factor", result[0])
+
+    def test_series_queries_run_concurrently(self):
+        for day in range(1, 10):
+            for event in ["$pageview", "sign up", "$pageleave"][: day % 3 + 1]:
+                _create_event(team=self.team, event=event, distinct_id="p1", timestamp=f"2020-01-{day:02}T12:00:00Z")
+
+        filter = Filter(
+            data={
+                "date_from": "2020-01-05",
+                "date_to": "2020-01-09",
+                "compare": True,
+                "events": [
+                    {"id": "$pageview", "type": "events", "order": 0},
+                    {"id": "sign up", "type": "events", "order": 1},
+                    {"id": "$pageleave", "type": "events", "order": 2, "math": "dau"},
+                ],
+            }
+        )
+        with self.settings(CLICKHOUSE_TRENDS_MAX_PARALLEL_QUERIES=1):
+            sequential = ClickhouseTrends().run(filter, self.team)
+        with self.settings(CLICKHOUSE_TRENDS_MAX_PARALLEL_QUERIES=4):
+            concurrent = ClickhouseTrends().run(filter, self.team)
+
+        self.assertEqual(concurrent, sequential)
+        self.assertEqual(
+            [series["label"] for series in concurrent],
+            [
+                "$pageview - current",
+                "$pageview - previous",
+                "sign up - current",
+                "sign up - previous",
+                "$pageleave - current",
+                "$pageleave - previous",
+            ],
+        )
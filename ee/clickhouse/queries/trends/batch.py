@@ -0,0 +1,159 @@
+import json
+from collections import defaultdict
+from typing import Any, Dict, List, Optional, Tuple
+
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.models.property import parse_prop_clauses
+from ee.clickhouse.queries.trends.clickhouse_trends import ClickhouseTrends
+from ee.clickhouse.queries.trends.util import parse_response
+from ee.clickhouse.queries.util import date_from_clause, get_time_diff, get_trunc_func_ch, parse_timestamps
+from ee.clickhouse.sql.events import EVENT_JOIN_PERSON_SQL
+from ee.clickhouse.sql.trends.batch import BATCH_VOLUME_SQL
+from posthog.constants import (
+    INSIGHT_TRENDS,
+    TREND_FILTER_TYPE_EVENTS,
+    TRENDS_CUMULATIVE,
+    TRENDS_DISPLAY_BY_VALUE,
+    TRENDS_LIFECYCLE,
+    TRENDS_STICKINESS,
+)
+from posthog.models.entity import Entity
+from posthog.models.filters import Filter
+from posthog.models.team import Team
+
+# Aggregations a batched series can use, with what they count. Same results as process_math gives for these.
+BATCH_AGGREGATES = {
+    None: "countIf(event = %({event})s)",
+    "total": "countIf(event = %({event})s)",
+    "dau": "uniqExactIf(person_id, event = %({event})s)",
+}
+
+
+def batch_trends(filters: List[Filter], team: Team) -> List[Optional[List[Dict[str, Any]]]]:
+    """
+    Computes the trends insights in `filters`, the way ClickhouseTrends would, with as few scans of events as
+    possible: series that differ only in their event and math (count or daily active users) share one query.
+    Returns a result per filter, None for filters that can't be batched (see can_batch), run those on their own.
+    """
+    trends = ClickhouseTrends()
+    filters = [trends._set_default_dates(filter, team.pk) for filter in filters]
+    groups: Dict[str, List[Tuple[int, int, Filter, Entity]]] = defaultdict(list)
+    for filter_index, filter in enumerate(filters):
+        if can_batch(filter):
+            for entity_index, entity in enumerate(filter.entities):
+                groups[_batch_key(filter, team.pk, entity)].append((filter_index, entity_index, filter, entity))
+
+    series_results: Dict[Tuple[int, int], List[Dict[str, Any]]] = {}
+    for group in groups.values():
+        for (filter_index, entity_index, filter, entity), result in zip(group, _run_batch(group, team.pk)):
+            serialized = trends._format_serialized(entity, [result])
+            if filter.display == TRENDS_CUMULATIVE:
+                serialized = trends._handle_cumulative(serialized)
+            series_results[(filter_index, entity_index)] = serialized
+
+    results: List[Optional[List[Dict[str, Any]]]] = []
+    for filter_index, filter in enumerate(filters):
+        if not can_batch(filter):
+            results.append(None)
+            continue
+        results.append(
+            [
+                series
+                for entity_index in range(len(filter.entities))
+                for series in series_results[(filter_index, entity_index)]
+            ]
+        )
+    return results
+
+
+def can_batch(filter: Any) -> bool:
+    return (
+        type(filter) == Filter
+        and filter.insight == INSIGHT_TRENDS
+        and filter.shown_as not in (TRENDS_LIFECYCLE, TRENDS_STICKINESS)
+        and filter.display not in TRENDS_DISPLAY_BY_VALUE
+        and not filter.breakdown
+        and not filter.formula
+        and not filter.compare
+        and not filter.sampling_factor
+        and filter._date_from != "all"
+        and len(filter.entities) > 0
+        and all(
+            entity.type == TREND_FILTER_TYPE_EVENTS and entity.math in BATCH_AGGREGATES and not entity.properties
+            for entity in filter.entities
+        )
+    )
+
+
+def get_batch_key(filter: Any, team_id: int) -> Optional[str]:
+    """
+    Trends insights with the same key can be passed to batch_trends together to share queries. None if the
+    insight can't be batched at all.
+    """
+    if not can_batch(filter):
+        return None
+    filter = ClickhouseTrends()._set_default_dates(filter, team_id)
+    return _batch_key(filter, team_id)
+
+
+def _batch_key(filter: Filter, team_id: int, entity: Optional[Entity] = None) -> str:
+    # Everything that goes into the query apart from the series themselves. Counting daily active users joins
+    # persons, which leaves out events without one, so those series are only batched with each other.
+    _, _, date_params = parse_timestamps(filter=filter, team_id=team_id)
+    return json.dumps(
+        {
+            "team_id": team_id,
+            "date_params": date_params,
+            "date_to": filter.date_to.strftime("%Y-%m-%d %H:%M:%S"),
+            "interval": filter.interval,
+            "time_diff": get_time_diff(filter.interval or "day", filter.date_from, filter.date_to, team_id=team_id),
+            "properties": [prop.to_dict() for prop in filter.properties],
+            "filter_test_accounts": filter.filter_test_accounts,
+            "person_join": entity is not None and entity.math == "dau",
+        },
+        sort_keys=True,
+        default=str,
+    )
+
+
+def _run_batch(group: List[Tuple[int, int, Filter, Entity]], team_id: int) -> List[Dict[str, Any]]:
+    # all filters in the group only differ in their series, any of them does for the rest
+    filter = group[0][2]
+    interval_annotation = get_trunc_func_ch(filter.interval)
+    num_intervals, seconds_in_interval, round_interval = get_time_diff(
+        filter.interval or "day", filter.date_from, filter.date_to, team_id=team_id
+    )
+    _, parsed_date_to, date_params = parse_timestamps(filter=filter, team_id=team_id)
+    prop_filters, prop_filter_params = parse_prop_clauses(
+        filter.properties, team_id, filter_test_accounts=filter.filter_test_accounts
+    )
+
+    params: Dict[str, Any] = {
+        "team_id": team_id,
+        "events": list({entity.id for _, _, _, entity in group}),
+        **prop_filter_params,
+        **date_params,
+    }
+    aggregate_columns = []
+    for index, (_, _, _, entity) in enumerate(group):
+        params["event_{}".format(index)] = entity.id
+        aggregate = BATCH_AGGREGATES[entity.math].format(event="event_{}".format(index))
+        aggregate_columns.append("{} AS total_{}".format(aggregate, index))
+
+    indexes = range(len(group))
+    sql = BATCH_VOLUME_SQL.format(
+        data_columns=", ".join("groupArray(count_{0}) as data_{0}".format(index) for index in indexes),
+        sum_columns=", ".join("SUM(total_{0}) AS count_{0}".format(index) for index in indexes),
+        zero_columns=", ".join("toUInt16(0) AS total_{}".format(index) for index in indexes),
+        aggregate_columns=", ".join(aggregate_columns),
+        interval=interval_annotation,
+        seconds_in_interval=seconds_in_interval,
+        num_intervals=num_intervals,
+        date_to=filter.date_to.strftime("%Y-%m-%d %H:%M:%S"),
+        event_join=EVENT_JOIN_PERSON_SQL if group[0][3].math == "dau" else "",
+        filters=prop_filters,
+        parsed_date_from=date_from_clause(interval_annotation, round_interval),
+        parsed_date_to=parsed_date_to,
+    )
+    dates, *data = sync_execute(sql, params)[0]
+    return [parse_response((dates, series_data), filter) for series_data in data]
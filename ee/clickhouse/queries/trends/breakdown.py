@@ -5,11 +5,19 @@ from django.db.models.manager import BaseManager
 from ee.clickhouse.client import sync_execute
 from ee.clickhouse.models.action import format_action_filter
 from ee.clickhouse.models.cohort import format_filter_query
+from ee.clickhouse.models.person import get_latest_person_sql
 from ee.clickhouse.models.property import parse_prop_clauses
-from ee.clickhouse.queries.trends.util import get_active_user_params, parse_response, process_math
+from ee.clickhouse.queries.trends.util import (
+    get_active_user_params,
+    get_sampling_factor,
+    parse_response,
+    process_math,
+    sample_clause,
+    scale_sampled_result,
+)
 from ee.clickhouse.queries.util import date_from_clause, get_time_diff, get_trunc_func_ch, parse_timestamps
 from ee.clickhouse.sql.events import EVENT_JOIN_PERSON_SQL, NULL_BREAKDOWN_SQL, NULL_SQL
-from ee.clickhouse.sql.person import GET_LATEST_PERSON_DISTINCT_ID_SQL, GET_LATEST_PERSON_SQL
+from ee.clickhouse.sql.person import GET_LATEST_PERSON_DISTINCT_ID_SQL
 from ee.clickhouse.sql.trends.breakdown import (
     BREAKDOWN_ACTIVE_USER_CONDITIONS_SQL,
     BREAKDOWN_ACTIVE_USER_INNER_SQL,
@@ -47,6 +55,8 @@ class ClickhouseTrendsBreakdown:
             props_to_filter, team_id, table_name="e", filter_test_accounts=filter.filter_test_accounts
         )
         aggregate_operation, _, math_params = process_math(entity)
+        sampling_factor = get_sampling_factor(filter, entity)
+        sample = sample_clause(sampling_factor)
 
         if entity.math == "dau" or filter.breakdown_type == "person":
             join_condition = EVENT_JOIN_PERSON_SQL
@@ -93,11 +103,11 @@ class ClickhouseTrendsBreakdown:
             )
         elif filter.breakdown_type == "person":
             _params, breakdown_filter, _breakdown_filter_params, breakdown_value = self._breakdown_person_params(
-                "count(*)" if entity.math == "dau" else aggregate_operation, filter, team_id
+                "count(*)" if entity.math == "dau" else aggregate_operation, filter, team_id, sample
             )
         else:
             _params, breakdown_filter, _breakdown_filter_params, breakdown_value = self._breakdown_prop_params(
-                "count(*)" if entity.math == "dau" else aggregate_operation, filter, team_id
+                "count(*)" if entity.math == "dau" else aggregate_operation, filter, team_id, sample
             )
 
         if len(_params["values"]) == 0:
@@ -110,12 +120,12 @@ class ClickhouseTrendsBreakdown:
             breakdown_filter = breakdown_filter.format(**breakdown_filter_params)
             content_sql = breakdown_query.format(
                 breakdown_filter=breakdown_filter,
+                sample=sample,
                 event_join=join_condition,
                 aggregate_operation=aggregate_operation,
                 breakdown_value=breakdown_value,
             )
-
-            return content_sql, params, self._parse_single_aggregate_result(filter, entity)
+            parse_function = self._parse_single_aggregate_result(filter, entity)
 
         else:
 
@@ -139,6 +149,7 @@ class ClickhouseTrendsBreakdown:
                     interval_annotation=interval_annotation,
                     breakdown_value=breakdown_value,
                     conditions=conditions,
+                    latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
                     **active_user_params,
                     **breakdown_filter_params
                 )
@@ -146,6 +157,7 @@ class ClickhouseTrendsBreakdown:
                 conditions = BREAKDOWN_CONDITIONS_SQL.format(**breakdown_filter_params)
                 inner_sql = BREAKDOWN_INNER_SQL.format(
                     breakdown_filter=breakdown_filter,
+                    sample=sample,
                     event_join=join_condition,
                     aggregate_operation=aggregate_operation,
                     interval_annotation=interval_annotation,
@@ -153,9 +165,12 @@ class ClickhouseTrendsBreakdown:
                     conditions=conditions,
                 )
 
-            breakdown_query = breakdown_query.format(null_sql=null_sql, inner_sql=inner_sql)
+            content_sql = breakdown_query.format(null_sql=null_sql, inner_sql=inner_sql)
+            parse_function = self._parse_trend_result(filter, entity)
 
-            return breakdown_query, params, self._parse_trend_result(filter, entity)
+        if sampling_factor:
+            parse_function = scale_sampled_result(parse_function, entity, sampling_factor)
+        return content_sql, params, parse_function
 
     def _get_breakdown_query(self, filter: Filter):
         if filter.display in TRENDS_DISPLAY_BY_VALUE:
@@ -171,7 +186,7 @@ class ClickhouseTrendsBreakdown:
 
         return params, breakdown_filter, breakdown_filter_params, "value"
 
-    def _breakdown_person_params(self, aggregate_operation: str, filter: Filter, team_id: int):
+    def _breakdown_person_params(self, aggregate_operation: str, filter: Filter, team_id: int, sample: str = ""):
         parsed_date_from, parsed_date_to, _ = parse_timestamps(filter=filter, team_id=team_id)
         prop_filters, prop_filter_params = parse_prop_clauses(
             filter.properties, team_id, table_name="e", filter_test_accounts=filter.filter_test_accounts
@@ -187,10 +202,11 @@ class ClickhouseTrendsBreakdown:
         elements_query = TOP_PERSON_PROPS_ARRAY_OF_KEY_SQL.format(
             parsed_date_from=parsed_date_from,
             parsed_date_to=parsed_date_to,
-            latest_person_sql=GET_LATEST_PERSON_SQL.format(query=""),
+            latest_person_sql=get_latest_person_sql(),
             prop_filters=prop_filters,
             person_prop_filters=person_prop_filters,
             aggregate_operation=aggregate_operation,
+            sample=sample,
             latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
         )
         top_elements_array = self._get_top_elements(
@@ -201,12 +217,12 @@ class ClickhouseTrendsBreakdown:
         }
         breakdown_filter = BREAKDOWN_PERSON_PROP_JOIN_SQL
         breakdown_filter_params = {
-            "latest_person_sql": GET_LATEST_PERSON_SQL.format(query=""),
+            "latest_person_sql": get_latest_person_sql(),
         }
 
         return params, breakdown_filter, breakdown_filter_params, "value"
 
-    def _breakdown_prop_params(self, aggregate_operation: str, filter: Filter, team_id: int):
+    def _breakdown_prop_params(self, aggregate_operation: str, filter: Filter, team_id: int, sample: str = ""):
         parsed_date_from, parsed_date_to, _ = parse_timestamps(filter=filter, team_id=team_id)
         prop_filters, prop_filter_params = parse_prop_clauses(
             filter.properties, team_id, table_name="e", filter_test_accounts=filter.filter_test_accounts
@@ -216,6 +232,7 @@ class ClickhouseTrendsBreakdown:
             parsed_date_to=parsed_date_to,
             prop_filters=prop_filters,
             aggregate_operation=aggregate_operation,
+            sample=sample,
         )
         top_elements_array = self._get_top_elements(elements_query, filter, team_id, params=prop_filter_params)
         params = {
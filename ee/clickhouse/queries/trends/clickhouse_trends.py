@@ -1,24 +1,30 @@
-from typing import Any, Callable, Dict, List, Tuple
+import logging
+from functools import partial
+from time import time
+from typing import Any, Callable, Dict, List, Optional, Tuple
 
 from django.conf import settings
 from django.db.models.query import Prefetch
 from django.utils import timezone
 from sentry_sdk.api import capture_exception
 
-from ee.clickhouse.client import sync_execute
+from ee.clickhouse.client import run_concurrently, sync_execute
 from ee.clickhouse.queries.trends.breakdown import ClickhouseTrendsBreakdown
 from ee.clickhouse.queries.trends.formula import ClickhouseTrendsFormula
 from ee.clickhouse.queries.trends.lifecycle import ClickhouseLifecycle
 from ee.clickhouse.queries.trends.normal import ClickhouseTrendsNormal
+from ee.clickhouse.queries.trends.util import add_sampling_error_margins
 from posthog.constants import TREND_FILTER_TYPE_ACTIONS, TRENDS_CUMULATIVE, TRENDS_LIFECYCLE
 from posthog.models.action import Action
 from posthog.models.action_step import ActionStep
 from posthog.models.entity import Entity
 from posthog.models.filters import Filter
 from posthog.models.team import Team
-from posthog.queries.base import handle_compare
+from posthog.queries.base import convert_to_comparison, determine_compared_filter, handle_compare
 from posthog.queries.trends import Trends
-from posthog.utils import relative_date_parse
+from posthog.utils import get_query_tags, relative_date_parse, tag_queries
+
+logger = logging.getLogger(__name__)
 
 
 class ClickhouseTrends(
@@ -46,21 +52,43 @@ class ClickhouseTrends(
 
     def _run_query(self, filter: Filter, entity: Entity, team_id: int) -> List[Dict[str, Any]]:
         sql, params, parse_function = self._get_sql_for_entity(filter, entity, team_id)
+        result = self._execute(sql, params)
+        return self._serialize_result(filter, entity, parse_function(result))
+
+    def _execute(self, sql: str, params: Dict) -> List:
+        start_time = time()
         try:
-            result = sync_execute(sql, params)
+            return sync_execute(sql, params)
         except Exception as e:
             capture_exception(e)
             if settings.TEST or settings.DEBUG:
                 raise e
-            result = []
-        result = parse_function(result)
+            return []
+        finally:
+            logger.debug("Trends query for series %s took %.3fs", get_query_tags().get("series"), time() - start_time)
+
+    def _serialize_result(self, filter: Filter, entity: Entity, result: List) -> List[Dict[str, Any]]:
         serialized_data = self._format_serialized(entity, result)
 
         if filter.display == TRENDS_CUMULATIVE:
             serialized_data = self._handle_cumulative(serialized_data)
-        return serialized_data
+        # after accumulating, a running total of sampled counts is itself a sampled count
+        return add_sampling_error_margins(serialized_data, entity)
 
     def run(self, filter: Filter, team: Team, *args, **kwargs) -> List[Dict[str, Any]]:
+        with tag_queries(kind=self._query_kind(filter)):
+            return self._run(filter, team)
+
+    def _query_kind(self, filter: Filter) -> str:
+        if filter.formula:
+            return "formula"
+        elif filter.breakdown:
+            return "breakdown"
+        elif filter.shown_as == TRENDS_LIFECYCLE:
+            return "lifecycle"
+        return "normal"
+
+    def _run(self, filter: Filter, team: Team) -> List[Dict[str, Any]]:
         actions = Action.objects.filter(team_id=team.pk).order_by("-id")
         if len(filter.actions) > 0:
             actions = Action.objects.filter(pk__in=[entity.id for entity in filter.actions], team_id=team.pk)
@@ -71,14 +99,36 @@ class ClickhouseTrends(
         if filter.formula:
             return handle_compare(filter, self._run_formula_query, team)
 
-        result = []
+        # One query per series and compared period. The queries are put together here, as that may hit Postgres, and
+        # sent to ClickHouse concurrently.
+        series: List[Tuple[Filter, Entity, Optional[str]]] = []
         for entity in filter.entities:
             if entity.type == TREND_FILTER_TYPE_ACTIONS:
                 try:
                     entity.name = actions.get(id=entity.id).name
                 except Action.DoesNotExist:
                     continue
-            entities_list = handle_compare(filter, self._run_query, team, entity=entity)
-            result.extend(entities_list)
+            if filter.compare:
+                series.append((filter, entity, "current"))
+                series.append((determine_compared_filter(filter), entity, "previous"))
+            else:
+                series.append((filter, entity, None))
+
+        queries = [self._get_sql_for_entity(series_filter, entity, team.pk) for series_filter, entity, _ in series]
+        results = run_concurrently(
+            [partial(self._execute_series, index, sql, params) for index, (sql, params, _) in enumerate(queries)],
+            settings.CLICKHOUSE_TRENDS_MAX_PARALLEL_QUERIES,
+        )
+
+        result = []
+        for (series_filter, entity, compare_label), (_, _, parse_function), rows in zip(series, queries, results):
+            serialized_data = self._serialize_result(series_filter, entity, parse_function(rows))
+            if compare_label:
+                serialized_data = convert_to_comparison(serialized_data, series_filter, compare_label)
+            result.extend(serialized_data)
 
         return result
+
+    def _execute_series(self, index: int, sql: str, params: Dict) -> List:
+        with tag_queries(series=index):
+            return self._execute(sql, params)
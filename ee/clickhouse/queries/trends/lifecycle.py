@@ -10,6 +10,7 @@ from ee.clickhouse.models.person import get_persons_by_distinct_ids, get_persons
 from ee.clickhouse.models.property import parse_prop_clauses
 from ee.clickhouse.queries.trends.util import parse_response
 from ee.clickhouse.queries.util import get_earliest_timestamp, get_time_diff, get_trunc_func_ch, parse_timestamps
+from ee.clickhouse.sql.person import GET_LATEST_PERSON_DISTINCT_ID_SQL
 from ee.clickhouse.sql.trends.lifecycle import LIFECYCLE_PEOPLE_SQL, LIFECYCLE_SQL
 from posthog.constants import TREND_FILTER_TYPE_ACTIONS
 from posthog.models.action import Action
@@ -66,6 +67,7 @@ class ClickhouseLifecycle(LifecycleTrend):
         return (
             LIFECYCLE_SQL.format(
                 interval=interval_string,
+                latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
                 trunc_func=trunc_func,
                 event_query=event_query,
                 filters=prop_filters,
@@ -138,6 +140,7 @@ class ClickhouseLifecycle(LifecycleTrend):
         result = sync_execute(
             LIFECYCLE_PEOPLE_SQL.format(
                 interval=interval_string,
+                latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
                 trunc_func=trunc_func,
                 event_query=event_query,
                 filters=prop_filters,
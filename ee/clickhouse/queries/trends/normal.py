@@ -1,22 +1,47 @@
 from datetime import timedelta
 from typing import Any, Callable, Dict, List, Tuple
 
+from django.conf import settings
 from django.utils import timezone
 
 from ee.clickhouse.client import format_sql, sync_execute
 from ee.clickhouse.models.action import format_action_filter
 from ee.clickhouse.models.property import parse_prop_clauses
-from ee.clickhouse.queries.trends.util import get_active_user_params, parse_response, process_math
+from ee.clickhouse.queries.trends.util import (
+    get_active_user_params,
+    get_sampling_factor,
+    parse_response,
+    process_math,
+    sample_clause,
+    scale_sampled_result,
+)
 from ee.clickhouse.queries.util import date_from_clause, get_time_diff, get_trunc_func_ch, parse_timestamps
 from ee.clickhouse.sql.events import NULL_SQL
+from ee.clickhouse.sql.person import GET_LATEST_PERSON_DISTINCT_ID_SQL
 from ee.clickhouse.sql.trends.aggregate import AGGREGATE_SQL
-from ee.clickhouse.sql.trends.volume import ACTIVE_USER_SQL, VOLUME_SQL, VOLUME_TOTAL_AGGREGATE_SQL
-from posthog.constants import MONTHLY_ACTIVE, TREND_FILTER_TYPE_ACTIONS, TRENDS_DISPLAY_BY_VALUE, WEEKLY_ACTIVE
+from ee.clickhouse.sql.trends.volume import (
+    ACTIVE_USER_SQL,
+    VOLUME_ROLLUP_SQL,
+    VOLUME_SQL,
+    VOLUME_TOTAL_AGGREGATE_ROLLUP_SQL,
+    VOLUME_TOTAL_AGGREGATE_SQL,
+)
+from posthog.constants import (
+    MONTHLY_ACTIVE,
+    TREND_FILTER_TYPE_ACTIONS,
+    TREND_FILTER_TYPE_EVENTS,
+    TRENDS_DISPLAY_BY_VALUE,
+    WEEKLY_ACTIVE,
+)
 from posthog.models.action import Action
 from posthog.models.entity import Entity
 from posthog.models.filters import Filter
 
 
+# The rollup has one row per day, so it can only answer queries with whole days as buckets and date bounds
+ROLLUP_INTERVALS = ("day", "week", "month")
+
+
 class ClickhouseTrendsNormal:
     def _normal_query(self, entity: Entity, filter: Filter, team_id: int) -> Tuple[str, Dict, Callable]:
 
@@ -50,26 +75,30 @@ class ClickhouseTrendsNormal:
 
         entity_params, entity_format_params = self._populate_entity_params(entity)
         params = {**params, **entity_params}
+        use_rollup = self._can_use_rollup(entity, filter, props_to_filter, aggregate_operation)
+        # the rollup is exact and cheaper than any sample
+        sampling_factor = None if use_rollup else get_sampling_factor(filter, entity)
+        content_sql_params["sample"] = sample_clause(sampling_factor)
 
         if filter.display in TRENDS_DISPLAY_BY_VALUE:
-            content_sql = VOLUME_TOTAL_AGGREGATE_SQL.format(**content_sql_params).format(**entity_format_params)
+            volume_total_sql = VOLUME_TOTAL_AGGREGATE_ROLLUP_SQL if use_rollup else VOLUME_TOTAL_AGGREGATE_SQL
+            content_sql = volume_total_sql.format(**content_sql_params).format(**entity_format_params)
             time_range = self._enumerate_time_range(filter, seconds_in_interval)
 
-            return (
-                content_sql,
-                params,
-                lambda result: [
-                    {"aggregated_value": result[0][0] if result and len(result) else 0, "days": time_range}
-                ],
-            )
+            parse_function: Callable = lambda result: [
+                {"aggregated_value": result[0][0] if result and len(result) else 0, "days": time_range}
+            ]
         else:
 
             if entity.math in [WEEKLY_ACTIVE, MONTHLY_ACTIVE]:
                 sql_params = get_active_user_params(filter, entity, team_id)
-                content_sql = ACTIVE_USER_SQL.format(**content_sql_params, **sql_params).format(**entity_format_params)
+                content_sql = ACTIVE_USER_SQL.format(
+                    **content_sql_params, **sql_params, latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL
+                ).format(**entity_format_params)
             else:
                 # entity_format_params depends on format clause from content_sql_params
-                content_sql = VOLUME_SQL.format(**content_sql_params).format(**entity_format_params)
+                volume_sql = VOLUME_ROLLUP_SQL if use_rollup else VOLUME_SQL
+                content_sql = volume_sql.format(**content_sql_params).format(**entity_format_params)
 
             null_sql = NULL_SQL.format(
                 interval=interval_annotation,
@@ -77,8 +106,29 @@ class ClickhouseTrendsNormal:
                 num_intervals=num_intervals,
                 date_to=filter.date_to.strftime("%Y-%m-%d %H:%M:%S"),
             )
-            final_query = AGGREGATE_SQL.format(null_sql=null_sql, content_sql=content_sql)
-            return final_query, params, self._parse_normal_result(filter)
+            content_sql = AGGREGATE_SQL.format(null_sql=null_sql, content_sql=content_sql)
+            parse_function = self._parse_normal_result(filter)
+
+        if sampling_factor:
+            parse_function = scale_sampled_result(parse_function, entity, sampling_factor)
+        return content_sql, params, parse_function
+
+    def _can_use_rollup(self, entity: Entity, filter: Filter, props_to_filter: List, aggregate_operation: str) -> bool:
+        """
+        Whether the event_counts_daily rollup gives the same answer as raw events: a plain count of one event, no
+        property filters, whole days. Everything else (actions, math, hourly intervals...) reads raw events.
+        """
+        return (
+            settings.CLICKHOUSE_TRENDS_USE_ROLLUP
+            and entity.type == TREND_FILTER_TYPE_EVENTS
+            and entity.math not in [WEEKLY_ACTIVE, MONTHLY_ACTIVE]
+            and aggregate_operation == "count(*)"
+            and len(props_to_filter) == 0
+            and not filter.filter_test_accounts
+            and (filter.interval or "day").lower() in ROLLUP_INTERVALS
+            # these get hourly date bounds, see format_ch_timestamp
+            and filter._date_from not in ["-24h", "-48h"]
+        )
 
     def _enumerate_time_range(self, filter: Filter, seconds_in_interval: int) -> List[str]:
         date_from = filter.date_from
@@ -0,0 +1,75 @@
+from unittest.mock import patch
+from uuid import uuid4
+
+from freezegun import freeze_time
+
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.models.event import create_event
+from ee.clickhouse.queries.trends.batch import batch_trends, get_batch_key
+from ee.clickhouse.queries.trends.clickhouse_trends import ClickhouseTrends
+from ee.clickhouse.util import ClickhouseTestMixin
+from posthog.constants import TRENDS_CUMULATIVE
+from posthog.models import Person
+from posthog.models.filters.filter import Filter
+from posthog.test.base import APIBaseTest
+
+
+def _create_event(**kwargs):
+    kwargs.update({"event_uuid": uuid4()})
+    create_event(**kwargs)
+
+
+class TestBatchTrends(ClickhouseTestMixin, APIBaseTest):
+    CLASS_DATA_LEVEL_SETUP = False
+
+    def setUp(self):
+        super().setUp()
+        Person.objects.create(team_id=self.team.pk, distinct_ids=["p1", "p1_alias"])
+        Person.objects.create(team_id=self.team.pk, distinct_ids=["p2"])
+        for day, distinct_id, event, browser in [
+            (1, "p1", "$pageview", "Chrome"),
+            (1, "p1_alias", "$pageview", "Safari"),
+            (2, "p2", "$pageview", "Chrome"),
+            (2, "p1", "sign up", "Chrome"),
+            (3, "anonymous", "$pageview", "Chrome"),
+            (4, "p2", "sign up", "Safari"),
+        ]:
+            _create_event(
+                team=self.team,
+                event=event,
+                distinct_id=distinct_id,
+                properties={"$browser": browser},
+                timestamp=f"2020-01-0{day}T12:00:00Z",
+            )
+
+    def _filter(self, events, **data) -> Filter:
+        return Filter(data={"date_from": "2019-12-30", "date_to": "2020-01-05", "events": events, **data})
+
+    @freeze_time("2020-01-05T13:00:00Z")
+    def test_same_results_as_trends(self):
+        filters = [
+            self._filter([{"id": "$pageview"}, {"id": "sign up"}]),
+            self._filter([{"id": "$pageview", "math": "dau"}]),
+            self._filter([{"id": "sign up"}, {"id": "$pageview", "math": "dau"}], display=TRENDS_CUMULATIVE),
+            self._filter([{"id": "$pageview"}], interval="week"),
+            self._filter([{"id": "$pageview"}], properties=[{"key": "$browser", "value": "Chrome"}]),
+            self._filter([{"id": "$pageview"}], breakdown="$browser"),
+        ]
+
+        with patch("ee.clickhouse.queries.trends.batch.sync_execute", wraps=sync_execute) as batch_execute:
+            results = batch_trends(filters, self.team)
+
+        # counts and daily active users by day, by week, and with the property filter
+        self.assertEqual(batch_execute.call_count, 4)
+        self.assertIsNone(results[-1])
+        for filter, result in zip(filters[:-1], results[:-1]):
+            self.assertEqual(result, ClickhouseTrends().run(filter, self.team))
+
+    def test_batch_key(self):
+        key = get_batch_key(self._filter([{"id": "$pageview"}]), self.team.pk)
+        self.assertIsNotNone(key)
+        self.assertEqual(get_batch_key(self._filter([{"id": "sign up", "math": "dau"}]), self.team.pk), key)
+        self.assertNotEqual(get_batch_key(self._filter([{"id": "$pageview"}], interval="week"), self.team.pk), key)
+        self.assertIsNone(get_batch_key(self._filter([{"id": "$pageview"}], breakdown="$browser"), self.team.pk))
+        self.assertIsNone(get_batch_key(self._filter([{"id": "$pageview", "math": "sum"}]), self.team.pk))
+        self.assertIsNone(get_batch_key(self._filter([{"id": 1, "type": "actions"}]), self.team.pk))
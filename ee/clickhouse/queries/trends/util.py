@@ -1,9 +1,18 @@
+import math
+import time
 from datetime import timedelta
-from typing import Any, Dict, Optional, Tuple
+from typing import Any, Callable, Dict, List, Optional, Tuple
 
+from ee.clickhouse.client import sync_execute
 from ee.clickhouse.queries.util import format_ch_timestamp, get_earliest_timestamp
-from ee.clickhouse.sql.events import EVENT_JOIN_PERSON_SQL
-from posthog.constants import WEEKLY_ACTIVE
+from ee.clickhouse.sql.clickhouse import data_table
+from ee.clickhouse.sql.events import (
+    EVENT_JOIN_PERSON_SQL,
+    EVENTS_SAMPLING_KEY,
+    EVENTS_TABLE,
+    GET_TABLE_SAMPLING_KEY_SQL,
+)
+from posthog.constants import TRENDS_LIFECYCLE, WEEKLY_ACTIVE
 from posthog.models.entity import Entity
 from posthog.models.filters import Filter
 
@@ -18,6 +27,20 @@ MATH_FUNCTIONS = {
     "p99": "quantile(0.99)",
 }
 
+# Math that can be estimated from a sample of events: totals are scaled up by the sampling factor, averages and
+# percentiles are taken from the sample as is. Unique users (dau, weekly and monthly active) and min/max can't be
+# estimated from a sample, those are always computed from all events.
+SAMPLED_MATH_SCALED = (None, "total", "sum")
+SAMPLED_MATH_UNSCALED = ("avg", "median", "p90", "p95", "p99")
+
+# Sampled counts come with the half-width of their 95% confidence interval
+SAMPLING_CONFIDENCE_Z = 1.96
+
+# How long to wait before looking again whether events can be sampled, while 0014_events_sampling_key hasn't run
+SAMPLING_KEY_CHECK_SECONDS = 5 * 60
+
+_events_sampling_cache: Optional[Tuple[float, bool]] = None
+
 
 def process_math(entity: Entity) -> Tuple[str, str, Dict[str, Optional[str]]]:
     aggregate_operation = "count(*)"
@@ -86,3 +109,84 @@ def get_active_user_params(filter: Filter, entity: Entity, team_id: int) -> Dict
             )
 
     return params
+
+
+def get_sampling_factor(filter: Filter, entity: Entity) -> Optional[float]:
+    """
+    Share of events to read for `entity`, None if it has to be computed exactly.
+    """
+    if (
+        filter.sampling_factor
+        and events_table_can_be_sampled()
+        and not filter.formula
+        and filter.shown_as != TRENDS_LIFECYCLE
+        and entity.math in SAMPLED_MATH_SCALED + SAMPLED_MATH_UNSCALED
+    ):
+        return filter.sampling_factor
+    return None
+
+
+def events_table_can_be_sampled() -> bool:
+    """
+    Whether events have an integer sampling key, which ClickHouse requires for SAMPLE. Tables created before
+    0014_events_sampling_key sample by uuid, sampling_factor is ignored until they're migrated.
+    """
+    global _events_sampling_cache
+    # Once migrated, the key doesn't change back
+    cached = _events_sampling_cache
+    if cached is not None and (cached[1] or time.monotonic() - cached[0] < SAMPLING_KEY_CHECK_SECONDS):
+        return cached[1]
+
+    rows = sync_execute(GET_TABLE_SAMPLING_KEY_SQL, {"table": data_table(EVENTS_TABLE)})
+    can_be_sampled = bool(rows) and rows[0][0] == EVENTS_SAMPLING_KEY
+    _events_sampling_cache = (time.monotonic(), can_be_sampled)
+    return can_be_sampled
+
+
+def sample_clause(factor: Optional[float]) -> str:
+    return "SAMPLE {}".format(factor) if factor else ""
+
+
+def scale_sampled_result(parse_function: Callable, entity: Entity, factor: float) -> Callable:
+    """
+    Wraps the parse function of a query that read `factor` of the events, so that its results estimate all events.
+    """
+    scale = 1 / factor if entity.math in SAMPLED_MATH_SCALED else 1
+
+    def _parse(result: List) -> List:
+        parsed_results = parse_function(result)
+        for parsed_result in parsed_results:
+            if scale != 1:
+                if "data" in parsed_result:
+                    parsed_result["data"] = [value * scale for value in parsed_result["data"]]
+                    parsed_result["count"] = parsed_result["count"] * scale
+                if "aggregated_value" in parsed_result:
+                    parsed_result["aggregated_value"] = parsed_result["aggregated_value"] * scale
+            parsed_result["sampling_factor"] = factor
+        return parsed_results
+
+    return _parse
+
+
+def add_sampling_error_margins(serialized_data: List[Dict[str, Any]], entity: Entity) -> List[Dict[str, Any]]:
+    """
+    Adds error margins to sampled counts. A count estimated as x comes from x * f sampled events, which are binomially
+    distributed: the standard deviation of the estimate is sqrt(x * (1 - f) / f). Sums and averages depend on how the
+    property is distributed, those don't get a margin.
+    """
+    if entity.math not in (None, "total"):
+        return serialized_data
+
+    for series in serialized_data:
+        factor = series.get("sampling_factor")
+        if not factor:
+            continue
+
+        def margin(value: float) -> float:
+            return SAMPLING_CONFIDENCE_Z * math.sqrt(max(value, 0) * (1 - factor) / factor)  # type: ignore
+
+        if "aggregated_value" in series:
+            series["aggregated_error_margin"] = margin(series["aggregated_value"])
+        else:
+            series["error_margin"] = [margin(value) for value in series["data"]]
+    return serialized_data
@@ -0,0 +1,34 @@
+# The chunks of a backfill, see ee.clickhouse.backfill: every partition of the table, and team within it when chunking
+# by team, with its number of rows
+GET_BACKFILL_CHUNKS_SQL = """
+SELECT toString({partition_expression}) AS chunk_partition, {team_id} AS chunk_team_id, count()
+FROM {table}
+GROUP BY chunk_partition, chunk_team_id
+ORDER BY chunk_partition, chunk_team_id
+"""
+
+# Substituted for {chunk_filter} in the backfill's query. Matches the partition key exactly, so that ClickHouse only
+# reads the chunk's partition.
+BACKFILL_CHUNK_FILTER = "toString({partition_expression}) = %(partition)s"
+BACKFILL_CHUNK_TEAM_FILTER = " AND team_id = %(team_id)s"
+
+# What a chunk wrote before its run crashed or failed, deleted before it's run again
+CLEAR_BACKFILL_CHUNK_SQL = """
+ALTER TABLE {table} {on_cluster} DELETE WHERE {chunk_filter}
+"""
+
+# Merges running on the table, and the number of active parts of its fullest partition. ClickHouse slows down inserts
+# into a partition with more than parts_to_delay_insert parts (150 by default), and refuses them past
+# parts_to_throw_insert (300).
+GET_TABLE_MERGE_PRESSURE_SQL = """
+SELECT
+    (SELECT count() FROM system.merges WHERE database = currentDatabase() AND table = %(table)s),
+    (
+        SELECT max(parts) FROM (
+            SELECT count() AS parts
+            FROM system.parts
+            WHERE active AND database = currentDatabase() AND table = %(table)s
+            GROUP BY partition_id
+        )
+    )
+"""
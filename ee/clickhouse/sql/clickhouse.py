@@ -1,6 +1,15 @@
 from typing import Optional
 
-from posthog.settings import CLICKHOUSE_ENABLE_STORAGE_POLICY, CLICKHOUSE_REPLICATION, KAFKA_HOSTS, TEST
+from posthog.settings import (
+    CLICKHOUSE_CLUSTER,
+    CLICKHOUSE_DATABASE,
+    CLICKHOUSE_ENABLE_STORAGE_POLICY,
+    CLICKHOUSE_REPLICATION,
+    CLICKHOUSE_SHARDED,
+    CLICKHOUSE_SHARDING_KEY,
+    KAFKA_HOSTS,
+    TEST,
+)
 
 STORAGE_POLICY = "SETTINGS storage_policy = 'hot_to_cold'" if CLICKHOUSE_ENABLE_STORAGE_POLICY else ""
 TABLE_ENGINE = (
@@ -15,6 +24,19 @@ TABLE_MERGE_ENGINE = (
     else "MergeTree()"
 )
 
+DISTRIBUTED_ENGINE = "Distributed('{cluster}', '{database}', '{data_table}', {sharding_key})"
+
+# Rows are spread over shards by these hashes, see sharding_key
+SHARDING_KEY_EXPRESSIONS = {
+    "team_id": "sipHash64(team_id)",
+    "distinct_id": "sipHash64(distinct_id)",
+}
+
+DISTRIBUTED_TABLE_SQL = """
+CREATE TABLE IF NOT EXISTS {table_name} AS {data_table}
+ENGINE = {engine}
+"""
+
 KAFKA_ENGINE = "Kafka('{kafka_host}', '{topic}', '{group}', '{serialization}')"
 
 KAFKA_PROTO_ENGINE = """
@@ -44,6 +66,41 @@ def table_engine(table: str, ver: Optional[str] = None) -> str:
         return TABLE_MERGE_ENGINE.format(table=table)
 
 
+def data_table(table: str) -> str:
+    """
+    The table holding the rows of `table`: itself, or the shard-local table behind it when sharded.
+    DDL and mutations go to this table, everything else to `table`.
+    """
+    return "sharded_" + table if CLICKHOUSE_SHARDED else table
+
+
+def on_cluster() -> str:
+    # For DDL run outside migrations, which are applied host by host, see migrate_clickhouse
+    return "ON CLUSTER '{}'".format(CLICKHOUSE_CLUSTER) if CLICKHOUSE_SHARDED else ""
+
+
+def sharding_key(without_distinct_id: Optional[str] = None, key: str = CLICKHOUSE_SHARDING_KEY) -> str:
+    """
+    Sharding key expression as per CLICKHOUSE_SHARDING_KEY. Tables without a distinct_id column pass the expression
+    to use instead of it in `without_distinct_id`.
+    """
+    if key not in SHARDING_KEY_EXPRESSIONS:
+        raise ValueError("CLICKHOUSE_SHARDING_KEY must be one of {}".format(", ".join(SHARDING_KEY_EXPRESSIONS)))
+    if key == "distinct_id" and without_distinct_id is not None:
+        return without_distinct_id
+    return SHARDING_KEY_EXPRESSIONS[key]
+
+
+def distributed_table_sql(table: str, key: str, database: str = CLICKHOUSE_DATABASE) -> str:
+    return DISTRIBUTED_TABLE_SQL.format(
+        table_name=table,
+        data_table="sharded_" + table,
+        engine=DISTRIBUTED_ENGINE.format(
+            cluster=CLICKHOUSE_CLUSTER, database=database, data_table="sharded_" + table, sharding_key=key
+        ),
+    )
+
+
 def kafka_engine(
     topic: str,
     kafka_host=KAFKA_HOSTS,
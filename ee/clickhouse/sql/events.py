@@ -1,6 +1,16 @@
+from typing import Optional
+
 from ee.kafka_client.topics import KAFKA_EVENTS
 
-from .clickhouse import KAFKA_COLUMNS, STORAGE_POLICY, kafka_engine, table_engine
+from .clickhouse import (
+    KAFKA_COLUMNS,
+    STORAGE_POLICY,
+    data_table,
+    distributed_table_sql,
+    kafka_engine,
+    sharding_key,
+    table_engine,
+)
 from .person import GET_LATEST_PERSON_DISTINCT_ID_SQL
 
 DROP_EVENTS_TABLE_SQL = """
@@ -27,6 +37,7 @@ CREATE TABLE {table_name}
     created_at DateTime64(6, 'UTC')
     {materialized_columns}
     {extra_fields}
+    {indexes}
 ) ENGINE = {engine} 
 """
 
@@ -37,26 +48,67 @@ EVENTS_TABLE_MATERIALIZED_COLUMNS = """
     , properties_test_prop VARCHAR materialized trim(BOTH '\"' FROM JSONExtractRaw(properties, 'test_prop'))
 """
 
-EVENTS_TABLE_SQL = (
+# Data skipping indexes, so that filtering on event names or denormalized properties doesn't read every granule of
+# the team's date range. Existing tables get new indexes through a migration, see 0011_events_indexes.
+EVENTS_TABLE_INDEXES = {
+    "event_bloom_filter": "event TYPE bloom_filter(0.01) GRANULARITY 4",
+    "properties_issampledevent_bloom_filter": "properties_issampledevent TYPE bloom_filter(0.01) GRANULARITY 4",
+    "properties_currentscreen_bloom_filter": "properties_currentscreen TYPE bloom_filter(0.01) GRANULARITY 4",
+    "properties_objectname_bloom_filter": "properties_objectname TYPE bloom_filter(0.01) GRANULARITY 4",
+}
+
+ADD_EVENTS_TABLE_INDEX_SQL = """
+ALTER TABLE {table} {on_cluster} ADD INDEX IF NOT EXISTS {name} {definition}
+"""
+
+# Indexes only cover parts written after they were added, this rewrites the index for the older ones in a mutation
+MATERIALIZE_EVENTS_TABLE_INDEX_SQL = """
+ALTER TABLE {table} {on_cluster} MATERIALIZE INDEX {name}
+"""
+
+# ClickHouse only samples by unsigned integers, events created with `SAMPLE BY uuid` are moved to a table sampled by
+# this in 0014_events_sampling_key
+EVENTS_SAMPLING_KEY = "cityHash64(uuid)"
+
+EVENTS_DATA_TABLE_SQL = (
     EVENTS_TABLE_BASE_SQL
     + """PARTITION BY toYYYYMM(timestamp)
-ORDER BY (team_id, toDate(timestamp), distinct_id, uuid)
-SAMPLE BY uuid 
+ORDER BY (team_id, toDate(timestamp), distinct_id, {sampling_key})
+SAMPLE BY {sampling_key}
 {storage_policy}
 """
-).format(
-    table_name=EVENTS_TABLE,
-    engine=table_engine(EVENTS_TABLE, "_timestamp"),
-    extra_fields=KAFKA_COLUMNS,
-    materialized_columns=EVENTS_TABLE_MATERIALIZED_COLUMNS,
-    storage_policy=STORAGE_POLICY,
 )
 
+
+def events_data_table_sql(table_name: str) -> str:
+    return EVENTS_DATA_TABLE_SQL.format(
+        table_name=table_name,
+        engine=table_engine(table_name, "_timestamp"),
+        extra_fields=KAFKA_COLUMNS,
+        materialized_columns=EVENTS_TABLE_MATERIALIZED_COLUMNS,
+        indexes="".join(
+            "\n    , INDEX {} {}".format(name, definition) for name, definition in EVENTS_TABLE_INDEXES.items()
+        ),
+        sampling_key=EVENTS_SAMPLING_KEY,
+        storage_policy=STORAGE_POLICY,
+    )
+
+
+EVENTS_TABLE_SQL = events_data_table_sql(data_table(EVENTS_TABLE))
+
+GET_TABLE_SAMPLING_KEY_SQL = """
+SELECT sampling_key FROM system.tables WHERE database = currentDatabase() AND name = %(table)s
+"""
+
+# Only created when sharded, see CLICKHOUSE_SHARDED. Ingestion writes to it, so rows land on their shard.
+DISTRIBUTED_EVENTS_TABLE_SQL = distributed_table_sql(EVENTS_TABLE, sharding_key())
+
 KAFKA_EVENTS_TABLE_SQL = EVENTS_TABLE_BASE_SQL.format(
     table_name="kafka_" + EVENTS_TABLE,
     engine=kafka_engine(topic=KAFKA_EVENTS, serialization="Protobuf", proto_schema="events:Event"),
     extra_fields="",
     materialized_columns="",
+    indexes="",
 )
 
 EVENTS_TABLE_MV_SQL = """
@@ -78,8 +130,88 @@ FROM kafka_{table_name}
     table_name=EVENTS_TABLE
 )
 
+# Daily event counts per team and event, kept up to date by a materialized view on events. Simple "count of X per
+# day/week/month" trends read this instead of scanning raw events, see ClickhouseTrendsNormal._can_use_rollup.
+# Deleting events (e.g. along with a person) is not reflected here.
+EVENT_COUNTS_DAILY_TABLE = "event_counts_daily"
+
+EVENT_COUNTS_DAILY_TABLE_SQL = """
+CREATE TABLE {table_name}
+(
+    team_id Int64,
+    event VARCHAR,
+    day Date,
+    count SimpleAggregateFunction(sum, UInt64)
+) ENGINE = AggregatingMergeTree()
+PARTITION BY toYYYYMM(day)
+ORDER BY (team_id, event, day)
+{storage_policy}
+""".format(
+    table_name=data_table(EVENT_COUNTS_DAILY_TABLE), storage_policy=STORAGE_POLICY
+)
+
+DISTRIBUTED_EVENT_COUNTS_DAILY_TABLE_SQL = distributed_table_sql(
+    EVENT_COUNTS_DAILY_TABLE, sharding_key(without_distinct_id="rand()")
+)
+
+EVENT_COUNTS_DAILY_MV_BASE_SQL = """
+CREATE MATERIALIZED VIEW {table_name}_mv
+TO {table_name}
+AS SELECT
+team_id,
+event,
+toDate(timestamp) AS day,
+toUInt64(count()) AS count
+FROM {source_table}
+{where}
+GROUP BY team_id, event, day
+"""
+
+
+def event_counts_daily_mv_sql(since: Optional[str] = None) -> str:
+    """
+    The view counts events as they're inserted. With `since`, only those from then on, the ones before are left to
+    POPULATE_EVENT_COUNTS_DAILY_SQL with the same boundary.
+    """
+    return EVENT_COUNTS_DAILY_MV_BASE_SQL.format(
+        table_name=data_table(EVENT_COUNTS_DAILY_TABLE),
+        source_table=data_table(EVENTS_TABLE),
+        where="WHERE timestamp >= toDateTime('{}', 'UTC')".format(since) if since else "",
+    )
+
+
+EVENT_COUNTS_DAILY_MV_SQL = event_counts_daily_mv_sql()
+
+# Counts the events before the boundary the view was created with, the view counts the ones after. The boundary is on
+# the event timestamp rather than on when events were inserted, so that events inserted while this runs are counted
+# exactly once. When sharded, the view and this count the events of each shard into that same shard.
+POPULATE_EVENT_COUNTS_DAILY_SQL = """
+INSERT INTO {table_name}
+SELECT team_id, event, toDate(timestamp) AS day, toUInt64(count()) AS count
+FROM {source_table}
+WHERE timestamp < toDateTime('{{until}}', 'UTC')
+GROUP BY team_id, event, day
+""".format(
+    table_name=data_table(EVENT_COUNTS_DAILY_TABLE), source_table=data_table(EVENTS_TABLE)
+)
+
+DROP_EVENT_COUNTS_DAILY_TABLE_SQL = """
+DROP TABLE {}
+""".format(
+    EVENT_COUNTS_DAILY_TABLE
+)
+
+DROP_EVENT_COUNTS_DAILY_MV_SQL = """
+DROP TABLE {}_mv
+""".format(
+    data_table(EVENT_COUNTS_DAILY_TABLE)
+)
+
+# Columns are listed, so that the insert doesn't depend on which materialized columns are DEFAULT at the moment, see
+# MODIFY_MATERIALIZED_COLUMN_SQL
 INSERT_EVENT_SQL = """
-INSERT INTO events SELECT %(uuid)s, %(event)s, %(properties)s, %(timestamp)s, %(team_id)s, %(distinct_id)s, %(elements_chain)s, %(created_at)s, now(), 0
+INSERT INTO events (uuid, event, properties, timestamp, team_id, distinct_id, elements_chain, created_at, _timestamp, _offset)
+SELECT %(uuid)s, %(event)s, %(properties)s, %(timestamp)s, %(team_id)s, %(distinct_id)s, %(elements_chain)s, %(created_at)s, now(), 0
 """
 
 GET_EVENTS_SQL = """
@@ -201,7 +333,8 @@ INNER JOIN (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE
 )
 
 GET_EVENTS_WITH_PROPERTIES = """
-SELECT * FROM events WHERE 
+SELECT uuid, event, properties, timestamp, team_id, distinct_id, elements_chain, created_at, _timestamp, _offset
+FROM events WHERE
 team_id = %(team_id)s
 {filters}
 {order_by}
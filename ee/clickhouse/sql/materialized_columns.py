@@ -0,0 +1,74 @@
+from .clickhouse import table_engine
+
+MATERIALIZED_COLUMNS_TABLE = "materialized_columns"
+
+# Registry of property columns added to events by ee.clickhouse.materialized_columns, one row per
+# (table, property). Rows are replaced when the backfill finishes, read with argMax on updated_at.
+MATERIALIZED_COLUMNS_TABLE_SQL = """
+CREATE TABLE {table_name}
+(
+    source_table VARCHAR,
+    property VARCHAR,
+    column_name VARCHAR,
+    backfilled UInt8,
+    created_at DateTime64(6, 'UTC'),
+    updated_at DateTime64(6, 'UTC')
+) ENGINE = {engine}
+ORDER BY (source_table, property)
+""".format(
+    table_name=MATERIALIZED_COLUMNS_TABLE, engine=table_engine(MATERIALIZED_COLUMNS_TABLE, "updated_at")
+)
+
+DROP_MATERIALIZED_COLUMNS_TABLE_SQL = """
+DROP TABLE IF EXISTS {table_name}
+""".format(
+    table_name=MATERIALIZED_COLUMNS_TABLE
+)
+
+GET_MATERIALIZED_COLUMNS_SQL = """
+SELECT property, argMax(column_name, updated_at), argMax(backfilled, updated_at)
+FROM {table_name}
+WHERE source_table = %(table)s
+GROUP BY property
+""".format(
+    table_name=MATERIALIZED_COLUMNS_TABLE
+)
+
+INSERT_MATERIALIZED_COLUMN_SQL = """
+INSERT INTO {table_name} (source_table, property, column_name, backfilled, created_at, updated_at) VALUES
+""".format(
+    table_name=MATERIALIZED_COLUMNS_TABLE
+)
+
+# Same expression as the hardcoded EVENTS_TABLE_MATERIALIZED_COLUMNS, so values match what
+# prop_filter_json_extract would compute from the JSON
+MATERIALIZED_PROPERTY_EXPRESSION = "trim(BOTH '\"' FROM JSONExtractRaw(properties, %(property)s))"
+
+ADD_MATERIALIZED_COLUMN_SQL = """
+ALTER TABLE {table} {on_cluster} ADD COLUMN IF NOT EXISTS {column} VARCHAR MATERIALIZED {expression}
+"""
+
+# When sharded, the Distributed table reads the column from the shards, it only needs to know it's there
+ADD_DISTRIBUTED_COLUMN_SQL = """
+ALTER TABLE {table} {on_cluster} ADD COLUMN IF NOT EXISTS {column} VARCHAR
+"""
+
+# Parts written before the column was added compute it on read. To store it for them, the column is
+# temporarily turned into a DEFAULT column (MATERIALIZED columns can't be UPDATEd), rewritten, and switched back.
+# The type is left out on purpose, ClickHouse refuses type changes for columns used by a skipping index.
+# While DEFAULT, the column is returned by SELECT * and expected by INSERTs without a column list, which is why the
+# events queries list their columns.
+MODIFY_MATERIALIZED_COLUMN_SQL = """
+ALTER TABLE {table} {on_cluster} MODIFY COLUMN {column} {kind} {expression}
+"""
+
+# Run partition by partition as a backfill, see ee.clickhouse.backfill
+BACKFILL_MATERIALIZED_COLUMN_SQL = """
+ALTER TABLE {table} {on_cluster} UPDATE {column} = {column} WHERE timestamp > '{cutoff}' AND {{chunk_filter}}
+"""
+
+# Columns a backfill was cut short on, see MODIFY_MATERIALIZED_COLUMN_SQL
+GET_DEFAULT_MATERIALIZED_COLUMNS_SQL = """
+SELECT name FROM system.columns
+WHERE database = currentDatabase() AND table = %(table)s AND default_kind = 'DEFAULT' AND startsWith(name, 'mat_')
+"""
@@ -1,6 +1,15 @@
 from ee.kafka_client.topics import KAFKA_PERSON, KAFKA_PERSON_UNIQUE_ID
 
-from .clickhouse import KAFKA_COLUMNS, STORAGE_POLICY, kafka_engine, table_engine
+from .clickhouse import (
+    KAFKA_COLUMNS,
+    STORAGE_POLICY,
+    data_table,
+    distributed_table_sql,
+    kafka_engine,
+    on_cluster,
+    sharding_key,
+    table_engine,
+)
 
 DROP_PERSON_TABLE_SQL = """
 DROP TABLE person
@@ -31,12 +40,14 @@ PERSONS_TABLE_SQL = (
 {storage_policy}
 """
 ).format(
-    table_name=PERSONS_TABLE,
-    engine=table_engine(PERSONS_TABLE, "_timestamp"),
+    table_name=data_table(PERSONS_TABLE),
+    engine=table_engine(data_table(PERSONS_TABLE), "_timestamp"),
     extra_fields=KAFKA_COLUMNS,
     storage_policy=STORAGE_POLICY,
 )
 
+DISTRIBUTED_PERSONS_TABLE_SQL = distributed_table_sql(PERSONS_TABLE, sharding_key(without_distinct_id="sipHash64(id)"))
+
 KAFKA_PERSONS_TABLE_SQL = PERSONS_TABLE_BASE_SQL.format(
     table_name="kafka_" + PERSONS_TABLE, engine=kafka_engine(KAFKA_PERSON), extra_fields="",
 )
@@ -57,19 +68,43 @@ FROM kafka_{table_name}
     table_name=PERSONS_TABLE
 )
 
+# person is a ReplacingMergeTree keyed on (team_id, id) and versioned by _timestamp, so merges already keep only the
+# latest version of each person. Parts that haven't been merged yet are handled with argMax, in a single pass over the
+# team's persons. Columns are aggregated under other names, as aliasing them to their own name would clash with the
+# other aggregates using them. `query` filters (e.g. on properties) apply to the latest version.
 GET_LATEST_PERSON_SQL = """
-SELECT * FROM person JOIN (
-    SELECT id, max(_timestamp) as _timestamp FROM person WHERE team_id = %(team_id)s GROUP BY id
-) as person_max ON person.id = person_max.id AND person._timestamp = person_max._timestamp
+SELECT
+    id,
+    latest_created_at AS created_at,
+    team_id,
+    latest_properties AS properties,
+    latest_is_identified AS is_identified,
+    latest_timestamp AS _timestamp,
+    latest_offset AS _offset
+FROM (
+    SELECT
+        id,
+        team_id,
+        argMax(created_at, _timestamp) AS latest_created_at,
+        argMax(properties, _timestamp) AS latest_properties,
+        argMax(is_identified, _timestamp) AS latest_is_identified,
+        argMax(_offset, _timestamp) AS latest_offset,
+        max(_timestamp) AS latest_timestamp
+    FROM person
+    WHERE team_id = %(team_id)s
+    GROUP BY team_id, id
+)
 WHERE team_id = %(team_id)s
 {query}
 """
 
+# Reads person_distinct_id_latest in a single pass. Parts that haven't been merged yet can still hold older rows for a
+# distinct_id, hence the argMax
 GET_LATEST_PERSON_DISTINCT_ID_SQL = """
-SELECT * FROM person_distinct_id JOIN (
-    SELECT distinct_id, max(_offset) as _offset FROM person_distinct_id WHERE team_id = %(team_id)s GROUP BY distinct_id
-) as person_max ON person_distinct_id.distinct_id = person_max.distinct_id AND person_distinct_id._offset = person_max._offset
+SELECT distinct_id, argMax(person_id, (_offset, _timestamp)) as person_id, team_id
+FROM person_distinct_id_latest
 WHERE team_id = %(team_id)s
+GROUP BY team_id, distinct_id
 """
 
 GET_LATEST_PERSON_ID_SQL = """
@@ -105,12 +140,15 @@ PERSONS_DISTINCT_ID_TABLE_SQL = (
 {storage_policy}
 """
 ).format(
-    table_name=PERSONS_DISTINCT_ID_TABLE,
-    engine=table_engine(PERSONS_DISTINCT_ID_TABLE, "_timestamp"),
+    table_name=data_table(PERSONS_DISTINCT_ID_TABLE),
+    engine=table_engine(data_table(PERSONS_DISTINCT_ID_TABLE), "_timestamp"),
     extra_fields=KAFKA_COLUMNS,
     storage_policy=STORAGE_POLICY,
 )
 
+# Sharded like events, so that joining events to the persons of their distinct IDs is shard-local
+DISTRIBUTED_PERSONS_DISTINCT_ID_TABLE_SQL = distributed_table_sql(PERSONS_DISTINCT_ID_TABLE, sharding_key())
+
 KAFKA_PERSONS_DISTINCT_ID_TABLE_SQL = PERSONS_DISTINCT_ID_TABLE_BASE_SQL.format(
     table_name="kafka_" + PERSONS_DISTINCT_ID_TABLE, engine=kafka_engine(KAFKA_PERSON_UNIQUE_ID), extra_fields="",
 )
@@ -130,6 +168,67 @@ FROM kafka_{table_name}
     table_name=PERSONS_DISTINCT_ID_TABLE
 )
 
+#
+# Latest person for each distinct id
+#
+
+# Fed from person_distinct_id (itself fed from Kafka) by a materialized view. Keyed on the distinct id only, so merges
+# collapse each distinct id to its latest row instead of every query having to find it with a self-join.
+PERSON_DISTINCT_ID_LATEST_TABLE = "person_distinct_id_latest"
+
+PERSON_DISTINCT_ID_LATEST_TABLE_SQL = """
+CREATE TABLE {table_name}
+(
+    distinct_id VARCHAR,
+    person_id UUID,
+    team_id Int64,
+    _timestamp DateTime,
+    _offset UInt64
+) ENGINE = {engine}
+Order By (team_id, distinct_id)
+{storage_policy}
+""".format(
+    table_name=data_table(PERSON_DISTINCT_ID_LATEST_TABLE),
+    engine=table_engine(data_table(PERSON_DISTINCT_ID_LATEST_TABLE), "_offset"),
+    storage_policy=STORAGE_POLICY,
+)
+
+DISTRIBUTED_PERSON_DISTINCT_ID_LATEST_TABLE_SQL = distributed_table_sql(
+    PERSON_DISTINCT_ID_LATEST_TABLE, sharding_key()
+)
+
+PERSON_DISTINCT_ID_LATEST_MV_SQL = """
+CREATE MATERIALIZED VIEW {table_name}_mv
+TO {table_name}
+AS SELECT
+distinct_id,
+person_id,
+team_id,
+_timestamp,
+_offset
+FROM {source_table}
+""".format(
+    table_name=data_table(PERSON_DISTINCT_ID_LATEST_TABLE), source_table=data_table(PERSONS_DISTINCT_ID_TABLE)
+)
+
+POPULATE_PERSON_DISTINCT_ID_LATEST_SQL = """
+INSERT INTO {table_name} SELECT distinct_id, person_id, team_id, _timestamp, _offset FROM {source_table}
+""".format(
+    table_name=data_table(PERSON_DISTINCT_ID_LATEST_TABLE), source_table=data_table(PERSONS_DISTINCT_ID_TABLE)
+)
+
+DROP_PERSON_DISTINCT_ID_LATEST_TABLE_SQL = """
+DROP TABLE {}
+""".format(
+    PERSON_DISTINCT_ID_LATEST_TABLE
+)
+
+DROP_PERSON_DISTINCT_ID_LATEST_MV_SQL = """
+DROP TABLE {}_mv
+""".format(
+    data_table(PERSON_DISTINCT_ID_LATEST_TABLE)
+)
+
 #
 # Static Cohort
 #
@@ -232,32 +331,57 @@ INSERT INTO person_distinct_id SELECT %(id)s, %(distinct_id)s, %(person_id)s, %(
 """
 
 UPDATE_PERSON_PROPERTIES = """
-ALTER TABLE person UPDATE properties = %(properties)s where id = %(id)s
-"""
+ALTER TABLE {table} {on_cluster} UPDATE properties = %(properties)s where id = %(id)s
+""".format(
+    table=data_table(PERSONS_TABLE), on_cluster=on_cluster()
+)
 
 UPDATE_PERSON_ATTACHED_DISTINCT_ID = """
-ALTER TABLE person_distinct_id UPDATE person_id = %(person_id)s where distinct_id = %(distinct_id)s
-"""
+ALTER TABLE {table} {on_cluster} UPDATE person_id = %(person_id)s where distinct_id = %(distinct_id)s
+""".format(
+    table=data_table(PERSONS_DISTINCT_ID_TABLE), on_cluster=on_cluster()
+)
+
+# Mutations don't go through materialized views, they need to be run against person_distinct_id_latest as well
+UPDATE_PERSON_LATEST_ATTACHED_DISTINCT_ID = """
+ALTER TABLE {table} {on_cluster} UPDATE person_id = %(person_id)s where distinct_id = %(distinct_id)s
+""".format(
+    table=data_table(PERSON_DISTINCT_ID_LATEST_TABLE), on_cluster=on_cluster()
+)
 
 DELETE_PERSON_BY_ID = """
-ALTER TABLE person DELETE where id = %(id)s
-"""
+ALTER TABLE {table} {on_cluster} DELETE where id = %(id)s
+""".format(
+    table=data_table(PERSONS_TABLE), on_cluster=on_cluster()
+)
 
 DELETE_PERSON_EVENTS_BY_ID = """
-ALTER TABLE events DELETE
+ALTER TABLE {table} {on_cluster} DELETE
 where distinct_id IN (
     SELECT distinct_id FROM person_distinct_id WHERE person_id=%(id)s AND team_id = %(team_id)s
 )
 AND team_id = %(team_id)s
-"""
+""".format(
+    table=data_table("events"), on_cluster=on_cluster()
+)
 
 DELETE_PERSON_DISTINCT_ID_BY_PERSON_ID = """
-ALTER TABLE person_distinct_id DELETE where person_id = %(id)s
-"""
+ALTER TABLE {table} {on_cluster} DELETE where person_id = %(id)s
+""".format(
+    table=data_table(PERSONS_DISTINCT_ID_TABLE), on_cluster=on_cluster()
+)
+
+DELETE_PERSON_LATEST_DISTINCT_ID_BY_PERSON_ID = """
+ALTER TABLE {table} {on_cluster} DELETE where person_id = %(id)s
+""".format(
+    table=data_table(PERSON_DISTINCT_ID_LATEST_TABLE), on_cluster=on_cluster()
+)
 
 UPDATE_PERSON_IS_IDENTIFIED = """
-ALTER TABLE person UPDATE is_identified = %(is_identified)s where id = %(id)s
-"""
+ALTER TABLE {table} {on_cluster} UPDATE is_identified = %(is_identified)s where id = %(id)s
+""".format(
+    table=data_table(PERSONS_TABLE), on_cluster=on_cluster()
+)
 
 PERSON_TREND_SQL = """
 SELECT DISTINCT distinct_id FROM events WHERE team_id = %(team_id)s {entity_filter} {filters} {parsed_date_from} {parsed_date_to} {person_filter}
@@ -309,14 +433,11 @@ INSERT INTO {cohort_table} SELECT generateUUIDv4(), id, %(cohort_id)s, %(team_id
 """
 
 GET_DISTINCT_IDS_BY_PROPERTY_SQL = """
-SELECT distinct_id FROM person_distinct_id JOIN (
-    SELECT distinct_id, max(_offset) as _offset FROM person_distinct_id WHERE team_id = %(team_id)s GROUP BY distinct_id
-) as person_max ON person_distinct_id.distinct_id = person_max.distinct_id AND person_distinct_id._offset = person_max._offset
-WHERE team_id = %(team_id)s
-AND person_id IN
-(
-    SELECT id
-    FROM person
-    WHERE team_id = %(team_id)s {filters}
+SELECT distinct_id FROM (
+    {latest_distinct_id_sql}
+)
+WHERE person_id IN {latest_person_id_sql}
+""".format(
+    latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
+    latest_person_id_sql=GET_LATEST_PERSON_ID_SQL.format(query="{filters}"),
 )
-"""
@@ -0,0 +1,59 @@
+# Queries tagged with posthog.utils.tag_queries carry their tags as JSON in log_comment
+QUERY_LOG_SUMMARY_SQL = """
+SELECT
+    JSONExtractString(log_comment, 'insight') AS insight,
+    JSONExtractString(log_comment, 'kind') AS kind,
+    JSONExtractString(log_comment, 'profile') AS profile,
+    {extra_columns}
+    count() AS queries,
+    quantile(0.5)(query_duration_ms) AS p50_ms,
+    quantile(0.95)(query_duration_ms) AS p95_ms,
+    max(query_duration_ms) AS max_ms,
+    sum(query_duration_ms) AS total_ms,
+    sum(read_rows) AS read_rows,
+    sum(read_bytes) AS read_bytes,
+    max(memory_usage) AS max_memory_usage
+FROM system.query_log
+WHERE type = 'QueryFinish'
+  AND event_time > now() - INTERVAL %(hours)s HOUR
+  AND log_comment != ''
+GROUP BY insight, kind, profile {extra_group_by}
+ORDER BY {order_by} DESC
+LIMIT %(limit)s
+"""
+
+# Distinct SELECTs on events run within a `tag_queries(benchmark=...)` block, see clickhouse_index_benchmark
+BENCHMARK_QUERIES_SQL = """
+SELECT any(JSONExtractString(log_comment, 'insight')) AS insight, query
+FROM system.query_log
+WHERE type = 'QueryFinish'
+  AND query_kind = 'Select'
+  AND event_time > now() - INTERVAL 1 DAY
+  AND JSONExtractString(log_comment, 'benchmark') = %(benchmark)s
+  AND has(tables, concat(currentDatabase(), '.events'))
+GROUP BY query
+"""
+
+BENCHMARK_SUMMARY_SQL = """
+SELECT
+    JSONExtractString(log_comment, 'insight') AS insight,
+    JSONExtractString(log_comment, 'benchmark_query') AS benchmark_query,
+    sumIf(ProfileEvents['SelectedMarks'], JSONExtractString(log_comment, 'skip_indexes') = 'off') AS marks_before,
+    sumIf(ProfileEvents['SelectedMarks'], JSONExtractString(log_comment, 'skip_indexes') = 'on') AS marks_after,
+    sumIf(read_rows, JSONExtractString(log_comment, 'skip_indexes') = 'off') AS rows_before,
+    sumIf(read_rows, JSONExtractString(log_comment, 'skip_indexes') = 'on') AS rows_after,
+    sumIf(query_duration_ms, JSONExtractString(log_comment, 'skip_indexes') = 'off') AS ms_before,
+    sumIf(query_duration_ms, JSONExtractString(log_comment, 'skip_indexes') = 'on') AS ms_after
+FROM system.query_log
+WHERE type = 'QueryFinish'
+  AND event_time > now() - INTERVAL 1 DAY
+  AND JSONExtractString(log_comment, 'benchmark') = %(benchmark)s
+  AND JSONExtractString(log_comment, 'skip_indexes') != ''
+GROUP BY insight, benchmark_query
+ORDER BY marks_before - marks_after DESC
+"""
+
+# Queries currently running, not counting this one
+RUNNING_QUERIES_SQL = """
+SELECT count() - 1 FROM system.processes
+"""
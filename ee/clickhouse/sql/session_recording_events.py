@@ -1,6 +1,14 @@
 from ee.kafka_client.topics import KAFKA_SESSION_RECORDING_EVENTS
 
-from .clickhouse import KAFKA_COLUMNS, STORAGE_POLICY, kafka_engine, table_engine, ttl_period
+from .clickhouse import (
+    KAFKA_COLUMNS,
+    data_table,
+    distributed_table_sql,
+    kafka_engine,
+    sharding_key,
+    table_engine,
+    ttl_period,
+)
 
 SESSION_RECORDING_EVENTS_TABLE = "session_recording_events"
 
@@ -26,12 +34,14 @@ ORDER BY (team_id, toHour(timestamp), session_id, timestamp, uuid)
 SETTINGS index_granularity=512
 """
 ).format(
-    table_name=SESSION_RECORDING_EVENTS_TABLE,
+    table_name=data_table(SESSION_RECORDING_EVENTS_TABLE),
     extra_fields=KAFKA_COLUMNS,
-    engine=table_engine(SESSION_RECORDING_EVENTS_TABLE, "_timestamp"),
+    engine=table_engine(data_table(SESSION_RECORDING_EVENTS_TABLE), "_timestamp"),
     ttl_period=ttl_period(),
 )
 
+DISTRIBUTED_SESSION_RECORDING_EVENTS_TABLE_SQL = distributed_table_sql(SESSION_RECORDING_EVENTS_TABLE, sharding_key())
+
 KAFKA_SESSION_RECORDING_EVENTS_TABLE_SQL = SESSION_RECORDING_EVENTS_TABLE_BASE_SQL.format(
     table_name="kafka_" + SESSION_RECORDING_EVENTS_TABLE,
     engine=kafka_engine(topic=KAFKA_SESSION_RECORDING_EVENTS),
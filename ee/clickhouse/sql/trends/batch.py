@@ -0,0 +1,13 @@
+# Several trends series over the same events in one scan, see ee/clickhouse/queries/trends/batch.py. Same buckets and
+# zero filling as AGGREGATE_SQL around VOLUME_SQL, one column per series.
+BATCH_VOLUME_SQL = """
+SELECT groupArray(day_start) as date, {data_columns} FROM (
+    SELECT {sum_columns}, day_start FROM (
+        SELECT {zero_columns}, {interval}(toDateTime('{date_to}') - number * {seconds_in_interval}) as day_start from numbers({num_intervals})
+        UNION ALL
+        SELECT {aggregate_columns}, toDateTime({interval}(timestamp), 'UTC') as day_start from events {event_join}
+        where team_id = %(team_id)s AND event IN %(events)s {filters} {parsed_date_from} {parsed_date_to}
+        GROUP BY {interval}(timestamp)
+    ) group by day_start order by day_start
+)
+"""
@@ -26,7 +26,7 @@ SELECT
     toDateTime({interval_annotation}(timestamp), 'UTC') as day_start,
     {breakdown_value} as breakdown_value
 FROM
-events e {event_join} {breakdown_filter}
+events e {sample} {event_join} {breakdown_filter}
 GROUP BY day_start, breakdown_value
 """
 
@@ -37,25 +37,7 @@ FROM (
         SELECT toStartOfDay(timestamp) as timestamp FROM events e WHERE team_id = %(team_id)s {parsed_date_from_prev_range} {parsed_date_to} GROUP BY timestamp 
     ) d
     CROSS JOIN (
-        SELECT toStartOfDay(timestamp) as timestamp, person_id, {breakdown_value} as breakdown_value FROM events e INNER JOIN (
-            SELECT person_id,
-                distinct_id
-            FROM (
-                    SELECT *
-                    FROM person_distinct_id
-                    JOIN (
-                            SELECT distinct_id,
-                                max(_offset) as _offset
-                            FROM person_distinct_id
-                            WHERE team_id = %(team_id)s
-                            GROUP BY distinct_id
-                        ) as person_max
-                        ON person_distinct_id.distinct_id = person_max.distinct_id
-                    AND person_distinct_id._offset = person_max._offset
-                    WHERE team_id = %(team_id)s
-                )
-            WHERE team_id = %(team_id)s
-        ) as pid
+        SELECT toStartOfDay(timestamp) as timestamp, person_id, {breakdown_value} as breakdown_value FROM events e INNER JOIN (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) as pid
         ON e.distinct_id = pid.distinct_id
         {event_join}
         {conditions}
@@ -71,7 +53,7 @@ FROM (
 BREAKDOWN_AGGREGATE_QUERY_SQL = """
 SELECT {aggregate_operation} as total, {breakdown_value} as breakdown_value
 FROM
-events e {event_join} {breakdown_filter}
+events e {sample} {event_join} {breakdown_filter}
 GROUP BY breakdown_value
 """
 
@@ -21,20 +21,14 @@ SELECT groupArray(day_start) as date, groupArray(counts) as data, status FROM (
                         SELECT person_id, day as base_day, events.subsequent_day as subsequent_day  FROM (
                             SELECT DISTINCT person_id, {trunc_func}(events.timestamp) day FROM events 
                             JOIN
-                            (SELECT person_id,
-                                        distinct_id
-                                FROM person_distinct_id
-                                WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                            (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                             WHERE team_id = %(team_id)s AND {event_query} {filters}
                             GROUP BY person_id, day HAVING day <= toDateTime(%(date_to)s) AND day >= toDateTime(%(prev_date_from)s)
                         ) base
                         JOIN (
                             SELECT DISTINCT person_id, {trunc_func}(events.timestamp) subsequent_day FROM events 
                             JOIN
-                            (SELECT person_id,
-                                        distinct_id
-                                FROM person_distinct_id
-                                WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                            (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                             WHERE team_id = %(team_id)s AND {event_query} {filters}
                             GROUP BY person_id, subsequent_day HAVING subsequent_day <= toDateTime(%(date_to)s) AND subsequent_day >= toDateTime(%(prev_date_from)s)
                         ) events ON base.person_id = events.person_id 
@@ -45,10 +39,7 @@ SELECT groupArray(day_start) as date, groupArray(counts) as data, status FROM (
                     SELECT person_id, min(day) as base_day, min(day) as subsequent_day  FROM (
                         SELECT DISTINCT person_id, {trunc_func}(events.timestamp) day FROM events 
                         JOIN
-                        (SELECT person_id,
-                                    distinct_id
-                            FROM person_distinct_id
-                            WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                        (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                         WHERE team_id = %(team_id)s AND {event_query} {filters}
                         GROUP BY person_id, day HAVING day <= toDateTime(%(date_to)s) AND day >= toDateTime(%(prev_date_from)s)
                     ) base
@@ -58,10 +49,7 @@ SELECT groupArray(day_start) as date, groupArray(counts) as data, status FROM (
                         SELECT person_id, total as base_day, day_start as subsequent_day FROM (
                             SELECT DISTINCT person_id, groupArray({trunc_func}(events.timestamp)) day FROM events 
                             JOIN
-                            (SELECT person_id,
-                                        distinct_id
-                                FROM person_distinct_id
-                                WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                            (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                             WHERE team_id = %(team_id)s AND {event_query} {filters}
                             AND toDateTime(events.timestamp) <= toDateTime(%(date_to)s) AND {trunc_func}(events.timestamp) >= toDateTime(%(date_from)s)
                             GROUP BY person_id
@@ -78,10 +66,7 @@ SELECT groupArray(day_start) as date, groupArray(counts) as data, status FROM (
                 JOIN (
                     SELECT DISTINCT person_id, {trunc_func}(min(events.timestamp)) earliest FROM events 
                     JOIN
-                    (SELECT person_id,
-                                distinct_id
-                        FROM person_distinct_id
-                        WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                    (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                   WHERE team_id = %(team_id)s AND {event_query} {filters}
                     GROUP BY person_id
                 ) earliest ON e.person_id = earliest.person_id
@@ -102,20 +87,14 @@ SELECT person_id FROM (
             SELECT person_id, day as base_day, events.subsequent_day as subsequent_day  FROM (
                 SELECT DISTINCT person_id, {trunc_func}(events.timestamp) day FROM events 
                 JOIN
-                (SELECT person_id,
-                            distinct_id
-                    FROM person_distinct_id
-                    WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                 WHERE team_id = %(team_id)s AND {event_query} {filters}
                 GROUP BY person_id, day HAVING day <= toDateTime(%(date_to)s) AND day >= toDateTime(%(prev_date_from)s)
             ) base
             JOIN (
                 SELECT DISTINCT person_id, {trunc_func}(events.timestamp) subsequent_day FROM events 
                 JOIN
-                (SELECT person_id,
-                            distinct_id
-                    FROM person_distinct_id
-                    WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                 WHERE team_id = %(team_id)s AND {event_query} {filters}
                 GROUP BY person_id, subsequent_day HAVING subsequent_day <= toDateTime(%(date_to)s) AND subsequent_day >= toDateTime(%(prev_date_from)s)
             ) events ON base.person_id = events.person_id 
@@ -126,10 +105,7 @@ SELECT person_id FROM (
         SELECT person_id, min(day) as base_day, min(day) as subsequent_day  FROM (
             SELECT DISTINCT person_id, {trunc_func}(events.timestamp) day FROM events 
             JOIN
-            (SELECT person_id,
-                        distinct_id
-                FROM person_distinct_id
-                WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+            (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
             WHERE team_id = %(team_id)s AND {event_query} {filters}
             GROUP BY person_id, day HAVING day <= toDateTime(%(date_to)s) AND day >= toDateTime(%(prev_date_from)s)
         ) base
@@ -139,10 +115,7 @@ SELECT person_id FROM (
             SELECT person_id, dummy as base_day, day_start as subsequent_day FROM (
                 SELECT DISTINCT person_id, groupArray({trunc_func}(events.timestamp)) day FROM events 
                 JOIN
-                (SELECT person_id,
-                            distinct_id
-                    FROM person_distinct_id
-                    WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+                (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
                 WHERE team_id = %(team_id)s AND {event_query} {filters}
                 AND toDateTime(events.timestamp) <= toDateTime(%(date_to)s) AND {trunc_func}(events.timestamp) >= toDateTime(%(date_from)s)
                 GROUP BY person_id
@@ -159,10 +132,7 @@ SELECT person_id FROM (
     JOIN (
         SELECT DISTINCT person_id, {trunc_func}(min(events.timestamp)) earliest FROM events 
         JOIN
-        (SELECT person_id,
-                    distinct_id
-            FROM person_distinct_id
-            WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
+        (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) pdi on events.distinct_id = pdi.distinct_id
         WHERE team_id = %(team_id)s AND {event_query} {filters}
         GROUP BY person_id
     ) earliest ON e.person_id = earliest.person_id
@@ -3,7 +3,7 @@ SELECT groupArray(value) FROM (
     SELECT
         JSONExtractRaw(properties, %(key)s) as value,
         {aggregate_operation} as count
-    FROM events e
+    FROM events e {sample}
     WHERE
         team_id = %(team_id)s {parsed_date_from} {parsed_date_to} {prop_filters}
      AND JSONHas(properties, %(key)s)
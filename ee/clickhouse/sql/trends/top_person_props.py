@@ -2,7 +2,7 @@ TOP_PERSON_PROPS_ARRAY_OF_KEY_SQL = """
 SELECT groupArray(value) FROM (
     SELECT value, {aggregate_operation} as count
     FROM
-    events e 
+    events e {sample}
     INNER JOIN (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) as pid ON e.distinct_id = pid.distinct_id
     INNER JOIN
         (
@@ -1,9 +1,23 @@
 VOLUME_SQL = """
-SELECT {aggregate_operation} as data, toDateTime({interval}({timestamp}), 'UTC') as date from events {event_join} where team_id = %(team_id)s {entity_query} {filters} {parsed_date_from} {parsed_date_to} GROUP BY {interval}({timestamp})
+SELECT {aggregate_operation} as data, toDateTime({interval}({timestamp}), 'UTC') as date from events {sample} {event_join} where team_id = %(team_id)s {entity_query} {filters} {parsed_date_from} {parsed_date_to} GROUP BY {interval}({timestamp})
 """
 
 VOLUME_TOTAL_AGGREGATE_SQL = """
-SELECT {aggregate_operation} as data from events {event_join} where team_id = %(team_id)s {entity_query} {filters} {parsed_date_from} {parsed_date_to}
+SELECT {aggregate_operation} as data from events {sample} {event_join} where team_id = %(team_id)s {entity_query} {filters} {parsed_date_from} {parsed_date_to}
+"""
+
+# Same results as VOLUME_SQL / VOLUME_TOTAL_AGGREGATE_SQL with count(*) for a single event without filters, but read
+# from the daily rollup. `timestamp` is the start of the day, so the usual date clauses apply as is.
+VOLUME_ROLLUP_SQL = """
+SELECT sum(count) as data, toDateTime({interval}(timestamp), 'UTC') as date FROM (
+    SELECT toDateTime(day, 'UTC') as timestamp, count FROM event_counts_daily WHERE team_id = %(team_id)s AND event = %(event)s
+) WHERE 1 = 1 {parsed_date_from} {parsed_date_to} GROUP BY {interval}(timestamp)
+"""
+
+VOLUME_TOTAL_AGGREGATE_ROLLUP_SQL = """
+SELECT sum(count) as data FROM (
+    SELECT toDateTime(day, 'UTC') as timestamp, count FROM event_counts_daily WHERE team_id = %(team_id)s AND event = %(event)s
+) WHERE 1 = 1 {parsed_date_from} {parsed_date_to}
 """
 
 ACTIVE_USER_SQL = """
@@ -12,25 +26,7 @@ SELECT counts as total, timestamp as day_start FROM (
         SELECT toStartOfDay(timestamp) as timestamp FROM events WHERE team_id = %(team_id)s {parsed_date_from_prev_range} {parsed_date_to} GROUP BY timestamp 
     ) d
     CROSS JOIN (
-        SELECT toStartOfDay(timestamp) as timestamp, person_id FROM events INNER JOIN (
-            SELECT person_id,
-                distinct_id
-            FROM (
-                    SELECT *
-                    FROM person_distinct_id
-                    JOIN (
-                            SELECT distinct_id,
-                                max(_offset) as _offset
-                            FROM person_distinct_id
-                            WHERE team_id = %(team_id)s
-                            GROUP BY distinct_id
-                        ) as person_max
-                        ON person_distinct_id.distinct_id = person_max.distinct_id
-                    AND person_distinct_id._offset = person_max._offset
-                    WHERE team_id = %(team_id)s
-                )
-            WHERE team_id = %(team_id)s
-        ) as pid
+        SELECT toStartOfDay(timestamp) as timestamp, person_id FROM events INNER JOIN (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) as pid
         ON events.distinct_id = pid.distinct_id
         WHERE team_id = %(team_id)s {entity_query} {filters} {parsed_date_from_prev_range} {parsed_date_to} GROUP BY timestamp, person_id
     ) e WHERE e.timestamp <= d.timestamp AND e.timestamp > d.timestamp - INTERVAL {prev_interval}
@@ -45,25 +41,7 @@ SELECT DISTINCT person_id FROM (
         SELECT toStartOfDay(timestamp) as timestamp FROM events WHERE team_id = %(team_id)s {parsed_date_from_prev_range} {parsed_date_to} GROUP BY timestamp 
     ) d
     CROSS JOIN (
-        SELECT toStartOfDay(timestamp) as timestamp, person_id FROM events INNER JOIN (
-            SELECT person_id,
-                distinct_id
-            FROM (
-                    SELECT *
-                    FROM person_distinct_id
-                    JOIN (
-                            SELECT distinct_id,
-                                max(_offset) as _offset
-                            FROM person_distinct_id
-                            WHERE team_id = %(team_id)s
-                            GROUP BY distinct_id
-                        ) as person_max
-                        ON person_distinct_id.distinct_id = person_max.distinct_id
-                    AND person_distinct_id._offset = person_max._offset
-                    WHERE team_id = %(team_id)s
-                )
-            WHERE team_id = %(team_id)s
-        ) as pid
+        SELECT toStartOfDay(timestamp) as timestamp, person_id FROM events INNER JOIN (SELECT person_id, distinct_id FROM ({latest_distinct_id_sql}) WHERE team_id = %(team_id)s) as pid
         ON events.distinct_id = pid.distinct_id
         WHERE team_id = %(team_id)s {entity_query} {filters} {parsed_date_from_prev_range} {parsed_date_to} GROUP BY timestamp, person_id
     ) e WHERE e.timestamp <= d.timestamp AND e.timestamp > d.timestamp - INTERVAL {prev_interval}
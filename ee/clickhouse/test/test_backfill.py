@@ -0,0 +1,125 @@
+import threading
+from uuid import uuid4
+
+from django.db import connection
+
+from ee.clickhouse.backfill import Backfill, BackfillAlreadyRunning, get_backfill_status, run_backfill
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.models.event import create_event
+from ee.clickhouse.util import ClickhouseTestMixin
+from ee.models.backfill import BackfillChunk
+from posthog.models import Team
+from posthog.test.base import BaseTest
+
+COPY_EVENTS_SQL = "INSERT INTO events_copy SELECT * FROM events WHERE {chunk_filter}"
+
+
+def copy_events(**kwargs) -> Backfill:
+    return Backfill(**{"name": "copy", "sql": COPY_EVENTS_SQL, "target_table": "events_copy", **kwargs})
+
+
+class TestBackfill(ClickhouseTestMixin, BaseTest):
+    def setUp(self):
+        super().setUp()
+        sync_execute("CREATE TABLE IF NOT EXISTS events_copy AS events")
+
+    def tearDown(self):
+        sync_execute("DROP TABLE IF EXISTS events_copy")
+        super().tearDown()
+
+    def _create_events(self):
+        other_team = Team.objects.create(organization=self.organization)
+        for team, timestamp in [
+            (self.team, "2021-01-10T12:00:00Z"),
+            (self.team, "2021-01-11T12:00:00Z"),
+            (self.team, "2021-02-10T12:00:00Z"),
+            (other_team, "2021-02-10T12:00:00Z"),
+        ]:
+            create_event(event_uuid=uuid4(), event="$pageview", team=team, distinct_id="1", timestamp=timestamp)
+        return other_team
+
+    def test_chunks_by_partition_and_team(self):
+        other_team = self._create_events()
+
+        progress = run_backfill(copy_events(), concurrency=1)
+
+        self.assertEqual(sync_execute("SELECT count() FROM events_copy"), [(4,)])
+        self.assertEqual(
+            set(BackfillChunk.objects.values_list("partition", "team_id", "rows", "status")),
+            {
+                ("202101", self.team.pk, 2, "done"),
+                ("202102", self.team.pk, 1, "done"),
+                ("202102", other_team.pk, 1, "done"),
+            },
+        )
+        self.assertEqual((progress.chunks_done, progress.chunks_total, progress.rows), (3, 3, 4))
+
+    def test_chunks_by_partition(self):
+        self._create_events()
+
+        run_backfill(copy_events(by_team=False), concurrency=1)
+
+        self.assertEqual(sync_execute("SELECT count() FROM events_copy"), [(4,)])
+        self.assertEqual(
+            set(BackfillChunk.objects.values_list("partition", "team_id", "rows")),
+            {("202101", None, 2), ("202102", None, 2)},
+        )
+
+    def test_resumes_where_it_stopped(self):
+        self._create_events()
+        run_backfill(copy_events(), concurrency=1)
+        # As if the run had crashed halfway through the last chunk
+        chunk = BackfillChunk.objects.order_by("id").last()
+        chunk.status = BackfillChunk.Status.RUNNING
+        chunk.save()
+
+        progress = run_backfill(copy_events(), concurrency=1)
+
+        self.assertEqual(progress.rows, chunk.rows)
+        # What the chunk had written was deleted before it ran again
+        self.assertEqual(sync_execute("SELECT count() FROM events_copy"), [(4,)])
+        self.assertEqual(get_backfill_status("copy"), {"pending": 0, "running": 0, "done": 3, "failed": 0})
+
+    def test_failed_chunks_are_retried(self):
+        self._create_events()
+
+        progress = run_backfill(
+            copy_events(sql="INSERT INTO missing_table SELECT * FROM events WHERE {chunk_filter}"),
+            concurrency=1,
+        )
+
+        self.assertEqual(progress.chunks_failed, 3)
+        self.assertEqual(get_backfill_status("copy")["failed"], 3)
+        self.assertIsNotNone(BackfillChunk.objects.first().error)
+
+        progress = run_backfill(copy_events(), concurrency=1)
+
+        self.assertEqual(progress.chunks_failed, 0)
+        self.assertEqual(sync_execute("SELECT count() FROM events_copy"), [(4,)])
+
+    def test_only_one_run_at_a_time(self):
+        self._create_events()
+        locked, release = threading.Event(), threading.Event()
+
+        def other_run():
+            # Holds the backfill's lock on its own connection, as another run would
+            with connection.cursor() as cursor:
+                cursor.execute("SELECT pg_advisory_lock(hashtext(%s))", ["clickhouse_backfill:copy"])
+                locked.set()
+                release.wait()
+                cursor.execute("SELECT pg_advisory_unlock(hashtext(%s))", ["clickhouse_backfill:copy"])
+            connection.close()
+
+        thread = threading.Thread(target=other_run)
+        thread.start()
+        locked.wait()
+        try:
+            with self.assertRaises(BackfillAlreadyRunning):
+                run_backfill(copy_events(), concurrency=1)
+        finally:
+            release.set()
+            thread.join()
+
+        self.assertFalse(BackfillChunk.objects.exists())
+        run_backfill(copy_events(), concurrency=1)
+        self.assertEqual(sync_execute("SELECT count() FROM events_copy"), [(4,)])
@@ -1,10 +1,30 @@
 import datetime
+import json
+import uuid
+from decimal import Decimal
+from functools import partial
+from unittest.mock import ANY, patch
 
 import fakeredis
+from clickhouse_driver.errors import ServerException
 from django.test import TestCase
 from freezegun import freeze_time
 
-from ee.clickhouse.client import CACHE_TTL, _deserialize, _key_hash, cache_sync_execute
+from ee.clickhouse.client import (
+    CACHE_KEY_PREFIX,
+    CACHE_TTL,
+    CACHE_TTL_BY_INSIGHT,
+    QUERY_PROFILE_SETTINGS,
+    _deserialize,
+    _key_hash,
+    _serialize,
+    cache_sync_execute,
+    run_concurrently,
+    stream_execute,
+    sync_execute,
+)
+from posthog.constants import INSIGHT_FUNNELS, QueryProfile
+from posthog.utils import get_query_profile, get_query_tags, query_profile, tag_queries
 
 
 class ClickhouseClientTestCase(TestCase):
@@ -43,3 +63,133 @@ class ClickhouseClientTestCase(TestCase):
         with freeze_time(start + datetime.timedelta(seconds=CACHE_TTL + 10)):
             exists = self.redis_client.exists(_key_hash(query, args=args))
             self.assertFalse(exists)
+
+    def test_serialization_preserves_types(self):
+        result = [
+            (
+                datetime.datetime(2021, 1, 1, 12, 0, 0),
+                datetime.date(2021, 1, 1),
+                uuid.UUID(int=1),
+                Decimal("1.50"),
+                "string",
+                1.5,
+                [1, 2],
+                (3, "nested"),
+                {"key": "value"},
+            )
+        ]
+        self.assertEqual(_deserialize(_serialize(result)), result)
+
+        big_result = [(i, "x" * 100) for i in range(1000)]
+        serialized = _serialize(big_result)
+        self.assertLess(len(serialized), len(json.dumps(big_result)))
+        self.assertEqual(_deserialize(serialized), big_result)
+
+    def test_cached_results_are_not_unpickled(self):
+        with self.assertRaises(ValueError):
+            _deserialize(b"r" + b"\x80\x04cos\nsystem\n.")
+
+    def test_cache_keys_are_versioned(self):
+        self.assertTrue(_key_hash("select 1", None).startswith(CACHE_KEY_PREFIX))
+
+    def test_caching_ttl_by_insight(self):
+        with tag_queries(insight=INSIGHT_FUNNELS):
+            cache_sync_execute("select 1", redis_client=self.redis_client)
+        self.assertEqual(self.redis_client.ttl(_key_hash("select 1", None)), CACHE_TTL_BY_INSIGHT[INSIGHT_FUNNELS])
+
+    @patch("ee.clickhouse.client.CACHE_LOCK_POLL_INTERVAL", 0)
+    def test_concurrent_miss_waits_for_query_in_flight(self):
+        key = _key_hash("select 1", None)
+        self.redis_client.set(key + b"_lock", 1)
+
+        def result_lands(*args):
+            self.redis_client.set(key, _serialize([(2,)]))
+
+        with patch("ee.clickhouse.client.sleep", side_effect=result_lands), patch(
+            "ee.clickhouse.client.sync_execute"
+        ) as sync_execute:
+            res = cache_sync_execute("select 1", redis_client=self.redis_client)
+
+        self.assertEqual(res, [(2,)])
+        sync_execute.assert_not_called()
+
+    @patch("ee.clickhouse.client.CACHE_LOCK_TIMEOUT", 0)
+    @patch("ee.clickhouse.client.CACHE_LOCK_POLL_INTERVAL", 0)
+    def test_waiter_that_times_out_leaves_the_lock_alone(self):
+        lock_key = _key_hash("select 1", None) + b"_lock"
+        self.redis_client.set(lock_key, "other worker")
+
+        res = cache_sync_execute("select 1", redis_client=self.redis_client)
+
+        self.assertEqual(res, [(1,)])
+        self.assertEqual(self.redis_client.get(lock_key), b"other worker")
+
+    def test_expired_lock_taken_by_another_worker_is_not_released(self):
+        lock_key = _key_hash("select 1", None) + b"_lock"
+
+        def lock_expires_and_is_taken(*args, **kwargs):
+            self.redis_client.set(lock_key, "other worker")
+            return [(1,)]
+
+        with patch("ee.clickhouse.client.sync_execute", side_effect=lock_expires_and_is_taken):
+            cache_sync_execute("select 1", redis_client=self.redis_client)
+
+        self.assertEqual(self.redis_client.get(lock_key), b"other worker")
+
+        cache_sync_execute("select 2", redis_client=self.redis_client)
+        self.assertFalse(self.redis_client.exists(_key_hash("select 2", None) + b"_lock"))
+
+    def test_stream_execute(self):
+        self.assertEqual(list(stream_execute("SELECT number FROM numbers(3)")), [(0,), (1,), (2,)])
+
+        # Closing the stream halfway leaves the pool usable
+        rows = stream_execute("SELECT number FROM numbers(1000000)")
+        self.assertEqual(next(rows), (0,))
+        rows.close()
+        self.assertEqual(sync_execute("SELECT 1"), [(1,)])
+
+    def test_query_profile_settings(self):
+        with patch("ee.clickhouse.client.ch_pool") as ch_pool:
+            client = ch_pool.get_client.return_value.__enter__.return_value
+
+            sync_execute("SELECT 1")
+            self.assertEqual(client.execute.call_args[1]["settings"], QUERY_PROFILE_SETTINGS[QueryProfile.INTERACTIVE])
+
+            with query_profile(QueryProfile.BACKGROUND_TASK):
+                sync_execute("SELECT 1", settings={"max_threads": 2})
+            settings = client.execute.call_args[1]["settings"]
+            self.assertEqual(settings["max_threads"], 2)
+            self.assertEqual(settings["priority"], QUERY_PROFILE_SETTINGS[QueryProfile.BACKGROUND_TASK]["priority"])
+
+            sync_execute("SELECT 1", profile=QueryProfile.EXPORT)
+            self.assertEqual(client.execute.call_args[1]["settings"], QUERY_PROFILE_SETTINGS[QueryProfile.EXPORT])
+
+    def test_tagged_queries(self):
+        with patch("ee.clickhouse.client.ch_pool") as ch_pool, patch("ee.clickhouse.client.statsd") as statsd:
+            client = ch_pool.get_client.return_value.__enter__.return_value
+
+            with tag_queries(insight=INSIGHT_FUNNELS, team_id=2), tag_queries(filter_hash="abc"):
+                sync_execute("SELECT 1")
+
+        kwargs = client.execute.call_args[1]
+        self.assertEqual(
+            json.loads(kwargs["settings"]["log_comment"]),
+            {"insight": INSIGHT_FUNNELS, "team_id": 2, "filter_hash": "abc", "profile": "interactive"},
+        )
+        self.assertTrue(kwargs["query_id"].startswith("funnels_2_"))
+        statsd.Timer.return_value.send.assert_any_call("funnels", ANY)
+
+    def test_run_concurrently(self):
+        def query(number: int):
+            with tag_queries(series=number):
+                return sync_execute("SELECT %(number)s", {"number": number}), get_query_tags(), get_query_profile()
+
+        with tag_queries(team_id=2), query_profile(QueryProfile.BACKGROUND_TASK):
+            results = run_concurrently([partial(query, number) for number in range(5)], max_workers=3)
+        self.assertEqual(
+            results,
+            [([(number,)], {"team_id": 2, "series": number}, QueryProfile.BACKGROUND_TASK) for number in range(5)],
+        )
+
+        with self.assertRaises(ServerException):
+            run_concurrently([partial(sync_execute, "SELECT 1"), partial(sync_execute, "SELECT nope")], max_workers=2)
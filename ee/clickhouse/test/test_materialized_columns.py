@@ -0,0 +1,144 @@
+from uuid import uuid4
+
+from django.conf import settings
+
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.materialized_columns import (
+    backfill_materialized_column,
+    get_hot_properties,
+    get_interrupted_backfills,
+    get_materialized_columns,
+    materialize,
+    materialize_hot_properties,
+    materialized_column_name,
+)
+from ee.clickhouse.models.event import create_event
+from ee.clickhouse.sql.events import GET_EVENTS_WITH_PROPERTIES
+from ee.clickhouse.sql.materialized_columns import MATERIALIZED_PROPERTY_EXPRESSION, MODIFY_MATERIALIZED_COLUMN_SQL
+from ee.clickhouse.util import ClickhouseTestMixin
+from ee.models.backfill import BackfillChunk
+from posthog.models import Team
+from posthog.test.base import BaseTest
+
+
+class TestMaterializedColumns(ClickhouseTestMixin, BaseTest):
+    CLASS_DATA_LEVEL_SETUP = False
+
+    def test_column_name(self):
+        self.assertEqual(materialized_column_name("plan"), "mat_plan")
+        self.assertTrue(materialized_column_name("$browser").startswith("mat__browser_"))
+        self.assertNotEqual(materialized_column_name("$browser"), materialized_column_name("_browser"))
+        self.assertNotEqual(materialized_column_name("Plan"), materialized_column_name("plan"))
+
+    def test_hot_properties(self):
+        self.team.event_properties_with_usage = [
+            {"key": "$browser", "usage_count": 3, "volume": 10},
+            {"key": "plan", "usage_count": 1, "volume": 500},
+            {"key": "unused", "usage_count": 0, "volume": 1000},
+        ]
+        self.team.save()
+        other_team = Team.objects.create(organization=self.organization)
+        other_team.event_properties_with_usage = [
+            {"key": "plan", "usage_count": 2, "volume": 5},
+            {"key": "$os", "usage_count": 1, "volume": 1},
+        ]
+        other_team.save()
+
+        self.assertEqual(get_hot_properties(10), ["plan", "$browser", "$os"])
+        self.assertEqual(get_hot_properties(1), ["plan"])
+
+    def test_materialize_hot_properties(self):
+        self.team.event_properties_with_usage = [
+            {"key": "$browser", "usage_count": 3, "volume": 10},
+            {"key": "plan", "usage_count": 1, "volume": 500},
+        ]
+        self.team.save()
+
+        with self.settings(MATERIALIZE_COLUMNS_MAX_COLUMNS=1):
+            self.assertEqual(materialize_hot_properties(), ["$browser"])
+            self.assertEqual(materialize_hot_properties(), [])
+
+        with self.settings(MATERIALIZE_COLUMNS_MAX_COLUMNS=2):
+            self.assertEqual(materialize_hot_properties(), ["plan"])
+
+        self.assertEqual(
+            get_materialized_columns(),
+            {"$browser": materialized_column_name("$browser"), "plan": materialized_column_name("plan")},
+        )
+
+    def test_materialize_adds_skipping_index(self):
+        self.team.event_properties_with_usage = [{"key": "plan", "usage_count": 1, "volume": 1}]
+        self.team.save()
+
+        materialize_hot_properties()
+
+        indexes = sync_execute(
+            "SELECT name, expr FROM system.data_skipping_indices WHERE table = 'events' AND database = %(database)s",
+            {"database": settings.CLICKHOUSE_DATABASE},
+        )
+        self.assertIn(("mat_plan_bloom_filter", "mat_plan"), indexes)
+        self.assertIn(("event_bloom_filter", "event"), indexes)
+
+    def test_backfill(self):
+        create_event(
+            event_uuid=uuid4(), event="$pageview", team=self.team, distinct_id="whatever", properties={"plan": "free"}
+        )
+        self.team.event_properties_with_usage = [{"key": "plan", "usage_count": 1, "volume": 1}]
+        self.team.save()
+
+        materialize_hot_properties()
+        backfill_materialized_column("plan")
+
+        self.assertEqual(sync_execute("SELECT mat_plan FROM events"), [("free",)])
+        column_kind = sync_execute(
+            "SELECT default_kind FROM system.columns WHERE database = currentDatabase() AND name = 'mat_plan'"
+        )
+        self.assertEqual(column_kind, [("MATERIALIZED",)])
+        self.assertEqual(sync_execute("SELECT backfilled FROM materialized_columns FINAL"), [(1,)])
+
+    def test_interrupted_backfill_is_picked_up_again(self):
+        create_event(
+            event_uuid=uuid4(), event="$pageview", team=self.team, distinct_id="whatever", properties={"plan": "free"}
+        )
+        materialize("plan")
+        self.assertEqual(get_interrupted_backfills(), [])
+        # As if the worker running backfill_materialized_column was killed
+        sync_execute(
+            MODIFY_MATERIALIZED_COLUMN_SQL.format(
+                table="events",
+                on_cluster="",
+                column="mat_plan",
+                kind="DEFAULT",
+                expression=MATERIALIZED_PROPERTY_EXPRESSION,
+            ),
+            {"property": "plan"},
+        )
+        self.assertEqual(get_interrupted_backfills(), ["plan"])
+
+        backfill_materialized_column("plan")
+
+        self.assertEqual(get_interrupted_backfills(), [])
+        self.assertEqual(sync_execute("SELECT mat_plan FROM events"), [("free",)])
+        self.assertFalse(BackfillChunk.objects.exists())
+
+    def test_events_can_be_written_and_read_while_backfilling(self):
+        materialize("plan")
+        # As during backfill_materialized_column
+        sync_execute(
+            MODIFY_MATERIALIZED_COLUMN_SQL.format(
+                table="events",
+                on_cluster="",
+                column="mat_plan",
+                kind="DEFAULT",
+                expression=MATERIALIZED_PROPERTY_EXPRESSION,
+            ),
+            {"property": "plan"},
+        )
+
+        create_event(
+            event_uuid=uuid4(), event="$pageview", team=self.team, distinct_id="whatever", properties={"plan": "free"}
+        )
+
+        events = sync_execute(GET_EVENTS_WITH_PROPERTIES.format(filters="", order_by=""), {"team_id": self.team.pk})
+        self.assertEqual(len(events), 1)
+        self.assertEqual(len(events[0]), 10)
@@ -0,0 +1,26 @@
+from ee.clickhouse.client import SHARDED_QUERY_SETTINGS
+from ee.clickhouse.sql.clickhouse import data_table, distributed_table_sql, on_cluster, sharding_key
+from ee.clickhouse.sql.events import EVENTS_TABLE_SQL
+from posthog.test.base import BaseTest
+
+
+class TestSharding(BaseTest):
+    def test_sharding_key(self):
+        self.assertEqual(sharding_key(key="team_id"), "sipHash64(team_id)")
+        self.assertEqual(sharding_key(without_distinct_id="sipHash64(id)", key="team_id"), "sipHash64(team_id)")
+        self.assertEqual(sharding_key(key="distinct_id"), "sipHash64(distinct_id)")
+        self.assertEqual(sharding_key(without_distinct_id="sipHash64(id)", key="distinct_id"), "sipHash64(id)")
+        with self.assertRaises(ValueError):
+            sharding_key(key="uuid")
+
+    def test_distributed_table_sql(self):
+        sql = distributed_table_sql("events", "sipHash64(team_id)", database="posthog")
+
+        self.assertIn("CREATE TABLE IF NOT EXISTS events AS sharded_events", sql)
+        self.assertIn("Distributed('posthog', 'posthog', 'sharded_events', sipHash64(team_id))", sql)
+
+    def test_not_sharded_by_default(self):
+        self.assertEqual(data_table("events"), "events")
+        self.assertEqual(on_cluster(), "")
+        self.assertEqual(SHARDED_QUERY_SETTINGS, {})
+        self.assertIn("CREATE TABLE events", EVENTS_TABLE_SQL)
@@ -4,16 +4,26 @@ from clickhouse_driver.errors import ServerException
 from django.db import DEFAULT_DB_ALIAS
 
 from ee.clickhouse.client import sync_execute
+from ee.clickhouse.materialized_columns import clear_materialized_columns_cache
 from ee.clickhouse.sql.events import (
+    DROP_EVENT_COUNTS_DAILY_MV_SQL,
+    DROP_EVENT_COUNTS_DAILY_TABLE_SQL,
     DROP_EVENTS_TABLE_SQL,
     DROP_EVENTS_WITH_ARRAY_PROPS_TABLE_SQL,
+    EVENT_COUNTS_DAILY_MV_SQL,
+    EVENT_COUNTS_DAILY_TABLE_SQL,
     EVENTS_TABLE_SQL,
     EVENTS_WITH_PROPS_TABLE_SQL,
 )
+from ee.clickhouse.sql.materialized_columns import DROP_MATERIALIZED_COLUMNS_TABLE_SQL, MATERIALIZED_COLUMNS_TABLE_SQL
 from ee.clickhouse.sql.person import (
+    DROP_PERSON_DISTINCT_ID_LATEST_MV_SQL,
+    DROP_PERSON_DISTINCT_ID_LATEST_TABLE_SQL,
     DROP_PERSON_DISTINCT_ID_TABLE_SQL,
     DROP_PERSON_STATIC_COHORT_TABLE_SQL,
     DROP_PERSON_TABLE_SQL,
+    PERSON_DISTINCT_ID_LATEST_MV_SQL,
+    PERSON_DISTINCT_ID_LATEST_TABLE_SQL,
     PERSON_STATIC_COHORT_TABLE_SQL,
     PERSONS_DISTINCT_ID_TABLE_SQL,
     PERSONS_TABLE_SQL,
@@ -43,13 +53,17 @@ class ClickhouseTestMixin:
             pass
 
     def _destroy_person_tables(self):
+        sync_execute(DROP_PERSON_DISTINCT_ID_LATEST_MV_SQL)
         sync_execute(DROP_PERSON_TABLE_SQL)
         sync_execute(DROP_PERSON_DISTINCT_ID_TABLE_SQL)
+        sync_execute(DROP_PERSON_DISTINCT_ID_LATEST_TABLE_SQL)
         sync_execute(DROP_PERSON_STATIC_COHORT_TABLE_SQL)
 
     def _create_person_tables(self):
         sync_execute(PERSONS_TABLE_SQL)
         sync_execute(PERSONS_DISTINCT_ID_TABLE_SQL)
+        sync_execute(PERSON_DISTINCT_ID_LATEST_TABLE_SQL)
+        sync_execute(PERSON_DISTINCT_ID_LATEST_MV_SQL)
         sync_execute(PERSON_STATIC_COHORT_TABLE_SQL)
 
     def _destroy_session_recording_tables(self):
@@ -59,12 +73,19 @@ class ClickhouseTestMixin:
         sync_execute(SESSION_RECORDING_EVENTS_TABLE_SQL)
 
     def _destroy_event_tables(self):
+        sync_execute(DROP_EVENT_COUNTS_DAILY_MV_SQL)
         sync_execute(DROP_EVENTS_TABLE_SQL)
         sync_execute(DROP_EVENTS_WITH_ARRAY_PROPS_TABLE_SQL)
+        sync_execute(DROP_EVENT_COUNTS_DAILY_TABLE_SQL)
+        sync_execute(DROP_MATERIALIZED_COLUMNS_TABLE_SQL)
+        clear_materialized_columns_cache()
 
     def _create_event_tables(self):
         sync_execute(EVENTS_TABLE_SQL)
         sync_execute(EVENTS_WITH_PROPS_TABLE_SQL)
+        sync_execute(EVENT_COUNTS_DAILY_TABLE_SQL)
+        sync_execute(EVENT_COUNTS_DAILY_MV_SQL)
+        sync_execute(MATERIALIZED_COLUMNS_TABLE_SQL)
 
     @contextmanager
     def _assertNumQueries(self, func):
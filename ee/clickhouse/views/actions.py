@@ -13,13 +13,12 @@ from sentry_sdk.api import capture_exception
 from ee.clickhouse.client import sync_execute
 from ee.clickhouse.models.action import format_action_filter, format_entity_filter
 from ee.clickhouse.models.cohort import format_filter_query
-from ee.clickhouse.models.person import ClickhousePersonSerializer
+from ee.clickhouse.models.person import ClickhousePersonSerializer, get_latest_person_sql
 from ee.clickhouse.models.property import parse_prop_clauses
 from ee.clickhouse.queries.trends.util import get_active_user_params
 from ee.clickhouse.queries.util import parse_timestamps
 from ee.clickhouse.sql.person import (
     GET_LATEST_PERSON_DISTINCT_ID_SQL,
-    GET_LATEST_PERSON_SQL,
     INSERT_COHORT_ALL_PEOPLE_THROUGH_DISTINCT_SQL,
     PEOPLE_SQL,
     PEOPLE_THROUGH_DISTINCT_SQL,
@@ -155,6 +154,7 @@ def _process_content_sql(team: Team, entity: Entity, filter: Filter):
             filters=prop_filters,
             breakdown_filter="",
             person_filter=person_filter,
+            latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
             **active_user_params,
         )
     else:
@@ -175,7 +175,7 @@ def calculate_entity_people(team: Team, entity: Entity, filter: Filter):
     people = sync_execute(
         (PEOPLE_SQL if entity.math in [WEEKLY_ACTIVE, MONTHLY_ACTIVE] else PEOPLE_THROUGH_DISTINCT_SQL).format(
             content_sql=content_sql,
-            latest_person_sql=GET_LATEST_PERSON_SQL.format(query=""),
+            latest_person_sql=get_latest_person_sql(),
             latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
         ),
         params,
@@ -191,7 +191,7 @@ def insert_entity_people_into_cohort(cohort: Cohort, entity: Entity, filter: Fil
         INSERT_COHORT_ALL_PEOPLE_THROUGH_DISTINCT_SQL.format(
             cohort_table=PERSON_STATIC_COHORT_TABLE,
             content_sql=content_sql,
-            latest_person_sql=GET_LATEST_PERSON_SQL.format(query=""),
+            latest_person_sql=get_latest_person_sql(),
             latest_distinct_id_sql=GET_LATEST_PERSON_DISTINCT_ID_SQL,
         ),
         {"cohort_id": cohort.pk, "_timestamp": datetime.now(), **params},
@@ -1,13 +1,14 @@
 import json
 from datetime import timedelta
-from typing import Any, Dict, List, Optional
+from typing import Any, Dict, Iterable, Iterator, List, Optional, Tuple
 
+from django.http import StreamingHttpResponse
 from django.utils.timezone import now
 from rest_framework.decorators import action
 from rest_framework.request import Request
 from rest_framework.response import Response
 
-from ee.clickhouse.client import sync_execute
+from ee.clickhouse.client import stream_execute, sync_execute
 from ee.clickhouse.models.action import format_action_filter
 from ee.clickhouse.models.event import ClickhouseEventSerializer, determine_event_conditions
 from ee.clickhouse.models.person import get_persons_by_distinct_ids
@@ -25,10 +26,17 @@ from posthog.models import Filter, Person, Team
 from posthog.models.action import Action
 from posthog.models.filters.sessions_filter import SessionsFilter
 from posthog.models.session_recording_event import SessionRecordingViewed
+from posthog.renderers import JSONLinesRenderer, streaming_export_response
 from posthog.utils import convert_property_value, flatten
 
 
 class ClickhouseEventsViewSet(EventViewSet):
+    renderer_classes = EventViewSet.renderer_classes + (JSONLinesRenderer,)
+
+    # Exports are streamed with these columns, nested values (properties, person) being JSON encoded
+    EXPORT_COLUMNS = ["id", "distinct_id", "event", "timestamp", "properties", "person", "elements_chain"]
+    EXPORT_PERSONS_CHUNK_SIZE = 1000
+
     def _get_people(self, query_result: List[Dict], team: Team) -> Dict[str, Any]:
         distinct_ids = [event[5] for event in query_result]
         persons = get_persons_by_distinct_ids(team.pk, distinct_ids)
@@ -39,10 +47,10 @@ class ClickhouseEventsViewSet(EventViewSet):
                 distinct_to_person[distinct_id] = person
         return distinct_to_person
 
-    def _query_events_list(
+    def _events_list_query(
         self, filter: Filter, team: Team, request: Request, long_date_from: bool = False, limit: int = 100
-    ) -> List:
-        limit_sql = f"LIMIT {limit + 1}"
+    ) -> Optional[Tuple[str, Dict]]:
+        limit_sql = f"LIMIT {limit}"
         conditions, condition_params = determine_event_conditions(
             team,
             {
@@ -58,27 +66,63 @@ class ClickhouseEventsViewSet(EventViewSet):
             try:
                 action = Action.objects.get(pk=request.GET["action_id"], team_id=team.pk)
             except Action.DoesNotExist:
-                return []
+                return None
             if action.steps.count() == 0:
-                return []
+                return None
             action_query, params = format_action_filter(action)
             prop_filters += " AND {}".format(action_query)
             prop_filter_params = {**prop_filter_params, **params}
 
         if prop_filters != "":
-            return sync_execute(
+            return (
                 SELECT_EVENT_WITH_PROP_SQL.format(conditions=conditions, limit=limit_sql, filters=prop_filters),
                 {"team_id": team.pk, **condition_params, **prop_filter_params},
             )
         else:
-            return sync_execute(
+            return (
                 SELECT_EVENT_WITH_ARRAY_PROPS_SQL.format(conditions=conditions, limit=limit_sql),
                 {"team_id": team.pk, **condition_params},
             )
 
+    def _query_events_list(
+        self, filter: Filter, team: Team, request: Request, long_date_from: bool = False, limit: int = 100
+    ) -> List:
+        query = self._events_list_query(filter, team, request, long_date_from, limit=limit + 1)
+        if query is None:
+            return []
+        return sync_execute(*query)
+
+    def _stream_events(self, rows: Iterable[Tuple], team: Team) -> Iterator[Dict]:
+        # Persons are looked up a chunk of events at a time, so that the export never holds more than that in memory
+        chunk: List[Tuple] = []
+        for row in rows:
+            chunk.append(row)
+            if len(chunk) == self.EXPORT_PERSONS_CHUNK_SIZE:
+                yield from self._serialize_chunk(chunk, team)
+                chunk = []
+        if chunk:
+            yield from self._serialize_chunk(chunk, team)
+
+    def _serialize_chunk(self, chunk: List[Tuple], team: Team) -> List[Dict]:
+        return ClickhouseEventSerializer(chunk, many=True, context={"people": self._get_people(chunk, team)}).data
+
+    def _export(self, request: Request, format: str) -> StreamingHttpResponse:
+        # Exports go over the whole range right away, rather than trying the last day first like the paginated list
+        query = self._events_list_query(
+            Filter(request=request),
+            self.team,
+            request,
+            long_date_from=not request.GET.get("after"),
+            limit=self.CSV_EXPORT_LIMIT,
+        )
+        rows = stream_execute(*query) if query is not None else []
+        return streaming_export_response(self._stream_events(rows, self.team), format, header=self.EXPORT_COLUMNS)
+
     def list(self, request: Request, *args: Any, **kwargs: Any) -> Response:
-        is_csv_request = self.request.accepted_renderer.format == "csv"
-        limit = self.CSV_EXPORT_LIMIT if is_csv_request else 100
+        if self.request.accepted_renderer.format in ("csv", "jsonl"):
+            return self._export(request, self.request.accepted_renderer.format)
+
+        limit = 100
 
         team = self.team
         filter = Filter(request=request)
@@ -94,7 +138,7 @@ class ClickhouseEventsViewSet(EventViewSet):
         ).data
 
         next_url: Optional[str] = None
-        if not is_csv_request and len(query_result) > 100:
+        if len(query_result) > 100:
             path = request.get_full_path()
             reverse = request.GET.get("orderBy", "-timestamp") != "-timestamp"
             next_url = request.build_absolute_uri(
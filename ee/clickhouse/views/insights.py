@@ -11,19 +11,22 @@ from ee.clickhouse.queries.clickhouse_stickiness import ClickhouseStickiness
 from ee.clickhouse.queries.sessions.clickhouse_sessions import ClickhouseSessions
 from ee.clickhouse.queries.trends.clickhouse_trends import ClickhouseTrends
 from ee.clickhouse.queries.util import get_earliest_timestamp
-from posthog.api.insight import InsightViewSet
-from posthog.constants import INSIGHT_FUNNELS, INSIGHT_PATHS, INSIGHT_SESSIONS, TRENDS_STICKINESS
-from posthog.decorators import cached_function
+from posthog.api.insight import (
+    InsightViewSet,
+    get_funnel_filter,
+    get_path_filter,
+    get_retention_filter,
+    get_session_filter,
+)
+from posthog.constants import TRENDS_STICKINESS
+from posthog.decorators import CacheType, cached_function
 from posthog.models import Event
 from posthog.models.filters import Filter
-from posthog.models.filters.path_filter import PathFilter
-from posthog.models.filters.retention_filter import RetentionFilter
-from posthog.models.filters.sessions_filter import SessionsFilter
 from posthog.models.filters.stickiness_filter import StickinessFilter
 
 
 class ClickhouseInsightsViewSet(InsightViewSet):
-    @cached_function()
+    @cached_function(cache_type=CacheType.TRENDS)
     def calculate_trends(self, request: Request) -> Dict[str, Any]:
         team = self.team
         filter = Filter(request=request)
@@ -40,18 +43,14 @@ class ClickhouseInsightsViewSet(InsightViewSet):
         self._refresh_dashboard(request=request)
         return {"result": result}
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.SESSION, filter_for_request=get_session_filter)
     def calculate_session(self, request: Request) -> Dict[str, Any]:
-        return {
-            "result": ClickhouseSessions().run(
-                team=self.team, filter=SessionsFilter(request=request, data={"insight": INSIGHT_SESSIONS})
-            )
-        }
+        return {"result": ClickhouseSessions().run(team=self.team, filter=get_session_filter(request))}
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.PATHS, filter_for_request=get_path_filter)
     def calculate_path(self, request: Request) -> Dict[str, Any]:
         team = self.team
-        filter = PathFilter(request=request, data={"insight": INSIGHT_PATHS})
+        filter = get_path_filter(request)
         resp = ClickhousePaths().run(filter=filter, team=team)
         return {"result": resp}
 
@@ -60,18 +59,15 @@ class ClickhouseInsightsViewSet(InsightViewSet):
         response = self.calculate_funnel(request)
         return Response(response)
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.FUNNEL, filter_for_request=get_funnel_filter)
     def calculate_funnel(self, request: Request) -> Dict[str, Any]:
         team = self.team
-        filter = Filter(request=request, data={"insight": INSIGHT_FUNNELS})
+        filter = get_funnel_filter(request)
         return {"result": ClickhouseFunnel(team=team, filter=filter).run()}
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.RETENTION, filter_for_request=get_retention_filter)
     def calculate_retention(self, request: Request) -> Dict[str, Any]:
         team = self.team
-        data = {}
-        if not request.GET.get("date_from"):
-            data.update({"date_from": "-11d"})
-        filter = RetentionFilter(data=data, request=request)
+        filter = get_retention_filter(request)
         result = ClickhouseRetention().run(filter, team)
         return {"result": result}
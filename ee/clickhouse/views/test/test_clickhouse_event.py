@@ -1,7 +1,9 @@
+import json
 from unittest.mock import patch
 from uuid import uuid4
 
 from django.utils import timezone
+from freezegun import freeze_time
 
 from ee.clickhouse.models.event import create_event
 from ee.clickhouse.util import ClickhouseTestMixin
@@ -44,3 +46,33 @@ class ClickhouseTestEventApi(
         patch_sync_execute.return_value = [("event", "d", "{}", timezone.now(), "d", "d", "d") for _ in range(0, 100)]
         response = self.client.get("/api/event/").json()
         self.assertEqual(patch_sync_execute.call_count, 3)
+
+    def test_events_jsonl_export(self):
+        _create_person(team=self.team, distinct_ids=["2"], properties={"email": "tim@posthog.com"})
+        with freeze_time("2012-01-15T04:01:34.000Z"):
+            for _ in range(3):
+                _create_event(team=self.team, event="$pageview", distinct_id="2", properties={"$os": "Windows 95"})
+            _create_event(team=self.team, event="$pageview", distinct_id="anonymous")
+            response = self.client.get("/api/event/?format=jsonl&event=$pageview")
+
+        self.assertEqual(response.status_code, 200)
+        self.assertTrue(response.streaming)
+        lines = [json.loads(line) for line in b"".join(response.streaming_content).splitlines()]
+        self.assertEqual(len(lines), 4)
+        identified = [line for line in lines if line["distinct_id"] == "2"]
+        self.assertEqual(identified[0]["properties"], {"$os": "Windows 95"})
+        self.assertEqual(identified[0]["person"]["properties"], {"email": "tim@posthog.com"})
+        self.assertIsNone([line for line in lines if line["distinct_id"] == "anonymous"][0]["person"])
+
+    @patch("ee.clickhouse.views.events.ClickhouseEventsViewSet.EXPORT_PERSONS_CHUNK_SIZE", 2)
+    def test_events_csv_export_columns(self):
+        _create_person(team=self.team, distinct_ids=["2"], properties={"email": "tim@posthog.com"})
+        with freeze_time("2012-01-15T04:01:34.000Z"):
+            for _ in range(5):
+                _create_event(team=self.team, event="$pageview", distinct_id="2", properties={"$os": "Windows 95"})
+            response = self.client.get("/api/event.csv")
+
+        lines = b"".join(response.streaming_content).decode("utf-8").splitlines()
+        self.assertEqual(lines[0], "id,distinct_id,event,timestamp,properties,person,elements_chain")
+        self.assertEqual(len(lines), 6)
+        self.assertTrue(all("tim@posthog.com" in line for line in lines[1:]))
@@ -47,16 +47,29 @@ def django_db_setup(django_db_setup, django_db_keepdb):
 
 @pytest.fixture
 def db(db):
+    from ee.clickhouse.materialized_columns import clear_materialized_columns_cache
     from ee.clickhouse.sql.events import (
+        DROP_EVENT_COUNTS_DAILY_MV_SQL,
+        DROP_EVENT_COUNTS_DAILY_TABLE_SQL,
         DROP_EVENTS_TABLE_SQL,
         DROP_EVENTS_WITH_ARRAY_PROPS_TABLE_SQL,
+        EVENT_COUNTS_DAILY_MV_SQL,
+        EVENT_COUNTS_DAILY_TABLE_SQL,
         EVENTS_TABLE_SQL,
         EVENTS_WITH_PROPS_TABLE_SQL,
     )
+    from ee.clickhouse.sql.materialized_columns import (
+        DROP_MATERIALIZED_COLUMNS_TABLE_SQL,
+        MATERIALIZED_COLUMNS_TABLE_SQL,
+    )
     from ee.clickhouse.sql.person import (
+        DROP_PERSON_DISTINCT_ID_LATEST_MV_SQL,
+        DROP_PERSON_DISTINCT_ID_LATEST_TABLE_SQL,
         DROP_PERSON_DISTINCT_ID_TABLE_SQL,
         DROP_PERSON_STATIC_COHORT_TABLE_SQL,
         DROP_PERSON_TABLE_SQL,
+        PERSON_DISTINCT_ID_LATEST_MV_SQL,
+        PERSON_DISTINCT_ID_LATEST_TABLE_SQL,
         PERSON_STATIC_COHORT_TABLE_SQL,
         PERSONS_DISTINCT_ID_TABLE_SQL,
         PERSONS_TABLE_SQL,
@@ -69,19 +82,30 @@ def db(db):
     yield
 
     try:
+        sync_execute(DROP_EVENT_COUNTS_DAILY_MV_SQL)
         sync_execute(DROP_EVENTS_TABLE_SQL)
         sync_execute(DROP_EVENTS_WITH_ARRAY_PROPS_TABLE_SQL)
+        sync_execute(DROP_EVENT_COUNTS_DAILY_TABLE_SQL)
+        sync_execute(DROP_MATERIALIZED_COLUMNS_TABLE_SQL)
+        clear_materialized_columns_cache()
+        sync_execute(DROP_PERSON_DISTINCT_ID_LATEST_MV_SQL)
         sync_execute(DROP_PERSON_TABLE_SQL)
         sync_execute(DROP_PERSON_DISTINCT_ID_TABLE_SQL)
+        sync_execute(DROP_PERSON_DISTINCT_ID_LATEST_TABLE_SQL)
         sync_execute(DROP_PERSON_STATIC_COHORT_TABLE_SQL)
         sync_execute(DROP_SESSION_RECORDING_EVENTS_TABLE_SQL)
         sync_execute(DROP_PLUGIN_LOG_ENTRIES_TABLE_SQL)
 
         sync_execute(EVENTS_TABLE_SQL)
         sync_execute(EVENTS_WITH_PROPS_TABLE_SQL)
+        sync_execute(EVENT_COUNTS_DAILY_TABLE_SQL)
+        sync_execute(EVENT_COUNTS_DAILY_MV_SQL)
+        sync_execute(MATERIALIZED_COLUMNS_TABLE_SQL)
         sync_execute(SESSION_RECORDING_EVENTS_TABLE_SQL)
         sync_execute(PERSONS_TABLE_SQL)
         sync_execute(PERSONS_DISTINCT_ID_TABLE_SQL)
+        sync_execute(PERSON_DISTINCT_ID_LATEST_TABLE_SQL)
+        sync_execute(PERSON_DISTINCT_ID_LATEST_MV_SQL)
         sync_execute(PERSON_STATIC_COHORT_TABLE_SQL)
         sync_execute(PLUGIN_LOG_ENTRIES_TABLE_SQL)
     except:
@@ -1,51 +1,120 @@
 import io
 import json
+import threading
+from time import time
 from typing import Any, Callable, Dict, Optional
 
 import kafka_helper
+import statsd
 from google.protobuf.internal.encoder import _VarintBytes  # type: ignore
 from google.protobuf.json_format import MessageToJson
 from kafka import KafkaProducer as KP
+from kafka.errors import KafkaTimeoutError
+from kafka.future import Future
 
 from ee.clickhouse.client import async_execute, sync_execute
 from ee.kafka_client import helper
 from ee.settings import KAFKA_ENABLED
-from posthog.settings import IS_HEROKU, KAFKA_BASE64_KEYS, KAFKA_HOSTS, TEST
+from posthog.settings import (
+    IS_HEROKU,
+    KAFKA_BASE64_KEYS,
+    KAFKA_HOSTS,
+    KAFKA_PRODUCER_BATCH_SIZE,
+    KAFKA_PRODUCER_BUFFER_MEMORY,
+    KAFKA_PRODUCER_COMPRESSION_TYPE,
+    KAFKA_PRODUCER_LINGER_MS,
+    KAFKA_PRODUCER_MAX_BLOCK_MS,
+    KAFKA_PRODUCER_MAX_IN_FLIGHT_REQUESTS,
+    STATSD_PREFIX,
+    TEST,
+)
 from posthog.utils import SingletonDecorator
 
+PRODUCER_CONFIG = {
+    "linger_ms": KAFKA_PRODUCER_LINGER_MS,
+    "batch_size": KAFKA_PRODUCER_BATCH_SIZE,
+    "compression_type": KAFKA_PRODUCER_COMPRESSION_TYPE,
+    "max_in_flight_requests_per_connection": KAFKA_PRODUCER_MAX_IN_FLIGHT_REQUESTS,
+    "buffer_memory": KAFKA_PRODUCER_BUFFER_MEMORY,
+    "max_block_ms": KAFKA_PRODUCER_MAX_BLOCK_MS,
+}
+
 
 class TestKafkaProducer:
     def __init__(self):
         pass
 
     def send(self, topic: str, data: Any):
-        return
+        return Future().success(None)
 
     def flush(self):
         return
 
 
 class _KafkaProducer:
+    """
+    Sends are asynchronous: messages are batched by the underlying producer (see `PRODUCER_CONFIG`) and delivered
+    from its background thread, with the outcome reported to the optional per-message callbacks of `produce`.
+    """
+
     def __init__(self):
         if TEST:
             self.producer = TestKafkaProducer()
         elif IS_HEROKU:
+            # `kafka_helper` doesn't accept producer configuration, so batching is left at kafka-python defaults here
             self.producer = kafka_helper.get_kafka_producer(value_serializer=lambda d: d)
         elif KAFKA_BASE64_KEYS:
-            self.producer = helper.get_kafka_producer(value_serializer=lambda d: d)
+            self.producer = helper.get_kafka_producer(value_serializer=lambda d: d, **PRODUCER_CONFIG)
         else:
-            self.producer = KP(bootstrap_servers=KAFKA_HOSTS)
+            self.producer = KP(bootstrap_servers=KAFKA_HOSTS, **PRODUCER_CONFIG)
+        self.pending_messages = 0
+        self._pending_lock = threading.Lock()
 
     @staticmethod
     def json_serializer(d):
         b = json.dumps(d).encode("utf-8")
         return b
 
-    def produce(self, topic: str, data: Any, value_serializer: Optional[Callable[[Any], Any]] = None):
+    def produce(
+        self,
+        topic: str,
+        data: Any,
+        value_serializer: Optional[Callable[[Any], Any]] = None,
+        on_success: Optional[Callable[[Any], None]] = None,
+        on_error: Optional[Callable[[Exception], None]] = None,
+    ) -> Future:
         if not value_serializer:
             value_serializer = self.json_serializer
         b = value_serializer(data)
-        self.producer.send(topic, b)
+        start_time = time()
+        try:
+            future = self.producer.send(topic, b)
+        except KafkaTimeoutError:
+            # The send buffer stayed full for KAFKA_PRODUCER_MAX_BLOCK_MS, i.e. Kafka can't keep up with us
+            statsd.Counter("%s_posthog_cloud_kafka_produce_buffer_full" % (STATSD_PREFIX,)).increment()
+            raise
+        self._update_pending_messages(1)
+        future.add_callback(self._on_delivery, topic, start_time, on_success)
+        future.add_errback(self._on_delivery_error, topic, on_error)
+        return future
+
+    def _update_pending_messages(self, delta: int) -> None:
+        with self._pending_lock:
+            self.pending_messages += delta
+            pending_messages = self.pending_messages
+        statsd.Gauge("%s_posthog_cloud_kafka_produce" % (STATSD_PREFIX,)).send("pending_messages", pending_messages)
+
+    def _on_delivery(self, topic: str, start_time: float, on_success: Optional[Callable], record_metadata: Any):
+        self._update_pending_messages(-1)
+        statsd.Timer("%s_posthog_cloud_kafka_produce" % (STATSD_PREFIX,)).send(f"{topic}_latency", time() - start_time)
+        if on_success:
+            on_success(record_metadata)
+
+    def _on_delivery_error(self, topic: str, on_error: Optional[Callable], exception: Exception):
+        self._update_pending_messages(-1)
+        statsd.Counter("%s_posthog_cloud_kafka_produce_error" % (STATSD_PREFIX,)).increment(topic)
+        if on_error:
+            on_error(exception)
 
     def close(self):
         self.producer.flush()
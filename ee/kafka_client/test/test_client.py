@@ -0,0 +1,45 @@
+from unittest.mock import MagicMock
+
+from django.test import TestCase
+from kafka.errors import KafkaTimeoutError
+from kafka.future import Future
+
+from ee.kafka_client.client import _KafkaProducer
+
+
+class KafkaProducerTestCase(TestCase):
+    def setUp(self):
+        self.producer = _KafkaProducer()
+
+    def test_produce_calls_delivery_callbacks(self):
+        on_success = MagicMock()
+        on_error = MagicMock()
+
+        future = self.producer.produce(topic="test_topic", data={"a": 1}, on_success=on_success, on_error=on_error)
+
+        self.assertTrue(future.succeeded())
+        on_success.assert_called_once()
+        on_error.assert_not_called()
+        self.assertEqual(self.producer.pending_messages, 0)
+
+    def test_produce_tracks_pending_messages_until_delivery_fails(self):
+        pending_future = Future()
+        self.producer.producer = MagicMock()
+        self.producer.producer.send.return_value = pending_future
+        on_error = MagicMock()
+
+        self.producer.produce(topic="test_topic", data={"a": 1}, on_error=on_error)
+        self.assertEqual(self.producer.pending_messages, 1)
+
+        error = Exception("Broker unavailable")
+        pending_future.failure(error)
+        on_error.assert_called_once_with(error)
+        self.assertEqual(self.producer.pending_messages, 0)
+
+    def test_produce_raises_when_buffer_stays_full(self):
+        self.producer.producer = MagicMock()
+        self.producer.producer.send.side_effect = KafkaTimeoutError()
+
+        with self.assertRaises(KafkaTimeoutError):
+            self.producer.produce(topic="test_topic", data={"a": 1})
+        self.assertEqual(self.producer.pending_messages, 0)
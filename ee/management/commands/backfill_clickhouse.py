@@ -0,0 +1,75 @@
+from django.core.management.base import BaseCommand, CommandError
+
+from ee.clickhouse.backfill import (
+    DEFAULT_CONCURRENCY,
+    DEFAULT_MAX_MERGES,
+    DEFAULT_MAX_PARTS_PER_PARTITION,
+    Backfill,
+    BackfillAlreadyRunning,
+    get_backfill_status,
+    run_backfill,
+)
+from ee.clickhouse.sql.events import EVENTS_TABLE
+from ee.models.backfill import BackfillChunk
+
+
+# ex: python manage.py backfill_clickhouse --name events_new --target-table events_new \
+#   --sql "INSERT INTO events_new SELECT * FROM events WHERE {chunk_filter}" --concurrency 4
+class Command(BaseCommand):
+    help = "Run a query over a ClickHouse table chunk by chunk, resuming where a previous run of it stopped"
+
+    def add_arguments(self, parser):
+        parser.add_argument("--name", required=True, help="Identifies the backfill's progress across runs")
+        parser.add_argument("--sql", help="Query to run for each chunk, restricted to it with {chunk_filter}")
+        parser.add_argument("--sql-file", help="File to read the query from, instead of --sql")
+        parser.add_argument("--table", default=EVENTS_TABLE, help="Table to read and chunk")
+        parser.add_argument(
+            "--target-table",
+            help="Table written to, to throttle on. Chunks left half done are deleted from it before being run again. "
+            "Defaults to --table",
+        )
+        parser.add_argument("--partition-expression", default="toYYYYMM(timestamp)")
+        parser.add_argument("--no-by-team", action="store_true", help="Chunk by partition only")
+        parser.add_argument("--concurrency", type=int, default=DEFAULT_CONCURRENCY)
+        parser.add_argument("--max-merges", type=int, default=DEFAULT_MAX_MERGES)
+        parser.add_argument("--max-parts", type=int, default=DEFAULT_MAX_PARTS_PER_PARTITION)
+        parser.add_argument("--status", action="store_true", help="Show the backfill's progress and exit")
+        parser.add_argument("--reset", action="store_true", help="Forget the backfill's progress and exit")
+
+    def handle(self, *args, **options):
+        name = options["name"]
+        if options["status"]:
+            for status, count in get_backfill_status(name).items():
+                self.stdout.write("{}\t{}".format(status, count))
+            return
+        if options["reset"]:
+            BackfillChunk.objects.filter(backfill=name).delete()
+            return
+
+        sql = options["sql"]
+        if options["sql_file"]:
+            with open(options["sql_file"]) as f:
+                sql = f.read()
+        if not sql or "{chunk_filter}" not in sql:
+            raise CommandError("--sql or --sql-file must be given, with a {chunk_filter} placeholder")
+
+        try:
+            progress = run_backfill(
+                Backfill(
+                    name=name,
+                    sql=sql,
+                    table=options["table"],
+                    target_table=options["target_table"],
+                    partition_expression=options["partition_expression"],
+                    by_team=not options["no_by_team"],
+                ),
+                concurrency=options["concurrency"],
+                max_merges=options["max_merges"],
+                max_parts_per_partition=options["max_parts"],
+                log=self.stdout.write,
+            )
+        except BackfillAlreadyRunning as err:
+            raise CommandError(str(err))
+        if progress.chunks_failed:
+            raise CommandError("{} chunks failed, run the command again to retry them".format(progress.chunks_failed))
+        self.stdout.write("Done: {}/{} chunks".format(progress.chunks_done, progress.chunks_total))
@@ -0,0 +1,79 @@
+import uuid
+
+from django.core.management.base import BaseCommand
+
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.queries.clickhouse_funnel import ClickhouseFunnel
+from ee.clickhouse.sql.query_log import BENCHMARK_QUERIES_SQL, BENCHMARK_SUMMARY_SQL
+from posthog.constants import QueryProfile
+from posthog.decorators import CacheType
+from posthog.models import DashboardItem, Team
+from posthog.models.filters.utils import get_filter
+from posthog.tasks.update_cache import CACHE_TYPE_TO_INSIGHT, CH_TYPE_TO_IMPORT, get_cache_type, import_from
+from posthog.utils import tag_queries
+
+SUMMARY_COLUMNS = [
+    "insight", "query", "marks_before", "marks_after", "rows_before", "rows_after", "ms_before", "ms_after"
+]
+
+
+# ex: python manage.py clickhouse_index_benchmark --team-id 2 --limit 10
+class Command(BaseCommand):
+    help = "Compare granules read by a team's dashboard insights with and without data skipping indexes"
+
+    def add_arguments(self, parser):
+        parser.add_argument("--team-id", type=int, required=True, help="Team whose dashboard items to run")
+        parser.add_argument("--limit", type=int, default=20, help="Number of dashboard items to run")
+
+    def handle(self, *args, **options):
+        team = Team.objects.get(pk=options["team_id"])
+        benchmark = uuid.uuid4().hex
+
+        # Run the insights once to find out which queries they send, then run each of those with the skipping
+        # indexes ignored ("before") and used ("after"). Same data, same queries, only the indexes differ.
+        with tag_queries(benchmark=benchmark):
+            for item in self._dashboard_items(team, options["limit"]):
+                self._run_insight(item, team)
+        sync_execute("SYSTEM FLUSH LOGS")
+
+        queries = sync_execute(BENCHMARK_QUERIES_SQL, {"benchmark": benchmark}, profile=QueryProfile.BACKGROUND_TASK)
+        for index, (insight, query) in enumerate(queries):
+            for skip_indexes, use_skip_indexes in (("off", 0), ("on", 1)):
+                with tag_queries(
+                    benchmark=benchmark, insight=insight, benchmark_query=str(index), skip_indexes=skip_indexes
+                ):
+                    sync_execute(query, settings={"use_skip_indexes": use_skip_indexes})
+        sync_execute("SYSTEM FLUSH LOGS")
+
+        rows = sync_execute(BENCHMARK_SUMMARY_SQL, {"benchmark": benchmark}, profile=QueryProfile.BACKGROUND_TASK)
+        self.stdout.write("\t".join(SUMMARY_COLUMNS))
+        for row in rows:
+            self.stdout.write("\t".join(str(value) for value in row))
+
+        marks_before = sum(row[2] for row in rows)
+        marks_after = sum(row[3] for row in rows)
+        self.stdout.write(
+            "{} queries, {} granules read without skipping indexes, {} with ({:.1%} skipped)".format(
+                len(rows), marks_before, marks_after, 1 - marks_after / marks_before if marks_before else 0
+            )
+        )
+
+    def _dashboard_items(self, team: Team, limit: int):
+        return (
+            DashboardItem.objects.filter(team=team, deleted=False, filters__isnull=False)
+            .exclude(filters={})
+            .order_by("-last_refresh")[:limit]
+        )
+
+    def _run_insight(self, item: DashboardItem, team: Team) -> None:
+        filter = get_filter(data=item.dashboard_filters(), team=team)
+        cache_type = get_cache_type(filter)
+        with tag_queries(insight=CACHE_TYPE_TO_INSIGHT[cache_type], team_id=team.pk):
+            try:
+                if cache_type == CacheType.FUNNEL:
+                    ClickhouseFunnel(filter=filter, team=team).run()
+                else:
+                    insight_class = import_from(*CH_TYPE_TO_IMPORT[cache_type])
+                    insight_class().run(filter, team)
+            except Exception as e:
+                self.stderr.write("Skipping dashboard item {}: {}".format(item.pk, e))
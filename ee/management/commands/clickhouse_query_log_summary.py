@@ -0,0 +1,47 @@
+from django.core.management.base import BaseCommand
+
+from ee.clickhouse.client import sync_execute
+from ee.clickhouse.sql.query_log import QUERY_LOG_SUMMARY_SQL
+from posthog.constants import QueryProfile
+
+ORDER_BY_COLUMNS = {"p95": "p95_ms", "max": "max_ms", "total": "total_ms", "rows": "read_rows"}
+
+
+# ex: python manage.py clickhouse_query_log_summary --hours 6 --by-team
+class Command(BaseCommand):
+    help = "Summarize the slowest tagged queries from ClickHouse's query log"
+
+    def add_arguments(self, parser):
+        parser.add_argument("--hours", type=int, default=24, help="How far back to look")
+        parser.add_argument("--limit", type=int, default=20, help="Number of tags to show")
+        parser.add_argument("--order-by", choices=ORDER_BY_COLUMNS.keys(), default="p95")
+        parser.add_argument("--by-team", action="store_true", help="Break the summary down by team and filter")
+
+    def handle(self, *args, **options):
+        extra_columns = ""
+        extra_group_by = ""
+        if options["by_team"]:
+            extra_columns = (
+                "JSONExtractString(log_comment, 'team_id') AS team_id, "
+                "JSONExtractString(log_comment, 'filter_hash') AS filter_hash,"
+            )
+            extra_group_by = ", team_id, filter_hash"
+
+        rows = sync_execute(
+            QUERY_LOG_SUMMARY_SQL.format(
+                extra_columns=extra_columns,
+                extra_group_by=extra_group_by,
+                order_by=ORDER_BY_COLUMNS[options["order_by"]],
+            ),
+            {"hours": options["hours"], "limit": options["limit"]},
+            profile=QueryProfile.BACKGROUND_TASK,
+        )
+
+        header = ["insight", "kind", "profile"]
+        if options["by_team"]:
+            header += ["team_id", "filter_hash"]
+        header += ["queries", "p50_ms", "p95_ms", "max_ms", "total_ms", "read_rows", "read_bytes", "max_memory_usage"]
+
+        self.stdout.write("\t".join(header))
+        for row in rows:
+            self.stdout.write("\t".join(str(value) for value in row))
@@ -0,0 +1,43 @@
+# Generated by Django 3.1.8 on 2021-05-12 10:41
+
+from django.db import migrations, models
+
+
+class Migration(migrations.Migration):
+
+    dependencies = [
+        ("ee", "0003_license_max_users"),
+    ]
+
+    operations = [
+        migrations.CreateModel(
+            name="BackfillChunk",
+            fields=[
+                ("id", models.AutoField(auto_created=True, primary_key=True, serialize=False, verbose_name="ID")),
+                ("backfill", models.CharField(max_length=200)),
+                ("partition", models.CharField(max_length=200)),
+                ("team_id", models.IntegerField(blank=True, null=True)),
+                ("rows", models.BigIntegerField(default=0)),
+                (
+                    "status",
+                    models.CharField(
+                        choices=[
+                            ("pending", "pending"),
+                            ("running", "running"),
+                            ("done", "done"),
+                            ("failed", "failed"),
+                        ],
+                        default="pending",
+                        max_length=20,
+                    ),
+                ),
+                ("error", models.TextField(blank=True, null=True)),
+                ("started_at", models.DateTimeField(blank=True, null=True)),
+                ("finished_at", models.DateTimeField(blank=True, null=True)),
+            ],
+        ),
+        migrations.AddIndex(
+            model_name="backfillchunk",
+            index=models.Index(fields=["backfill", "status"], name="ee_backfill_backfil_12b0ac_idx"),
+        ),
+    ]
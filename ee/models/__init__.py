@@ -1,2 +1,3 @@
+from .backfill import BackfillChunk
 from .hook import Hook
 from .license import License
@@ -0,0 +1,29 @@
+from django.db import models
+
+
+class BackfillChunk(models.Model):
+    """
+    Progress of a ClickHouse backfill, see ee.clickhouse.backfill. The chunks of a backfill are listed once, on its
+    first run, and every run after that picks up the chunks that aren't done yet.
+    """
+
+    class Status(models.TextChoices):
+        PENDING = "pending", "pending"
+        RUNNING = "running", "running"
+        DONE = "done", "done"
+        FAILED = "failed", "failed"
+
+    class Meta:
+        indexes = [
+            models.Index(fields=["backfill", "status"]),
+        ]
+
+    backfill: models.CharField = models.CharField(max_length=200)
+    partition: models.CharField = models.CharField(max_length=200)
+    # Not a foreign key, the data of deleted teams can still be in ClickHouse. Null when not chunked by team.
+    team_id: models.IntegerField = models.IntegerField(null=True, blank=True)
+    rows: models.BigIntegerField = models.BigIntegerField(default=0)
+    status: models.CharField = models.CharField(max_length=20, choices=Status.choices, default=Status.PENDING)
+    error: models.TextField = models.TextField(null=True, blank=True)
+    started_at: models.DateTimeField = models.DateTimeField(null=True, blank=True)
+    finished_at: models.DateTimeField = models.DateTimeField(null=True, blank=True)
@@ -2,10 +2,11 @@
 Django settings for PostHog Enterprise Edition.
 """
 import os
+from distutils.util import strtobool
 from typing import Dict, List
 
 from posthog.constants import RDBMS
-from posthog.settings import PRIMARY_DB, TEST
+from posthog.settings import PRIMARY_DB, TEST, get_from_env
 
 # Zapier REST hooks
 HOOK_EVENTS: Dict[str, str] = {
@@ -28,3 +29,13 @@ if "SOCIAL_AUTH_GOOGLE_OAUTH2_WHITELISTED_DOMAINS" in os.environ:
 # ClickHouse and Kafka
 CLICKHOUSE_DENORMALIZED_PROPERTIES = os.getenv("CLICKHOUSE_DENORMALIZED_PROPERTIES", "").split(",")
 KAFKA_ENABLED = PRIMARY_DB == RDBMS.CLICKHOUSE and not TEST
+
+# Event properties filtered on most often get their own materialized column, see ee/clickhouse/materialized_columns.py
+MATERIALIZE_COLUMNS_MAX_COLUMNS = get_from_env("MATERIALIZE_COLUMNS_MAX_COLUMNS", 20, type_cast=int)
+MATERIALIZE_COLUMNS_BACKFILL_PERIOD_DAYS = get_from_env("MATERIALIZE_COLUMNS_BACKFILL_PERIOD_DAYS", 90, type_cast=int)
+
+# Serve simple per-day/week/month event count trends from the event_counts_daily rollup instead of raw events
+CLICKHOUSE_TRENDS_USE_ROLLUP = get_from_env("CLICKHOUSE_TRENDS_USE_ROLLUP", True, type_cast=strtobool)
+
+# How many ClickHouse queries a single trends request (one per series and compared period) runs at the same time
+CLICKHOUSE_TRENDS_MAX_PARALLEL_QUERIES = get_from_env("CLICKHOUSE_TRENDS_MAX_PARALLEL_QUERIES", 4, type_cast=int)
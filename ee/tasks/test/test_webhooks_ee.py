@@ -44,3 +44,34 @@ class TestWebhooksEE(BaseTest):
         events = Event.objects.filter(event="User paid")
 
         self.assertEqual(list(events), [])
+
+    @patch("requests.post")
+    def test_post_event_to_webhook_ee_matches_in_memory(self, requests_post):
+        self.team.slack_incoming_webhook = "http://slack.com/hook"
+        self.team.save()
+        action = Action.objects.create(team=self.team, name="paid pageview", post_to_slack=True)
+        ActionStep.objects.create(
+            action=action,
+            event="$pageview",
+            url="/pricing",
+            properties=[{"key": "plan", "value": "PAID", "operator": "icontains"}],
+        )
+        # "contains" can't be evaluated in-memory, this one is matched against a temporary Postgres event
+        fallback_action = Action.objects.create(team=self.team, name="fallback", post_to_slack=True)
+        ActionStep.objects.create(
+            action=fallback_action,
+            event="$pageview",
+            properties=[{"key": "plan", "value": "paid-yearly", "operator": "contains"}],
+        )
+
+        event = {
+            "event": "$pageview",
+            "properties": {"plan": "paid-yearly", "$current_url": "https://example.com/pricing"},
+            "distinct_id": "test",
+            "timestamp": now(),
+            "elements_chain": "",
+        }
+        post_event_to_webhook_ee(event, self.team.pk, "http://testserver")
+
+        self.assertEqual(requests_post.call_count, 2)
+        self.assertEqual(Event.objects.count(), 0)
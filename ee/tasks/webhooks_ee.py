@@ -1,15 +1,14 @@
-from typing import Any, Dict, Sequence, cast
+from typing import Any, Dict, List, Optional
 
 import requests
 import statsd
 from celery import Task
 from django.conf import settings
-from django.db.utils import DataError
-from sentry_sdk import capture_exception
 
 from ee.clickhouse.models.element import chain_to_elements
 from posthog.celery import app
-from posthog.models import Action, Event, Team
+from posthog.models import Element, Event, Team
+from posthog.models.action_matcher import EventForActions, get_compiled_actions, match_actions
 from posthog.tasks.webhooks import determine_webhook_type, get_formatted_message
 
 
@@ -24,46 +23,42 @@ def post_event_to_webhook_ee(self: Task, event: Dict[str, Any], team_id: int, si
     team = Team.objects.select_related("organization").get(pk=team_id)
 
     elements_list = chain_to_elements(event.get("elements_chain", ""))
-    ephemeral_postgres_event = Event.objects.create(
-        event=event["event"],
-        distinct_id=event["distinct_id"],
-        properties=event["properties"],
-        team=team,
-        site_url=site_url,
-        **({"timestamp": event["timestamp"]} if event["timestamp"] else {}),
-        **({"elements": elements_list})
+    event_for_actions = EventForActions(
+        team_id, event["event"], event["distinct_id"], event["properties"], elements_list
     )
+    # Only saved if an action can't be matched in-memory, see match_actions
+    ephemeral_postgres_event: Optional[Event] = None
 
     try:
         is_zapier_available = team.organization.is_feature_available("zapier")
 
-        actionFilters = {"team_id": team_id, "deleted": False}
-        if not is_zapier_available:
-            if not team.slack_incoming_webhook:
-                return  # Exit this task if neither Zapier nor webhook URL are available
-            else:
-                actionFilters["post_to_slack"] = True  # We only need to fire for actions that are posted to webhook URL
+        if not is_zapier_available and not team.slack_incoming_webhook:
+            return  # Exit this task if neither Zapier nor webhook URL are available
 
-        for action in cast(Sequence[Action], Action.objects.filter(**actionFilters).all()):
-            try:
-                # Wrapped in len to evaluate right away
-                qs = len(Event.objects.filter(pk=ephemeral_postgres_event.pk).query_db_by_action(action))
-            except DataError as e:
-                # Ignore invalid regex errors, which are user mistakes
-                if not "invalid regular expression" in str(e):
-                    capture_exception(e)
-                continue
-            except:
-                capture_exception()
-                continue
-            if not qs:
-                continue
+        compiled_actions = [
+            compiled_action
+            for compiled_action in get_compiled_actions(team_id)
+            # We only need to fire for actions that are posted to webhook URL
+            if is_zapier_available or compiled_action.action.post_to_slack
+        ]
+        if any(not compiled_action.in_memory for compiled_action in compiled_actions):
+            ephemeral_postgres_event = _create_ephemeral_event(event, team, site_url, elements_list)
+        matched_actions = match_actions(
+            compiled_actions,
+            [event_for_actions],
+            [ephemeral_postgres_event.pk] if ephemeral_postgres_event is not None else None,
+        )[0]
+
+        hook_event: Optional[Event] = None
+        for action in matched_actions:
+            if hook_event is None:
+                hook_event = _hook_event(event, team, site_url, elements_list)
             # REST hooks
             if is_zapier_available:
-                action.on_perform(ephemeral_postgres_event)
+                action.on_perform(hook_event)
             # webhooks
             if team.slack_incoming_webhook and action.post_to_slack:
-                message_text, message_markdown = get_formatted_message(action, ephemeral_postgres_event, site_url)
+                message_text, message_markdown = get_formatted_message(action, hook_event, site_url)
                 if determine_webhook_type(team) == "slack":
                     message = {
                         "text": message_text,
@@ -79,4 +74,32 @@ def post_event_to_webhook_ee(self: Task, event: Dict[str, Any], team_id: int, si
         raise
     finally:
         timer.stop("hooks_processed_for_event")
-        ephemeral_postgres_event.delete()
+        if ephemeral_postgres_event is not None:
+            statsd.Counter("%s_posthog_cloud_hooks_postgres_fallback" % (settings.STATSD_PREFIX)).increment()
+            ephemeral_postgres_event.delete()
+
+
+def _hook_event(event: Dict[str, Any], team: Team, site_url: str, elements_list: List[Element]) -> Event:
+    # Never saved, it's only there to build the hook payloads and messages from
+    hook_event = Event(
+        event=event["event"],
+        distinct_id=event["distinct_id"],
+        properties=event["properties"],
+        team=team,
+        site_url=site_url,
+        **({"timestamp": event["timestamp"]} if event["timestamp"] else {}),
+    )
+    hook_event.elements_list = elements_list  # type: ignore
+    return hook_event
+
+
+def _create_ephemeral_event(event: Dict[str, Any], team: Team, site_url: str, elements_list: List[Element]) -> Event:
+    return Event.objects.create(
+        event=event["event"],
+        distinct_id=event["distinct_id"],
+        properties=event["properties"],
+        team=team,
+        site_url=site_url,
+        **({"timestamp": event["timestamp"]} if event["timestamp"] else {}),
+        **({"elements": elements_list})
+    )
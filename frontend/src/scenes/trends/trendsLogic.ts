@@ -27,8 +27,12 @@ import { propertyDefinitionsLogic } from 'scenes/events/propertyDefinitionsLogic
 interface TrendResponse {
     result: TrendResult[]
     next?: string
+    is_refreshing?: boolean
 }
 
+// How often to check back for fresh results while a stale cached result is being recomputed
+const REFRESHING_POLL_INTERVAL = 5000
+
 export interface IndexedTrendResult extends TrendResult {
     id: number
 }
@@ -223,6 +227,7 @@ export const trendsLogic = kea<
         loadMoreBreakdownValues: true,
         setBreakdownValuesLoading: (loading: boolean) => ({ loading }),
         toggleLifecycle: (lifecycleName: string) => ({ lifecycleName }),
+        setPollTimeout: (pollTimeout: number | null) => ({ pollTimeout }),
     }),
 
     reducers: ({ props }) => ({
@@ -299,6 +304,12 @@ export const trendsLogic = kea<
                 setBreakdownValuesLoading: (_, { loading }) => loading,
             },
         ],
+        pollTimeout: [
+            null as number | null,
+            {
+                setPollTimeout: (_, { pollTimeout }) => pollTimeout,
+            },
+        ],
     }),
 
     selectors: () => ({
@@ -457,6 +468,11 @@ export const trendsLogic = kea<
             actions.loadResults()
         },
         loadResultsSuccess: () => {
+            clearTimeout(values.pollTimeout ?? undefined)
+            if (values._results.is_refreshing) {
+                // The API served a stale result and is recomputing it, load it again once it's likely done
+                actions.setPollTimeout(window.setTimeout(() => actions.loadResults(), REFRESHING_POLL_INTERVAL))
+            }
             if (!props.dashboardItemId) {
                 insightHistoryLogic.actions.createInsight({
                     ...values.filters,
@@ -509,13 +525,16 @@ export const trendsLogic = kea<
         },
     }),
 
-    events: ({ actions, props }) => ({
+    events: ({ actions, props, values }) => ({
         afterMount: () => {
             if (props.dashboardItemId || insightLogic.values.fromDashboardItem) {
                 // loadResults gets called in urlToAction for non-dashboard insights
                 actions.loadResults()
             }
         },
+        beforeUnmount: () => {
+            clearTimeout(values.pollTimeout ?? undefined)
+        },
     }),
 
     actionToUrl: ({ values, props }) => ({
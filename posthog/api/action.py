@@ -18,7 +18,7 @@ from posthog.api.shared import UserBasicSerializer
 from posthog.api.utils import get_target_entity
 from posthog.auth import PersonalAPIKeyAuthentication, TemporaryTokenAuthentication
 from posthog.celery import update_cache_item_task
-from posthog.constants import TREND_FILTER_TYPE_ACTIONS, TREND_FILTER_TYPE_EVENTS, TRENDS_STICKINESS
+from posthog.constants import TREND_FILTER_TYPE_ACTIONS, TREND_FILTER_TYPE_EVENTS, TRENDS_STICKINESS, QueryProfile
 from posthog.decorators import CacheType, cached_function
 from posthog.models import (
     Action,
@@ -204,7 +204,7 @@ class ActionViewSet(StructuredViewSetMixin, viewsets.ModelViewSet):
         result = self._calculate_trends(request)
         return Response(result)
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.TRENDS)
     def _calculate_trends(self, request: request.Request) -> List[Dict[str, Any]]:
         team = self.team
         filter = Filter(request=request)
@@ -262,7 +262,8 @@ class ActionViewSet(StructuredViewSetMixin, viewsets.ModelViewSet):
                     return Response(result)
 
         payload = {"filter": filter.toJSON(), "team_id": team.pk}
-        task = update_cache_item_task.delay(cache_key, CacheType.FUNNEL, payload)
+        # Someone is waiting on this one, unlike the periodic dashboard refreshes that use the same task
+        task = update_cache_item_task.delay(cache_key, CacheType.FUNNEL, payload, QueryProfile.INTERACTIVE)
         if not task.ready():
             task_id = task.id
             cache.set(cache_key, {"task_id": task_id}, 180)  # task will be live for 3 minutes
@@ -1,7 +1,7 @@
 import json
 import re
 from datetime import datetime
-from typing import Any, Dict, Optional, Sequence
+from typing import Any, Dict, List, Optional, Sequence
 
 import statsd
 from dateutil import parser
@@ -17,7 +17,7 @@ from posthog.ee import is_ee_enabled
 from posthog.exceptions import RequestParsingError, generate_exception_response
 from posthog.helpers.session_recording import preprocess_session_recording_events
 from posthog.models import Team, User
-from posthog.models.feature_flag import get_active_feature_flags
+from posthog.models.feature_flag import get_memoized_active_feature_flags
 from posthog.models.utils import UUIDT
 from posthog.utils import cors_response, get_ip_address, load_data_from_request
 
@@ -124,10 +124,19 @@ def _get_distinct_id(data: Dict[str, Any]) -> str:
             return str(data["distinct_id"])[0:200]
 
 
-def _ensure_web_feature_flags_in_properties(event: Dict[str, Any], team: Team, distinct_id: str):
-    """If the event comes from web, ensure that it contains property $active_feature_flags."""
+def _ensure_web_feature_flags_in_properties(
+    event: Dict[str, Any], team: Team, distinct_id: str, flags_by_distinct_id: Dict[str, List[str]]
+):
+    """
+    If the event comes from web, ensure that it contains property $active_feature_flags.
+    Flags are evaluated once per distinct ID per batch (`flags_by_distinct_id`) and memoized across requests.
+    """
+    if settings.CAPTURE_DEFER_FEATURE_FLAG_ENRICHMENT:
+        return
     if event["properties"].get("$lib") == "web" and not event["properties"].get("$active_feature_flags"):
-        event["properties"]["$active_feature_flags"] = get_active_feature_flags(team, distinct_id)
+        if distinct_id not in flags_by_distinct_id:
+            flags_by_distinct_id[distinct_id] = get_memoized_active_feature_flags(team, distinct_id)
+        event["properties"]["$active_feature_flags"] = flags_by_distinct_id[distinct_id]
 
 
 @csrf_exempt
@@ -215,6 +224,10 @@ def get_event(request):
     except ValueError as e:
         return cors_response(request, generate_exception_response(f"Invalid payload: {e}", code="invalid_payload"))
 
+    site_url = request.build_absolute_uri("/")[:-1]
+    ip = None if team.anonymize_ips else get_ip_address(request)
+    flags_by_distinct_id: Dict[str, List[str]] = {}
+
     for event in events:
         try:
             distinct_id = _get_distinct_id(event)
@@ -236,10 +249,9 @@ def get_event(request):
         if not event.get("properties"):
             event["properties"] = {}
 
-        _ensure_web_feature_flags_in_properties(event, team, distinct_id)
+        _ensure_web_feature_flags_in_properties(event, team, distinct_id, flags_by_distinct_id)
 
         event_uuid = UUIDT()
-        ip = None if team.anonymize_ips else get_ip_address(request)
 
         if is_ee_enabled():
             statsd.Counter("%s_posthog_cloud_plugin_server_ingestion" % (settings.STATSD_PREFIX,)).increment()
@@ -247,7 +259,7 @@ def get_event(request):
             log_event(
                 distinct_id=distinct_id,
                 ip=ip,
-                site_url=request.build_absolute_uri("/")[:-1],
+                site_url=site_url,
                 data=event,
                 team_id=team.id,
                 now=now,
@@ -260,7 +272,7 @@ def get_event(request):
             celery_app.send_task(
                 name=task_name,
                 queue=celery_queue,
-                args=[distinct_id, ip, request.build_absolute_uri("/")[:-1], event, team.id, now.isoformat(), sent_at,],
+                args=[distinct_id, ip, site_url, event, team.id, now.isoformat(), sent_at,],
             )
     timer.stop("event_endpoint")
     return cors_response(request, JsonResponse({"status": 1}))
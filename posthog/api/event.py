@@ -66,6 +66,9 @@ class EventSerializer(serializers.HyperlinkedModelSerializer):
         return None
 
     def get_elements(self, event: Event):
+        if hasattr(event, "elements_list"):
+            # events that were never saved, such as the ones webhooks are fired for
+            return ElementSerializer(event.elements_list, many=True).data  # type: ignore
         if not event.elements_hash:
             return []
         if hasattr(event, "elements_group_cache"):
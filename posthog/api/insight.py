@@ -14,7 +14,15 @@ from posthog.api.routing import StructuredViewSetMixin
 from posthog.api.shared import UserBasicSerializer
 from posthog.api.utils import format_next_url
 from posthog.celery import update_cache_item_task
-from posthog.constants import FROM_DASHBOARD, INSIGHT, INSIGHT_FUNNELS, INSIGHT_PATHS, TRENDS_STICKINESS
+from posthog.constants import (
+    FROM_DASHBOARD,
+    INSIGHT,
+    INSIGHT_FUNNELS,
+    INSIGHT_PATHS,
+    INSIGHT_SESSIONS,
+    TRENDS_STICKINESS,
+    QueryProfile,
+)
 from posthog.decorators import CacheType, cached_function
 from posthog.models import DashboardItem, Event, Filter, Team
 from posthog.models.filters import RetentionFilter
@@ -27,6 +35,26 @@ from posthog.queries.sessions.sessions import Sessions
 from posthog.utils import generate_cache_key, get_safe_cache
 
 
+# The filters the insight endpoints run, cached_function recomputes stale results with the same ones
+def get_session_filter(request: request.Request) -> SessionsFilter:
+    return SessionsFilter(request=request, data={"insight": INSIGHT_SESSIONS})
+
+
+def get_funnel_filter(request: request.Request) -> Filter:
+    return Filter(request=request, data={"insight": INSIGHT_FUNNELS})
+
+
+def get_retention_filter(request: request.Request) -> RetentionFilter:
+    data = {}
+    if not request.GET.get("date_from"):
+        data.update({"date_from": "-11d"})
+    return RetentionFilter(data=data, request=request)
+
+
+def get_path_filter(request: request.Request) -> PathFilter:
+    return PathFilter(request=request, data={"insight": INSIGHT_PATHS})
+
+
 class InsightSerializer(serializers.ModelSerializer):
     result = serializers.SerializerMethodField()
     created_by = UserBasicSerializer(read_only=True)
@@ -150,7 +178,7 @@ class InsightViewSet(StructuredViewSetMixin, viewsets.ModelViewSet):
         next = format_next_url(request, filter.offset, 20) if len(result["result"]) > 20 else None
         return Response({**result, "next": next})
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.TRENDS)
     def calculate_trends(self, request: request.Request) -> Dict[str, Any]:
         team = self.team
         filter = Filter(request=request)
@@ -178,9 +206,9 @@ class InsightViewSet(StructuredViewSetMixin, viewsets.ModelViewSet):
     def session(self, request: request.Request, *args: Any, **kwargs: Any) -> Response:
         return Response(self.calculate_session(request))
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.SESSION, filter_for_request=get_session_filter)
     def calculate_session(self, request: request.Request) -> Dict[str, Any]:
-        result = Sessions().run(filter=SessionsFilter(request=request), team=self.team)
+        result = Sessions().run(filter=get_session_filter(request), team=self.team)
         return {"result": result}
 
     # ******************************************
@@ -220,7 +248,8 @@ class InsightViewSet(StructuredViewSetMixin, viewsets.ModelViewSet):
                     return {"result": result}
 
         payload = {"filter": filter.toJSON(), "team_id": team.pk}
-        task = update_cache_item_task.delay(cache_key, CacheType.FUNNEL, payload)
+        # Someone is waiting on this one, unlike the periodic dashboard refreshes that use the same task
+        task = update_cache_item_task.delay(cache_key, CacheType.FUNNEL, payload, QueryProfile.INTERACTIVE)
         if not task.ready():
             task_id = task.id
             cache.set(cache_key, {"task_id": task_id}, 180)  # task will be live for 3 minutes
@@ -239,13 +268,10 @@ class InsightViewSet(StructuredViewSetMixin, viewsets.ModelViewSet):
         result = self.calculate_retention(request)
         return Response(result)
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.RETENTION, filter_for_request=get_retention_filter)
     def calculate_retention(self, request: request.Request) -> Dict[str, Any]:
         team = self.team
-        data = {}
-        if not request.GET.get("date_from"):
-            data.update({"date_from": "-11d"})
-        filter = RetentionFilter(data=data, request=request)
+        filter = get_retention_filter(request)
         result = retention.Retention().run(filter, team)
         return {"result": result}
 
@@ -261,10 +287,10 @@ class InsightViewSet(StructuredViewSetMixin, viewsets.ModelViewSet):
         result = self.calculate_path(request)
         return Response(result)
 
-    @cached_function()
+    @cached_function(cache_type=CacheType.PATHS, filter_for_request=get_path_filter)
     def calculate_path(self, request: request.Request) -> Dict[str, Any]:
         team = self.team
-        filter = PathFilter(request=request, data={"insight": INSIGHT_PATHS})
+        filter = get_path_filter(request)
         resp = paths.Paths().run(filter=filter, team=team)
         return {"result": resp}
 
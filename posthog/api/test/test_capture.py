@@ -13,7 +13,7 @@ from freezegun import freeze_time
 from rest_framework import status
 
 from posthog.models import PersonalAPIKey
-from posthog.models.feature_flag import FeatureFlag
+from posthog.models.feature_flag import FeatureFlag, get_active_feature_flags
 from posthog.test.base import BaseTest
 
 
@@ -265,6 +265,33 @@ class TestCapture(BaseTest):
         )
         self.assertEqual(patch_process_event_with_plugins.call_count, 0)
 
+    @patch("posthog.models.team.TEAM_CACHE", {})
+    @patch("posthog.api.capture.celery_app.send_task")
+    def test_gzip_exceeding_max_decompressed_size(self, patch_process_event_with_plugins):
+        data = {
+            "api_key": self.team.api_token,
+            "batch": [{"type": "capture", "event": "user signed up", "distinct_id": "2"}] * 100,
+        }
+
+        with self.settings(MAX_DECOMPRESSED_REQUEST_SIZE=1000):
+            response = self.client.generic(
+                "POST",
+                "/batch/",
+                data=gzip.compress(json.dumps(data).encode()),
+                content_type="application/json",
+                HTTP_CONTENT_ENCODING="gzip",
+            )
+
+        self.assertEqual(response.status_code, status.HTTP_400_BAD_REQUEST)
+        self.assertEqual(
+            response.json(),
+            self.validation_error_response(
+                "Malformed request data: Failed to decompress data. Decompressed data exceeds 1000 bytes",
+                code="invalid_payload",
+            ),
+        )
+        self.assertEqual(patch_process_event_with_plugins.call_count, 0)
+
     @patch("posthog.models.team.TEAM_CACHE", {})
     @patch("posthog.api.capture.celery_app.send_task")
     def test_invalid_lz64(self, patch_process_event_with_plugins):
@@ -668,6 +695,37 @@ class TestCapture(BaseTest):
         arguments = self._to_arguments(patch_process_event_with_plugins)
         self.assertEqual(arguments["data"]["properties"]["$active_feature_flags"], ["test-ff"])
 
+    @patch("posthog.api.capture.celery_app.send_task")
+    def test_feature_flags_evaluated_once_per_distinct_id(self, patch_process_event_with_plugins) -> None:
+        FeatureFlag.objects.create(team=self.team, created_by=self.user, key="test-ff", rollout_percentage=100)
+        events = [
+            {"event": "purchase", "properties": {"distinct_id": distinct_id, "$lib": "web"}}
+            for distinct_id in ["xxx", "xxx", "yyy"]
+        ]
+        with patch(
+            "posthog.models.feature_flag.get_active_feature_flags", wraps=get_active_feature_flags
+        ) as patch_get_active_feature_flags:
+            self.client.post("/track/", data={"data": json.dumps(events), "api_key": self.team.api_token})
+            self.client.post("/track/", data={"data": json.dumps(events), "api_key": self.team.api_token})
+
+        self.assertEqual(patch_get_active_feature_flags.call_count, 2)
+        for call in patch_process_event_with_plugins.call_args_list:
+            self.assertEqual(call[1]["args"][3]["properties"]["$active_feature_flags"], ["test-ff"])
+
+    @patch("posthog.api.capture.celery_app.send_task")
+    def test_feature_flags_enrichment_deferred(self, patch_process_event_with_plugins) -> None:
+        FeatureFlag.objects.create(team=self.team, created_by=self.user, key="test-ff", rollout_percentage=100)
+        with self.settings(CAPTURE_DEFER_FEATURE_FLAG_ENRICHMENT=True):
+            self.client.post(
+                "/track/",
+                data={
+                    "data": json.dumps([{"event": "purchase", "properties": {"distinct_id": "xxx", "$lib": "web"}}]),
+                    "api_key": self.team.api_token,
+                },
+            )
+        arguments = self._to_arguments(patch_process_event_with_plugins)
+        self.assertNotIn("$active_feature_flags", arguments["data"]["properties"])
+
     def test_handle_lacking_event_name_field(self):
         response = self.client.post(
             "/e/",
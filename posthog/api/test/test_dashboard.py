@@ -1,4 +1,5 @@
 import json
+from unittest.mock import patch
 
 from django.utils import timezone
 from django.utils.timezone import now
@@ -163,6 +164,29 @@ class TestDashboard(APIBaseTest):
         self.assertEqual(response["items"][0]["result"], None)
         self.assertEqual(response["items"][0]["last_refresh"], None)
 
+    @patch("posthog.api.dashboard.update_cache_items_batch", side_effect=Exception("ClickHouse is down"))
+    @patch("posthog.api.dashboard.get_refresh_batches")
+    def test_retrieve_dashboard_when_batched_refresh_fails(self, patch_get_refresh_batches, patch_update_batch):
+        patch_get_refresh_batches.side_effect = lambda items: [items]
+        dashboard = Dashboard.objects.create(team=self.team, name="dashboard")
+        item = DashboardItem.objects.create(
+            dashboard=dashboard, filters=Filter(data={"events": [{"id": "$pageview"}]}).to_dict(), team=self.team
+        )
+        DashboardItem.objects.create(
+            dashboard=dashboard,
+            filters=Filter(data={"events": [{"id": "$pageleave"}]}).to_dict(),
+            team=self.team,
+            deleted=True,
+        )
+
+        response = self.client.get("/api/dashboard/%s/" % dashboard.pk)
+
+        self.assertEqual(response.status_code, status.HTTP_200_OK)
+        self.assertEqual([response_item["id"] for response_item in response.json()["items"]], [item.pk])
+        self.assertEqual(response.json()["items"][0]["result"], None)
+        # The deleted item isn't refreshed
+        self.assertEqual([key for key, _ in patch_update_batch.call_args[0][0]], [item.filters_hash])
+
     def test_dashboard_endpoints(self):
         # create
         response = self.client.post("/api/dashboard/", {"name": "Default", "pinned": "true"},)
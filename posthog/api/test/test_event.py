@@ -383,8 +383,9 @@ def factory_test_event_api(event_factory, person_factory, _):
                 for _ in range(1234):
                     event_factory(team=self.team, event="5th action", distinct_id="2", properties={"$os": "Windows 95"})
                 response = self.client.get("/api/event.csv")
+            content = b"".join(response.streaming_content) if response.streaming else response.content
             self.assertEqual(
-                len(response.content.splitlines()),
+                len(content.splitlines()),
                 1001,
                 "CSV export should return up to CSV_EXPORT_LIMIT events (+ headers row)",
             )
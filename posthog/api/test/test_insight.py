@@ -1,16 +1,20 @@
 import json
 from datetime import timedelta
+from unittest.mock import patch
 
+from django.core.cache import cache
 from django.test.utils import override_settings
 from django.utils import timezone
 from freezegun import freeze_time
 from rest_framework import status
 
+from posthog.decorators import CacheType, revalidation_lock_key
 from posthog.ee import is_ee_enabled
 from posthog.models.dashboard_item import DashboardItem
 from posthog.models.event import Event
 from posthog.models.filters import Filter
 from posthog.models.person import Person
+from posthog.settings import CACHED_RESULTS_TTL, TEMP_CACHE_RESULTS_TTL
 from posthog.test.base import APIBaseTest
 
 # TODO: two tests below fail in EE
@@ -92,6 +96,61 @@ def insight_test_factory(event_factory, person_factory):
             self.assertEqual(response["result"][0]["count"], 2)
             self.assertEqual(response["result"][0]["action"]["name"], "$pageview")
 
+        @override_settings(CELERY_TASK_ALWAYS_EAGER=True, CACHED_RESULTS_STALE_AFTER_SECONDS=15 * 60)
+        def test_insight_trends_stale_while_revalidate(self):
+            url = "/api/insight/trend/?events={}".format(json.dumps([{"id": "$pageview"}]))
+            with freeze_time("2012-01-15T04:01:34.000Z"):
+                event_factory(team=self.team, event="$pageview", distinct_id="1")
+                self.client.get(url)
+                event_factory(team=self.team, event="$pageview", distinct_id="2")
+
+            with freeze_time("2012-01-15T04:10:34.000Z"):
+                response = self.client.get(url).json()
+            self.assertEqual(response["result"][0]["count"], 1)
+            self.assertEqual(response["is_refreshing"], False)
+
+            with freeze_time("2012-01-15T04:30:34.000Z"):
+                # stale, served as is while the task (run right away here) recomputes it
+                response = self.client.get(url).json()
+                self.assertEqual(response["result"][0]["count"], 1)
+                self.assertEqual(response["is_refreshing"], True)
+
+                response = self.client.get(url).json()
+                self.assertEqual(response["result"][0]["count"], 2)
+                self.assertEqual(response["is_refreshing"], False)
+
+        @override_settings(CACHED_RESULTS_STALE_AFTER_SECONDS=15 * 60)
+        @patch("posthog.celery.update_cache_item_task.delay")
+        def test_insight_retention_revalidated_with_endpoint_defaults(self, patch_delay):
+            with freeze_time("2012-01-15T04:01:34.000Z"):
+                self.client.get("/api/insight/retention/")
+            with freeze_time("2012-01-15T04:30:34.000Z"):
+                response = self.client.get("/api/insight/retention/").json()
+            self.assertEqual(response["is_refreshing"], True)
+
+            _, cache_type, payload = patch_delay.call_args[0]
+            self.assertEqual(cache_type, CacheType.RETENTION)
+            self.assertEqual(json.loads(payload["filter"])["date_from"], "-11d")
+            self.assertEqual(payload["ttl"], TEMP_CACHE_RESULTS_TTL)
+
+        @override_settings(CACHED_RESULTS_STALE_AFTER_SECONDS=15 * 60)
+        @patch("posthog.celery.update_cache_item_task.delay")
+        def test_insight_revalidation_keeps_dashboard_item_ttl(self, patch_delay):
+            with freeze_time("2012-01-15T04:01:34.000Z"):
+                self.client.get("/api/insight/retention/")
+            with freeze_time("2012-01-15T04:30:34.000Z"):
+                self.client.get("/api/insight/retention/")
+            cache_key = patch_delay.call_args[0][0]
+
+            DashboardItem.objects.create(team=self.team, filters_hash=cache_key)
+            cache.delete(revalidation_lock_key(cache_key))
+            with freeze_time("2012-01-15T04:30:34.000Z"):
+                response = self.client.get("/api/insight/retention/").json()
+            self.assertEqual(response["is_refreshing"], True)
+
+            _, _, payload = patch_delay.call_args[0]
+            self.assertEqual(payload["ttl"], CACHED_RESULTS_TTL)
+
         def test_insight_trends_breakdown_pagination(self):
             with freeze_time("2012-01-14T03:21:34.000Z"):
                 for i in range(25):
@@ -83,6 +83,7 @@ def setup_periodic_tasks(sender, **kwargs):
         sender.add_periodic_task(120, clickhouse_row_count.s(), name="clickhouse events table row count")
         sender.add_periodic_task(120, clickhouse_part_count.s(), name="clickhouse table parts count")
         sender.add_periodic_task(120, clickhouse_mutation_count.s(), name="clickhouse table mutations count")
+        sender.add_periodic_task(crontab(hour=5, minute=0), clickhouse_materialize_columns.s())
     else:
         sender.add_periodic_task(
             ACTION_EVENT_MAPPING_INTERVAL_SECONDS,
@@ -260,10 +261,17 @@ def check_cached_items():
 
 
 @app.task(ignore_result=True)
-def update_cache_item_task(key: str, cache_type, payload: dict) -> None:
+def update_cache_item_task(key: str, cache_type, payload: dict, profile: str = "dashboard_refresh") -> None:
     from posthog.tasks.update_cache import update_cache_item
 
-    update_cache_item(key, cache_type, payload)
+    update_cache_item(key, cache_type, payload, profile)
+
+
+@app.task(ignore_result=True)
+def update_cache_items_batch_task(items: list, profile: str = "dashboard_refresh") -> None:
+    from posthog.tasks.update_cache import update_cache_items_batch
+
+    update_cache_items_batch([(key, payload) for key, payload in items], profile)
 
 
 @app.task(ignore_result=True)
@@ -286,6 +294,23 @@ def calculate_event_property_usage():
     calculate_event_property_usage()
 
 
+@app.task(ignore_result=True)
+def clickhouse_materialize_columns():
+    if is_ee_enabled() and settings.EE_AVAILABLE:
+        from ee.clickhouse.materialized_columns import get_interrupted_backfills, materialize_hot_properties
+
+        for property in get_interrupted_backfills() + materialize_hot_properties():
+            clickhouse_backfill_materialized_column.delay(property)
+
+
+@app.task(ignore_result=True)
+def clickhouse_backfill_materialized_column(property: str):
+    if is_ee_enabled() and settings.EE_AVAILABLE:
+        from ee.clickhouse.materialized_columns import backfill_materialized_column
+
+        backfill_materialized_column(property)
+
+
 @app.task(ignore_result=True)
 def calculate_billing_daily_usage():
     try:
@@ -85,6 +85,7 @@ FORMULA = "formula"
 ENTITY_ID = "entity_id"
 ENTITY_TYPE = "entity_type"
 ENTITY_MATH = "entity_math"
+SAMPLING_FACTOR = "sampling_factor"
 
 RETENTION_RECURRING = "retention_recurring"
 RETENTION_FIRST_TIME = "retention_first_time"
@@ -97,5 +98,13 @@ class RDBMS(str, Enum):
     CLICKHOUSE = "clickhouse"
 
 
+class QueryProfile(str, Enum):
+    # What a query is run for, which decides how much of the database it may use
+    INTERACTIVE = "interactive"
+    DASHBOARD_REFRESH = "dashboard_refresh"
+    BACKGROUND_TASK = "background_task"
+    EXPORT = "export"
+
+
 WEEKLY_ACTIVE = "weekly_active"
 MONTHLY_ACTIVE = "monthly_active"
@@ -1,17 +1,19 @@
 from datetime import datetime
 from enum import Enum
 from functools import wraps
-from typing import Callable, Dict, List, Union, cast
+from typing import Any, Callable, Dict, List, Optional, Union, cast
 
+from django.conf import settings
 from django.core.cache import cache
 from django.http.request import HttpRequest
 from django.utils.timezone import now
 
+from posthog.constants import INSIGHT_FUNNELS, INSIGHT_PATHS, INSIGHT_RETENTION, INSIGHT_SESSIONS, INSIGHT_TRENDS
 from posthog.models import Filter, Team, User
 from posthog.models.dashboard_item import DashboardItem
 from posthog.models.filters.utils import get_filter
-from posthog.settings import TEMP_CACHE_RESULTS_TTL
-from posthog.utils import generate_cache_key
+from posthog.settings import CACHED_RESULTS_TTL, TEMP_CACHE_RESULTS_TTL
+from posthog.utils import generate_cache_key, tag_queries
 
 from .utils import generate_cache_key, get_safe_cache
 
@@ -25,7 +27,30 @@ class CacheType(str, Enum):
     PATHS = "Path"
 
 
-def cached_function():
+# The insight a background recompute runs as, stickiness is a trends insight shown as stickiness
+CACHE_TYPE_TO_FILTER_INSIGHT = {
+    CacheType.TRENDS: INSIGHT_TRENDS,
+    CacheType.FUNNEL: INSIGHT_FUNNELS,
+    CacheType.RETENTION: INSIGHT_RETENTION,
+    CacheType.SESSION: INSIGHT_SESSIONS,
+    CacheType.PATHS: INSIGHT_PATHS,
+}
+
+# how long a single background recompute of a cached result can be waited on before another one is queued
+REVALIDATION_LOCK_SECONDS = 5 * 60
+
+
+def cached_function(
+    cache_type: Optional[CacheType] = None, filter_for_request: Optional[Callable[[HttpRequest], Any]] = None
+):
+    """
+    Caches the result of an insight endpoint by filter and team. With a `cache_type`, results older than
+    CACHED_RESULTS_STALE_AFTER_SECONDS are still returned right away (stale-while-revalidate), a background task
+    recomputes them and `is_refreshing` is set until it's done. Requests with `refresh` always recompute right away.
+    The background task runs the filter `filter_for_request` builds, which must be the one the endpoint runs
+    (Filter(request=request) by default).
+    """
+
     def parameterized_decorator(f: Callable):
         @wraps(f)
         def wrapper(*args, **kwargs) -> Dict[str, Union[List, datetime, bool]]:
@@ -42,9 +67,13 @@ def cached_function():
             if not request.GET.get("refresh", False):
                 cached_result = get_safe_cache(cache_key)
                 if cached_result and cached_result.get("result"):
-                    return {**cached_result, "is_cached": True}
+                    is_refreshing = False
+                    if cache_type is not None and _is_stale(cached_result):
+                        is_refreshing = _revalidate(request, team, cache_key, cache_type, filter_for_request)
+                    return {**cached_result, "is_cached": True, "is_refreshing": is_refreshing}
             # call function being wrapped
-            result = f(*args, **kwargs)
+            with tag_queries(insight=filter.insight, team_id=team.pk, filter_hash=cache_key):
+                result = f(*args, **kwargs)
 
             # cache new data
             if result is not None and not (isinstance(result.get("result"), dict) and result["result"].get("loading")):
@@ -59,3 +88,40 @@ def cached_function():
         return wrapper
 
     return parameterized_decorator
+
+
+def revalidation_lock_key(cache_key: str) -> str:
+    return "{}_revalidating".format(cache_key)
+
+
+def _is_stale(cached_result: Dict) -> bool:
+    last_refresh = cached_result.get("last_refresh")
+    return not last_refresh or (now() - last_refresh).total_seconds() > settings.CACHED_RESULTS_STALE_AFTER_SECONDS
+
+
+def _revalidate(
+    request: HttpRequest,
+    team: Team,
+    cache_key: str,
+    cache_type: CacheType,
+    filter_for_request: Optional[Callable[[HttpRequest], Any]],
+) -> bool:
+    """
+    Queues a recompute of `cache_key` unless one already is. update_cache_item releases the lock once the new
+    result is cached.
+    """
+    from posthog.celery import update_cache_item_task
+    from posthog.tasks.update_cache import get_cache_type
+
+    if not cache.add(revalidation_lock_key(cache_key), True, REVALIDATION_LOCK_SECONDS):
+        return True
+
+    # the endpoint's own filter, with its defaults, under the insight it runs rather than the one in the request
+    filter = filter_for_request(request) if filter_for_request else Filter(request=request)
+    filter = get_filter(team=team, data={**filter.to_dict(), "insight": CACHE_TYPE_TO_FILTER_INSIGHT[cache_type]})
+    # results only the endpoint cached keep their shorter TTL, those shared with dashboard items keep the longer one
+    shared_with_dashboard = DashboardItem.objects.filter(team_id=team.pk, filters_hash=cache_key).exists()
+    ttl = CACHED_RESULTS_TTL if shared_with_dashboard else TEMP_CACHE_RESULTS_TTL
+    payload = {"filter": filter.toJSON(), "team_id": team.pk, "ttl": ttl}
+    update_cache_item_task.delay(cache_key, get_cache_type(filter), payload)
+    return True
@@ -0,0 +1,30 @@
+# Generated by Django 3.1.8 on 2021-05-10 09:12
+
+import django.db.models.deletion
+from django.db import migrations, models
+
+
+class Migration(migrations.Migration):
+
+    dependencies = [
+        ("posthog", "0151_plugin_preinstalled"),
+    ]
+
+    operations = [
+        migrations.CreateModel(
+            name="ActionEventsWatermark",
+            fields=[
+                (
+                    "team",
+                    models.OneToOneField(
+                        on_delete=django.db.models.deletion.CASCADE,
+                        primary_key=True,
+                        serialize=False,
+                        to="posthog.team",
+                    ),
+                ),
+                ("last_event_id", models.BigIntegerField()),
+                ("updated_at", models.DateTimeField(auto_now=True)),
+            ],
+        ),
+    ]
@@ -1,13 +1,18 @@
 import datetime
 
-import celery
+from django.conf import settings
 from django.core.exceptions import EmptyResultSet
 from django.db import connection, models, transaction
 from django.db.models import Q
+from django.dispatch import receiver
 from django.utils import timezone
 from rest_hooks.signals import raw_hook_event
 from sentry_sdk import capture_exception
 
+from posthog.redis import get_client
+
+from .action_step import ActionStep
+
 
 class Action(models.Model):
     class Meta:
@@ -24,7 +29,6 @@ class Action(models.Model):
         if end is None:
             end = timezone.now() + datetime.timedelta(days=1)
 
-        last_calculated_at = self.last_calculated_at
         now_calculated_at = timezone.now()
         self.is_calculating = True
         self.save()
@@ -60,14 +64,8 @@ class Action(models.Model):
                     cursor.execute(delete_query + ";" + insert_query, params)
                 except Exception as err:
                     capture_exception(err)
-
-            if self.post_to_slack:
-                for event in self.events.filter(
-                    created_at__gt=last_calculated_at, team__slack_incoming_webhook__isnull=False
-                ).only("pk", "site_url"):
-                    celery.current_app.send_task(
-                        "posthog.tasks.webhooks.post_event_to_webhook", (event.pk, event.site_url)
-                    )
+            # New events are posted to Slack by materialize_action_events as they're matched, not here. Recalculating
+            # (e.g. after an edit) would post them again.
         finally:
             self.is_calculating = False
             self.last_calculated_at = now_calculated_at
@@ -113,3 +111,37 @@ class Action(models.Model):
             "has_properties": self.steps.exclude(properties=[]).exists(),
             "deleted": self.deleted,
         }
+
+
+@receiver([models.signals.post_save, models.signals.post_delete], sender=Action)
+def action_matcher_cache_invalidation_needed(sender, instance, **kwargs):
+    _invalidate_action_matcher_cache_everywhere(instance.team_id)
+
+
+@receiver([models.signals.post_save, models.signals.post_delete], sender=ActionStep)
+def action_step_matcher_cache_invalidation_needed(sender, instance, **kwargs):
+    team_id = Action.objects.filter(pk=instance.action_id).values_list("team_id", flat=True).first()
+    if team_id is not None:
+        _invalidate_action_matcher_cache_everywhere(team_id)
+
+
+def _invalidate_action_matcher_cache_everywhere(team_id: int) -> None:
+    from .action_matcher import invalidate_action_matcher_cache
+
+    invalidate_action_matcher_cache(team_id)
+    try:
+        get_client().publish(settings.ACTION_MATCHER_CACHE_INVALIDATION_PUBSUB_CHANNEL, team_id)
+    except Exception as err:
+        # Other processes still pick up the change once their cached matcher expires
+        capture_exception(err)
+
+
+class ActionEventsWatermark(models.Model):
+    """
+    How far the events of a team have been matched against its actions, see materialize_action_events: every event
+    up to and including `last_event_id` has been.
+    """
+
+    team: models.OneToOneField = models.OneToOneField("Team", on_delete=models.CASCADE, primary_key=True)
+    last_event_id: models.BigIntegerField = models.BigIntegerField()
+    updated_at: models.DateTimeField = models.DateTimeField(auto_now=True)
@@ -0,0 +1,357 @@
+import re
+import threading
+import time
+from collections import defaultdict
+from typing import Any, Dict, List, Optional, Pattern, Set, Tuple
+
+from django.conf import settings
+from django.db import DataError, transaction
+from django.db.models import Exists, OuterRef, Prefetch
+from sentry_sdk.api import capture_exception
+
+from posthog.redis import subscribe_in_background
+
+from .action import Action
+from .action_step import ActionStep
+from .cohort import CohortPeople
+from .element import Element
+from .event import Event, Selector, SelectorPart
+from .filters import Filter
+from .person import Person
+from .property import json_text
+
+# team ID -> (compiled actions, version they were compiled at, expiry as per `time.monotonic()`)
+ACTION_MATCHER_CACHE: Dict[int, Tuple[List["CompiledAction"], int, float]] = {}
+# team ID -> version of its actions, bumped whenever one of them or their steps changes
+ACTION_MATCHER_CACHE_VERSIONS: Dict[int, int] = {}
+_action_matcher_cache_lock = threading.Lock()
+
+ELEMENT_FILTER_KEYS = ("tag_name", "text", "href")
+
+
+class EventForActions:
+    """
+    An event as it comes in, before it's stored anywhere. The person is only looked up if a step filters on it.
+    """
+
+    def __init__(self, team_id: int, event: str, distinct_id: str, properties: Dict[str, Any], elements: List[Element]):
+        self.team_id = team_id
+        self.event = event
+        self.distinct_id = distinct_id
+        self.properties = properties or {}
+        self.elements = sorted(elements, key=lambda element: element.order or 0)
+        self._person: Optional[Tuple[int, Dict[str, Any]]] = None
+        self._person_loaded = False
+        self._cohort_ids: Dict[int, bool] = {}
+
+    @property
+    def person_properties(self) -> Optional[Dict[str, Any]]:
+        person = self._get_person()
+        return person[1] if person else None
+
+    def set_person(self, person: Optional[Tuple[int, Dict[str, Any]]]) -> None:
+        """
+        When matching many events, their persons can be looked up all at once: (person ID, properties) or None.
+        """
+        self._person = person
+        self._person_loaded = True
+
+    def in_cohort(self, cohort_id: int) -> bool:
+        if cohort_id not in self._cohort_ids:
+            person = self._get_person()
+            self._cohort_ids[cohort_id] = (
+                person is not None and CohortPeople.objects.filter(cohort_id=cohort_id, person_id=person[0]).exists()
+            )
+        return self._cohort_ids[cohort_id]
+
+    def _get_person(self) -> Optional[Tuple[int, Dict[str, Any]]]:
+        if not self._person_loaded:
+            self._person = (
+                Person.objects.filter(
+                    team_id=self.team_id,
+                    persondistinctid__distinct_id=self.distinct_id,
+                    persondistinctid__team_id=self.team_id,
+                )
+                .values_list("id", "properties")
+                .first()
+            )
+            self._person_loaded = True
+        if self._person is None:
+            return None
+        return self._person[0], self._person[1] or {}
+
+
+class CompiledActionStep:
+    """
+    An action step parsed once, evaluated in-memory with the same semantics as `EventManager.query_db_by_action`.
+    """
+
+    def __init__(self, step: ActionStep):
+        self.event = step.event
+        self.url_matcher = _compile_url_matcher(step)
+        self.selector = Selector(step.selector) if step.selector else None
+        self.element_filters = {key: getattr(step, key) for key in ELEMENT_FILTER_KEYS if getattr(step, key)}
+
+        properties = Filter(data={"properties": step.properties}).properties
+        self.event_properties = [prop for prop in properties if prop.type == "event"]
+        self.person_properties = [prop for prop in properties if prop.type == "person"]
+        self.element_properties = {prop.key: prop.value for prop in properties if prop.type == "element"}
+        self.cohort_ids = [int(prop.value) for prop in properties if prop.type == "cohort" and prop.key == "id"]
+        self.in_memory = all(prop.can_match_in_memory() for prop in self.event_properties + self.person_properties)
+
+    def matches(self, event: EventForActions) -> bool:
+        if self.event and event.event != self.event:
+            return False
+        if self.url_matcher is not None and not self.url_matcher(event.properties.get("$current_url")):
+            return False
+        if self.selector is not None and not _selector_matches(self.selector, event.elements):
+            return False
+        if not _elements_match(self.element_filters, event.elements):
+            return False
+        if self.element_properties and not _elements_match(self.element_properties, event.elements):
+            return False
+        if not all(prop.matches(event.properties) for prop in self.event_properties):
+            return False
+        if self.person_properties:
+            person_properties = event.person_properties
+            if person_properties is None:
+                return False
+            if not all(prop.matches(person_properties) for prop in self.person_properties):
+                return False
+        return all(event.in_cohort(cohort_id) for cohort_id in self.cohort_ids)
+
+
+class CompiledAction:
+    """
+    An action with its steps parsed once, so that incoming events can be matched against it without a query.
+    Actions with property lookups `Property.matches` doesn't support can't be matched in-memory, `in_memory` is False
+    for those and they need to be matched in Postgres.
+    """
+
+    def __init__(self, action: Action):
+        self.action = action
+        try:
+            self.steps = [CompiledActionStep(step) for step in action.steps.all()]
+            self.in_memory = all(step.in_memory for step in self.steps)
+        except Exception as err:
+            capture_exception(err)
+            self.steps = []
+            self.in_memory = False
+        self.needs_person = any(step.person_properties or step.cohort_ids for step in self.steps)
+
+    def matches(self, event: EventForActions) -> bool:
+        return any(step.matches(event) for step in self.steps)
+
+
+def get_compiled_actions(team_id: int) -> List[CompiledAction]:
+    """
+    The team's actions, compiled for in-memory matching. Kept for ACTION_MATCHER_CACHE_TTL_SECONDS at most, but
+    recompiled as soon as one of the team's actions or their steps is saved, in any process.
+    """
+    version = ACTION_MATCHER_CACHE_VERSIONS.get(team_id, 0)
+    cached = ACTION_MATCHER_CACHE.get(team_id)
+    if cached is not None and cached[1] == version and cached[2] > time.monotonic():
+        return cached[0]
+    subscribe_in_background(
+        settings.ACTION_MATCHER_CACHE_INVALIDATION_PUBSUB_CHANNEL, _handle_action_matcher_cache_invalidation
+    )
+
+    compiled_actions = compile_actions(team_id)
+    if settings.ACTION_MATCHER_CACHE_TTL_SECONDS > 0:
+        with _action_matcher_cache_lock:
+            # Stored with the version from before compiling, so that a change made meanwhile isn't missed
+            ACTION_MATCHER_CACHE.pop(team_id, None)
+            while ACTION_MATCHER_CACHE and len(ACTION_MATCHER_CACHE) >= settings.ACTION_MATCHER_CACHE_MAX_SIZE:
+                ACTION_MATCHER_CACHE.pop(next(iter(ACTION_MATCHER_CACHE)))
+            ACTION_MATCHER_CACHE[team_id] = (
+                compiled_actions,
+                version,
+                time.monotonic() + settings.ACTION_MATCHER_CACHE_TTL_SECONDS,
+            )
+    return compiled_actions
+
+
+def compile_actions(team_id: int) -> List[CompiledAction]:
+    return [
+        CompiledAction(action)
+        for action in Action.objects.filter(team_id=team_id, deleted=False)
+        .order_by("id")
+        .prefetch_related(Prefetch("steps", queryset=ActionStep.objects.order_by("id")))
+    ]
+
+
+def invalidate_action_matcher_cache(team_id: int) -> None:
+    """
+    Only in this process, see the receivers in posthog.models.action for invalidating it everywhere.
+    """
+    with _action_matcher_cache_lock:
+        ACTION_MATCHER_CACHE_VERSIONS[team_id] = ACTION_MATCHER_CACHE_VERSIONS.get(team_id, 0) + 1
+        ACTION_MATCHER_CACHE.pop(team_id, None)
+
+
+def match_actions(
+    compiled_actions: List[CompiledAction], events: List[EventForActions], event_ids: Optional[List[int]] = None
+) -> List[List[Action]]:
+    """
+    The actions each of `events` matches, in the same order. Actions that can't be matched in-memory need the events
+    to be stored: `event_ids` are their IDs, in the same order, and are matched against all such actions in one query.
+    Without them, those actions match nothing.
+    """
+    in_postgres = [compiled_action.action for compiled_action in compiled_actions if not compiled_action.in_memory]
+    postgres_matches = match_actions_in_postgres(in_postgres, event_ids) if in_postgres and event_ids else {}
+
+    matched_actions: List[List[Action]] = []
+    for index, event in enumerate(events):
+        matched: List[Action] = []
+        for compiled_action in compiled_actions:
+            action = compiled_action.action
+            if not compiled_action.in_memory:
+                if event_ids is not None and event_ids[index] in postgres_matches.get(action.pk, ()):
+                    matched.append(action)
+                continue
+            try:
+                if compiled_action.matches(event):
+                    matched.append(action)
+            except Exception as err:
+                capture_exception(err)
+        matched_actions.append(matched)
+    return matched_actions
+
+
+def match_actions_in_postgres(actions: List[Action], event_ids: List[int]) -> Dict[int, Set[int]]:
+    """
+    Matches stored events against actions with `EventManager.query_db_by_action`, all actions in one query.
+    Returns action ID -> IDs of the events matching it.
+    """
+    annotations = {
+        "action_{}".format(action.pk): Exists(
+            Event.objects.filter(pk=OuterRef("pk")).query_db_by_action(action, order_by=None)
+        )
+        for action in actions
+        if action.steps.all()
+    }
+    if not annotations:
+        return {}
+    try:
+        # Savepoint, as a failed query would otherwise break the surrounding transaction
+        with transaction.atomic():
+            rows = list(
+                Event.objects.filter(pk__in=event_ids).annotate(**annotations).values_list("pk", *annotations.keys())
+            )
+    except DataError as err:
+        if len(actions) > 1:
+            # Find out which action is at fault, keeping the matches of the others
+            matches: Dict[int, Set[int]] = {}
+            for action in actions:
+                matches.update(match_actions_in_postgres([action], event_ids))
+            return matches
+        # Ignore invalid regex errors, which are user mistakes
+        if not "invalid regular expression" in str(err):
+            capture_exception(err)
+        return {}
+
+    matches = defaultdict(set)
+    for event_id, *action_matches in rows:
+        for key, is_match in zip(annotations.keys(), action_matches):
+            if is_match:
+                matches[int(key[len("action_") :])].add(event_id)
+    return matches
+
+
+def _handle_action_matcher_cache_invalidation(message: Dict[str, Any]) -> None:
+    try:
+        invalidate_action_matcher_cache(int(message["data"]))
+    except (TypeError, ValueError):
+        pass
+
+
+def _compile_url_matcher(step: ActionStep):
+    if not step.url:
+        return None
+    url = step.url
+    if step.url_matching == ActionStep.EXACT:
+        return lambda value: json_text(value) == url
+    if step.url_matching == ActionStep.REGEX:
+        try:
+            pattern = re.compile(url)
+        except re.error:
+            # Postgres refuses invalid regexes, which matches nothing
+            return lambda value: False
+        return lambda value: _text_matches(value, pattern.search)
+    pattern = _like_pattern("%{}%".format(url))
+    return lambda value: _text_matches(value, pattern.fullmatch)
+
+
+def _text_matches(value: Any, match) -> bool:
+    text = json_text(value)
+    return text is not None and match(text) is not None
+
+
+def _like_pattern(like: str) -> Pattern:
+    # `%` and `_` are wildcards in LIKE, a backslash escapes the next character
+    parts = []
+    escaped = False
+    for character in like:
+        if escaped:
+            parts.append(re.escape(character))
+            escaped = False
+        elif character == "\\":
+            escaped = True
+        elif character == "%":
+            parts.append(".*")
+        elif character == "_":
+            parts.append(".")
+        else:
+            parts.append(re.escape(character))
+    return re.compile("".join(parts), re.DOTALL)
+
+
+def _elements_match(filters: Dict[str, Any], elements: List[Element]) -> bool:
+    """
+    Same as `EventManager.filter_by_element`: one element has to match all of tag name, text and href, and the
+    elements as a whole the selector.
+    """
+    if filters.get("selector") and not _selector_matches(Selector(filters["selector"]), elements):
+        return False
+    conditions = {}
+    for key in ELEMENT_FILTER_KEYS:
+        values = filters.get(key)
+        if values:
+            conditions[key] = values if isinstance(values, list) else [values]
+    if not conditions:
+        return True
+    return any(all(getattr(element, key) in values for key, values in conditions.items()) for element in elements)
+
+
+def _selector_matches(selector: Selector, elements: List[Element]) -> bool:
+    # Each part picks the first element matching it (skipping `unique_order` identical ones), which then has to be
+    # the parent or an ancestor of the one picked for the previous part, as in `EventManager._element_subquery`
+    previous_order: Optional[int] = None
+    for part in selector.parts:
+        orders = [element.order for element in elements if _selector_part_matches(part, element)]
+        if len(orders) <= part.unique_order:
+            return False
+        order = orders[part.unique_order]
+        if previous_order is not None:
+            if part.direct_descendant and order != previous_order + 1:
+                return False
+            if not part.direct_descendant and order <= previous_order:
+                return False
+        previous_order = order
+    return True
+
+
+def _selector_part_matches(part: SelectorPart, element: Element) -> bool:
+    for key, value in part.data.items():
+        if "attr__" in key:
+            if (element.attributes or {}).get("attr__{}".format(key.split("attr__")[1])) != value:
+                return False
+        elif key == "attr_class__contains":
+            if not set(value).issubset(element.attr_class or []):
+                return False
+        elif key == "nth_child":
+            if element.nth_child is None or str(element.nth_child) != str(value):
+                return False
+        elif getattr(element, key) != value:
+            return False
+    return True
@@ -1,22 +1,35 @@
 import hashlib
-from typing import Any, Dict, List
+import threading
+import time
+from typing import Any, Dict, List, Optional, Set, Tuple
 
+from django.conf import settings
 from django.db import models
 from django.db.models.expressions import ExpressionWrapper, RawSQL
 from django.db.models.fields import BooleanField
 from django.db.models.query import QuerySet
+from django.dispatch.dispatcher import receiver
 from django.utils import timezone
 from sentry_sdk.api import capture_exception
 
 from posthog.models.filters.mixins.utils import cached_property
+from posthog.models.property import Property
 from posthog.models.team import Team
 from posthog.queries.base import properties_to_Q
+from posthog.redis import get_client, subscribe_in_background
 
+from .cohort import CohortPeople
 from .filters import Filter
 from .person import Person
 
 __LONG_SCALE__ = float(0xFFFFFFFFFFFFFFF)
 
+# team ID -> (compiled active feature flags, expiry as per `time.monotonic()`)
+FEATURE_FLAG_CACHE: Dict[int, Tuple[List["CompiledFeatureFlag"], float]] = {}
+# (team ID, distinct ID) -> (active flag keys, compiled flags they were evaluated with, expiry)
+ACTIVE_FEATURE_FLAGS_CACHE: Dict[Tuple[int, str], Tuple[List[str], List["CompiledFeatureFlag"], float]] = {}
+_feature_flag_cache_lock = threading.Lock()
+
 
 class FeatureFlag(models.Model):
     class Meta:
@@ -121,21 +134,185 @@ class FeatureFlagMatcher:
     # we can do _hash(key, distinct_id) < 0.2
     @cached_property
     def _hash(self) -> float:
-        hash_key = "%s.%s" % (self.feature_flag.key, self.distinct_id)
-        hash_val = int(hashlib.sha1(hash_key.encode("utf-8")).hexdigest()[:15], 16)
-        return hash_val / __LONG_SCALE__
+        return get_rollout_hash(self.feature_flag.key, self.distinct_id)
 
 
-def get_active_feature_flags(team: Team, distinct_id: str) -> List[str]:
-    flags_enabled = []
-    feature_flags = FeatureFlag.objects.filter(team=team, active=True, deleted=False).only(
+def get_rollout_hash(feature_flag_key: str, distinct_id: str) -> float:
+    hash_key = "%s.%s" % (feature_flag_key, distinct_id)
+    hash_val = int(hashlib.sha1(hash_key.encode("utf-8")).hexdigest()[:15], 16)
+    return hash_val / __LONG_SCALE__
+
+
+class PersonForFlags:
+    """The bits of a person that feature flags can filter on, fetched once for all of a team's flags."""
+
+    def __init__(self, properties: Dict[str, Any], cohort_ids: Set[int]):
+        self.properties = properties
+        self.cohort_ids = cohort_ids
+
+
+class CompiledFeatureFlag:
+    """
+    A feature flag with its property groups parsed once, so that it can be evaluated in-memory against any person with
+    the same semantics as `FeatureFlagMatcher`. Flags using lookups `Property.matches` doesn't support fall back to
+    `FeatureFlagMatcher`.
+    """
+
+    def __init__(self, feature_flag: FeatureFlag):
+        self.feature_flag = feature_flag
+        self.key = feature_flag.key
+        # (has properties, parsed properties, rollout percentage) for each group
+        self.groups: List[Tuple[bool, List[Property], Optional[int]]] = [
+            (len(group.get("properties", [])) > 0, Filter(data=group).properties, group.get("rollout_percentage"))
+            for group in feature_flag.groups
+        ]
+        properties = [prop for _, group_properties, _ in self.groups for prop in group_properties]
+        self.has_properties = any(has_properties for has_properties, _, _ in self.groups)
+        self.cohort_ids = {int(prop.value) for prop in properties if prop.type == "cohort"}
+        self.in_memory = all(prop.can_match_in_memory() for prop in properties)
+
+    def matches(self, distinct_id: str, person: Optional[PersonForFlags]) -> bool:
+        if not self.in_memory:
+            return self.feature_flag.distinct_id_matches(distinct_id)
+        return any(
+            self._is_group_match(distinct_id, person, has_properties, properties, rollout_percentage)
+            for has_properties, properties, rollout_percentage in self.groups
+        )
+
+    def _is_group_match(
+        self,
+        distinct_id: str,
+        person: Optional[PersonForFlags],
+        has_properties: bool,
+        properties: List[Property],
+        rollout_percentage: Optional[int],
+    ) -> bool:
+        if has_properties:
+            if person is None or not all(self._property_matches(prop, person) for prop in properties):
+                return False
+            elif not rollout_percentage:
+                return True
+
+        if rollout_percentage is not None and get_rollout_hash(self.key, distinct_id) > (rollout_percentage / 100):
+            return False
+
+        return True
+
+    @staticmethod
+    def _property_matches(prop: Property, person: PersonForFlags) -> bool:
+        if prop.type == "cohort":
+            return int(prop.value) in person.cohort_ids
+        return prop.matches(person.properties)
+
+
+def get_compiled_feature_flags(team_id: int) -> List[CompiledFeatureFlag]:
+    cached = FEATURE_FLAG_CACHE.get(team_id)
+    if cached is not None and cached[1] > time.monotonic():
+        return cached[0]
+    subscribe_in_background(
+        settings.FEATURE_FLAG_CACHE_INVALIDATION_PUBSUB_CHANNEL, _handle_feature_flag_cache_invalidation
+    )
+
+    compiled_flags = []
+    for feature_flag in FeatureFlag.objects.filter(team_id=team_id, active=True, deleted=False).only(
         "id", "team_id", "filters", "key", "rollout_percentage",
+    ):
+        try:
+            compiled_flags.append(CompiledFeatureFlag(feature_flag))
+        except Exception as err:
+            capture_exception(err)
+    if settings.FEATURE_FLAG_CACHE_TTL_SECONDS > 0:
+        with _feature_flag_cache_lock:
+            FEATURE_FLAG_CACHE.pop(team_id, None)
+            while FEATURE_FLAG_CACHE and len(FEATURE_FLAG_CACHE) >= settings.FEATURE_FLAG_CACHE_MAX_SIZE:
+                FEATURE_FLAG_CACHE.pop(next(iter(FEATURE_FLAG_CACHE)))
+            FEATURE_FLAG_CACHE[team_id] = (compiled_flags, time.monotonic() + settings.FEATURE_FLAG_CACHE_TTL_SECONDS)
+    return compiled_flags
+
+
+def get_person_for_flags(
+    team_id: int, distinct_id: str, feature_flags: List[CompiledFeatureFlag]
+) -> Optional[PersonForFlags]:
+    if not any(feature_flag.has_properties and feature_flag.in_memory for feature_flag in feature_flags):
+        return None
+    person = (
+        Person.objects.filter(
+            team_id=team_id, persondistinctid__distinct_id=distinct_id, persondistinctid__team_id=team_id,
+        )
+        .values_list("id", "properties")
+        .first()
     )
+    if person is None:
+        return None
+    person_id, properties = person
+
+    cohort_ids: Set[int] = set()
+    flag_cohort_ids = set().union(*(feature_flag.cohort_ids for feature_flag in feature_flags))
+    if flag_cohort_ids:
+        cohort_ids = set(
+            CohortPeople.objects.filter(person_id=person_id, cohort_id__in=flag_cohort_ids).values_list(
+                "cohort_id", flat=True
+            )
+        )
+    return PersonForFlags(properties or {}, cohort_ids)
+
+
+def get_active_feature_flags(team: Team, distinct_id: str) -> List[str]:
+    flags_enabled = []
+    feature_flags = get_compiled_feature_flags(team.pk)
+    # distinct_id will always be a string, but data can have non-string values ("Any")
+    person = get_person_for_flags(team.pk, distinct_id, feature_flags)
     for feature_flag in feature_flags:
         try:
-            # distinct_id will always be a string, but data can have non-string values ("Any")
-            if feature_flag.distinct_id_matches(distinct_id):
+            if feature_flag.matches(distinct_id, person):
                 flags_enabled.append(feature_flag.key)
         except Exception as err:
             capture_exception(err)
     return flags_enabled
+
+
+def get_memoized_active_feature_flags(team: Team, distinct_id: str) -> List[str]:
+    """
+    `get_active_feature_flags`, memoized for CAPTURE_FEATURE_FLAGS_CACHE_TTL_SECONDS as long as the team's flag
+    definitions don't change. Meant for enriching events, where slightly stale person properties are acceptable.
+    """
+    feature_flags = get_compiled_feature_flags(team.pk)
+    cached = ACTIVE_FEATURE_FLAGS_CACHE.get((team.pk, distinct_id))
+    if cached is not None and cached[1] is feature_flags and cached[2] > time.monotonic():
+        return cached[0]
+
+    flags_enabled = get_active_feature_flags(team, distinct_id)
+    if settings.CAPTURE_FEATURE_FLAGS_CACHE_TTL_SECONDS > 0:
+        with _feature_flag_cache_lock:
+            ACTIVE_FEATURE_FLAGS_CACHE.pop((team.pk, distinct_id), None)
+            max_size = settings.CAPTURE_FEATURE_FLAGS_CACHE_MAX_SIZE
+            while ACTIVE_FEATURE_FLAGS_CACHE and len(ACTIVE_FEATURE_FLAGS_CACHE) >= max_size:
+                ACTIVE_FEATURE_FLAGS_CACHE.pop(next(iter(ACTIVE_FEATURE_FLAGS_CACHE)))
+            ACTIVE_FEATURE_FLAGS_CACHE[(team.pk, distinct_id)] = (
+                flags_enabled,
+                feature_flags,
+                time.monotonic() + settings.CAPTURE_FEATURE_FLAGS_CACHE_TTL_SECONDS,
+            )
+    return flags_enabled
+
+
+@receiver([models.signals.post_save, models.signals.post_delete], sender=FeatureFlag)
+def feature_flag_cache_invalidation_needed(sender, instance, **kwargs):
+    invalidate_feature_flag_cache(instance.team_id)
+    try:
+        get_client().publish(settings.FEATURE_FLAG_CACHE_INVALIDATION_PUBSUB_CHANNEL, instance.team_id)
+    except Exception as err:
+        # Other processes still pick up the change once their cached flags expire
+        capture_exception(err)
+
+
+def invalidate_feature_flag_cache(team_id: int) -> None:
+    with _feature_flag_cache_lock:
+        FEATURE_FLAG_CACHE.pop(team_id, None)
+
+
+def _handle_feature_flag_cache_invalidation(message: Dict[str, Any]) -> None:
+    try:
+        invalidate_feature_flag_cache(int(message["data"]))
+    except (TypeError, ValueError):
+        pass
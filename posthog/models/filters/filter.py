@@ -20,6 +20,7 @@ from posthog.models.filters.mixins.common import (
     InsightMixin,
     IntervalMixin,
     OffsetMixin,
+    SamplingFactorMixin,
     SelectorMixin,
     SessionMixin,
     ShownAsMixin,
@@ -44,6 +45,7 @@ class Filter(
     InsightMixin,
     SessionMixin,
     OffsetMixin,
+    SamplingFactorMixin,
     DateMixin,
     BaseFilter,
     FormulaMixin,
@@ -25,6 +25,7 @@ from posthog.constants import (
     INSIGHT_TRENDS,
     INTERVAL,
     OFFSET,
+    SAMPLING_FACTOR,
     SELECTOR,
     SESSION,
     SHOWN_AS,
@@ -175,6 +176,23 @@ class OffsetMixin(BaseParamMixin):
         return {"offset": self.offset} if self.offset else {}
 
 
+class SamplingFactorMixin(BaseParamMixin):
+    @cached_property
+    def sampling_factor(self) -> Optional[float]:
+        """
+        Share of events to read, between 0 and 1, for approximate results on big teams. None means exact.
+        """
+        try:
+            factor = float(self._data.get(SAMPLING_FACTOR) or 0)
+        except ValueError:
+            return None
+        return factor if 0 < factor < 1 else None
+
+    @include_dict
+    def sampling_factor_to_dict(self):
+        return {"sampling_factor": self.sampling_factor} if self.sampling_factor else {}
+
+
 class CompareMixin(BaseParamMixin):
     def _process_compare(self, compare: Optional[Union[str, bool]]) -> bool:
         if isinstance(compare, bool):
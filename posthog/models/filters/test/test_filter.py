@@ -36,6 +36,14 @@ class TestFilter(BaseTest):
         )
         self.assertCountEqual(list(filter.to_dict().keys()), ["events", "display", "compare", "insight", "date_from"])
 
+    def test_sampling_factor(self):
+        self.assertEqual(Filter(data={"sampling_factor": "0.1"}).sampling_factor, 0.1)
+        self.assertEqual(Filter(data={"sampling_factor": 0.1}).to_dict()["sampling_factor"], 0.1)
+        for invalid in [None, "", "abc", 0, 1, 2, -0.5]:
+            filter = Filter(data={"sampling_factor": invalid})
+            self.assertIsNone(filter.sampling_factor)
+            self.assertNotIn("sampling_factor", filter.to_dict())
+
 
 def property_to_Q_test_factory(filter_events: Callable, event_factory, person_factory):
     class TestPropertiesToQ(BaseTest):
@@ -1,4 +1,5 @@
 import json
+import re
 from typing import Any, Dict, List, Optional, Union, cast
 
 from django.db.models import Exists, OuterRef, Q
@@ -8,6 +9,24 @@ from posthog.utils import is_valid_regex
 
 ValueT = Union[str, int, List[str]]
 
+# Operators `Property.matches` can evaluate in-memory, on top of `is_not`, `is_set`, `is_not_set` and `not_*`
+IN_MEMORY_OPERATORS = {
+    None,
+    "exact",
+    "iexact",
+    "icontains",
+    "regex",
+    "iregex",
+    "startswith",
+    "istartswith",
+    "endswith",
+    "iendswith",
+    "gt",
+    "gte",
+    "lt",
+    "lte",
+}
+
 
 class Property:
     key: str
@@ -80,9 +99,109 @@ class Property:
             assert not isinstance(value, list)
             return Q(**{f"properties__{self.key}__{self.operator}": value})
 
+    def can_match_in_memory(self) -> bool:
+        if self.type == "cohort" or self.operator in ("is_not", "is_set", "is_not_set"):
+            return True
+        if isinstance(self.operator, str) and self.operator.startswith("not_"):
+            return self.operator[4:] in IN_MEMORY_OPERATORS
+        return self.operator in IN_MEMORY_OPERATORS
+
+    def matches(self, properties: Dict[str, Any]) -> bool:
+        """
+        In-memory counterpart of `property_to_Q`, following the semantics of the Postgres JSONB lookups it generates.
+        Only valid for properties that `can_match_in_memory`, except cohorts which need their membership looked up.
+        """
+        value = self._parse_value(self.value)
+        if self.operator == "is_not":
+            return self.key not in properties or not json_lookup(properties[self.key], "exact", value)
+        if self.operator == "is_set":
+            return self.key in properties
+        if self.operator == "is_not_set":
+            return self.key not in properties
+        if self.operator in ("regex", "not_regex") and not is_valid_regex(value):
+            # Match nothing for invalid regexes
+            return False
+        if isinstance(self.operator, str) and self.operator.startswith("not_"):
+            return (
+                self.key not in properties
+                or properties[self.key] is None
+                or not json_lookup(properties[self.key], self.operator[4:], value)
+            )
+        return self.key in properties and json_lookup(properties[self.key], self.operator or "exact", value)
+
 
 def lookup_q(key: str, value: Any) -> Q:
     # exact and is_not operators can pass lists as arguments. Handle those lookups!
     if isinstance(value, list):
         return Q(**{f"{key}__in": value})
     return Q(**{key: value})
+
+
+def json_lookup(actual: Any, operator: str, value: Any) -> bool:
+    """Evaluates a Django JSONField key lookup (e.g. `properties__key__icontains`) against a deserialized value."""
+    if operator == "exact":
+        if isinstance(value, list):
+            return any(_json_equal(actual, v) for v in value)
+        return _json_equal(actual, value)
+    if operator in ("gt", "gte", "lt", "lte"):
+        # JSONB orders values of different types by type first: null < string < number < boolean
+        if _json_type_rank(actual) != _json_type_rank(value):
+            ordered = _json_type_rank(actual) > _json_type_rank(value)
+            return ordered if operator in ("gt", "gte") else not ordered
+        if isinstance(actual, (dict, list)):
+            return False
+        if operator == "gt":
+            return actual > value
+        if operator == "gte":
+            return actual >= value
+        if operator == "lt":
+            return actual < value
+        return actual <= value
+
+    # Text lookups are run on the text representation of the value (`properties ->> key`)
+    text = json_text(actual)
+    if text is None:
+        return False
+    if operator == "iexact":
+        return text.lower() == str(value).lower()
+    if operator == "icontains":
+        return str(value).lower() in text.lower()
+    if operator == "regex":
+        return re.search(str(value), text) is not None
+    if operator == "iregex":
+        return re.search(str(value), text, re.IGNORECASE) is not None
+    if operator == "startswith":
+        return text.startswith(str(value))
+    if operator == "istartswith":
+        return text.lower().startswith(str(value).lower())
+    if operator == "endswith":
+        return text.endswith(str(value))
+    if operator == "iendswith":
+        return text.lower().endswith(str(value).lower())
+    raise ValueError(f"Operator {operator} can't be evaluated in-memory")
+
+
+def _json_type_rank(value: Any) -> int:
+    if value is None:
+        return 0
+    if isinstance(value, str):
+        return 1
+    if isinstance(value, bool):
+        return 3
+    if isinstance(value, (int, float)):
+        return 2
+    if isinstance(value, list):
+        return 4
+    return 5
+
+
+def _json_equal(actual: Any, value: Any) -> bool:
+    return _json_type_rank(actual) == _json_type_rank(value) and actual == value
+
+
+def json_text(value: Any) -> Optional[str]:
+    if value is None:
+        return None
+    if isinstance(value, str):
+        return value
+    return json.dumps(value)
@@ -1,19 +1,27 @@
 import re
-from typing import Any, Dict, List, Optional
+import threading
+import time
+from typing import Any, Dict, List, Optional, Tuple
 
 import pytz
+import statsd
+from django.conf import settings
 from django.contrib.postgres.fields import ArrayField
 from django.core.validators import MinLengthValidator
 from django.db import models
 from django.dispatch.dispatcher import receiver
+from sentry_sdk import capture_exception
 
 from posthog.helpers.dashboard_templates import create_dashboard_from_template
+from posthog.redis import get_client, subscribe_in_background
 from posthog.utils import GenericEmails
 
 from .dashboard import Dashboard
 from .utils import UUIDClassicModel, generate_random_token, sane_repr
 
-TEAM_CACHE: Dict[str, "Team"] = {}
+# API token -> (team, expiry as per `time.monotonic()`), used to spare capture and decide a Postgres round-trip
+TEAM_CACHE: Dict[str, Tuple["Team", float]] = {}
+_team_cache_lock = threading.Lock()
 
 TIMEZONES = [(tz, tz) for tz in pytz.common_timezones]
 
@@ -67,10 +75,18 @@ class TeamManager(models.Manager):
     def get_team_from_token(self, token: Optional[str]) -> Optional["Team"]:
         if not token:
             return None
+        cached = TEAM_CACHE.get(token)
+        if cached is not None and cached[1] > time.monotonic():
+            statsd.Counter("%s_posthog_cloud_team_cache_hit" % (settings.STATSD_PREFIX,)).increment()
+            return cached[0]
+        statsd.Counter("%s_posthog_cloud_team_cache_miss" % (settings.STATSD_PREFIX,)).increment()
+        subscribe_in_background(settings.TEAM_CACHE_INVALIDATION_PUBSUB_CHANNEL, _handle_team_cache_invalidation)
         try:
-            return Team.objects.defer(*DEFERRED_FIELDS).get(api_token=token)
+            team = Team.objects.defer(*DEFERRED_FIELDS).get(api_token=token)
         except Team.DoesNotExist:
             return None
+        _cache_team(token, team)
+        return team
 
 
 def get_default_data_attributes() -> Any:
@@ -169,3 +185,39 @@ class Team(UUIDClassicModel):
 def team_deleted(sender, instance, **kwargs):
     instance.event_set.all().delete()
     instance.elementgroup_set.all().delete()
+
+
+@receiver([models.signals.post_save, models.signals.post_delete], sender=Team)
+def team_cache_invalidation_needed(sender, instance, **kwargs):
+    invalidate_team_cache(instance.pk)
+    # Let other processes know too, they evict the team in `_handle_team_cache_invalidation`
+    try:
+        get_client().publish(settings.TEAM_CACHE_INVALIDATION_PUBSUB_CHANNEL, instance.pk)
+    except Exception as err:
+        # Other processes still drop the team once its TTL is up
+        capture_exception(err)
+
+
+def invalidate_team_cache(team_id: int) -> None:
+    """Evict a team from this process's token cache, regardless of which token it was cached under."""
+    with _team_cache_lock:
+        for token in [token for token, (team, _) in TEAM_CACHE.items() if team.pk == team_id]:
+            TEAM_CACHE.pop(token, None)
+
+
+def _cache_team(token: str, team: Team) -> None:
+    if settings.TEAM_CACHE_TTL_SECONDS <= 0:
+        return
+    with _team_cache_lock:
+        TEAM_CACHE.pop(token, None)
+        # Dicts preserve insertion order, so the first key is the one cached the longest ago
+        while TEAM_CACHE and len(TEAM_CACHE) >= settings.TEAM_CACHE_MAX_SIZE:
+            TEAM_CACHE.pop(next(iter(TEAM_CACHE)))
+        TEAM_CACHE[token] = (team, time.monotonic() + settings.TEAM_CACHE_TTL_SECONDS)
+
+
+def _handle_team_cache_invalidation(message: Dict[str, Any]) -> None:
+    try:
+        invalidate_team_cache(int(message["data"]))
+    except (TypeError, ValueError):
+        pass
@@ -1,10 +1,14 @@
-from typing import Optional
+import threading
+from typing import Any, Callable, Dict, Optional, Set
 
 import redis
 from django.conf import settings
 from django.core.exceptions import ImproperlyConfigured
+from sentry_sdk import capture_exception
 
 _client = None  # type: Optional[redis.Redis]
+_subscribed_channels: Set[str] = set()
+_subscription_lock = threading.Lock()
 
 
 def get_client() -> redis.Redis:
@@ -24,3 +28,23 @@ def get_client() -> redis.Redis:
         raise ImproperlyConfigured("Redis not configured!")
 
     return _client
+
+
+def subscribe_in_background(channel: str, handler: Callable[[Dict[str, Any]], None]) -> None:
+    """
+    Calls `handler` with every message published to `channel`, from a daemon thread. Subscribes at most once per
+    process and channel, and not at all in tests. Failures are reported to Sentry rather than raised, as subscribers
+    are only used for cache invalidation, where entries expire anyway.
+    """
+    if settings.TEST or channel in _subscribed_channels:
+        return
+    with _subscription_lock:
+        if channel in _subscribed_channels:
+            return
+        _subscribed_channels.add(channel)
+        try:
+            pubsub = get_client().pubsub(ignore_subscribe_messages=True)
+            pubsub.subscribe(**{channel: handler})
+            pubsub.run_in_thread(sleep_time=1, daemon=True)
+        except Exception as e:
+            capture_exception(e)
@@ -0,0 +1,65 @@
+import csv
+import json
+from typing import Any, Dict, Iterable, Iterator, List
+
+from django.core.serializers.json import DjangoJSONEncoder
+from django.http import StreamingHttpResponse
+from rest_framework import renderers
+
+
+class JSONLinesRenderer(renderers.BaseRenderer):
+    """
+    Newline-delimited JSON, one result per line. Big exports don't go through this renderer but are streamed with
+    streaming_export_response; it's mostly there so that DRF accepts the `jsonl` format.
+    """
+
+    media_type = "application/x-ndjson"
+    format = "jsonl"
+    charset = "utf-8"
+
+    def render(self, data: Any, accepted_media_type=None, renderer_context=None) -> bytes:
+        if data is None:
+            return b""
+        if isinstance(data, dict) and isinstance(data.get("results"), list):
+            data = data["results"]
+        if not isinstance(data, list):
+            data = [data]
+        return b"".join(_jsonl_row(row) for row in data)
+
+
+class _Echo:
+    # csv.writer wants a file-like object, this one hands back what is written so we can yield it right away
+    def write(self, value: str) -> str:
+        return value
+
+
+def stream_csv(rows: Iterable[Dict[str, Any]], header: List[str]) -> Iterator[bytes]:
+    writer = csv.writer(_Echo())
+    yield writer.writerow(header).encode("utf-8")
+    for row in rows:
+        yield writer.writerow([_csv_value(row.get(column)) for column in header]).encode("utf-8")
+
+
+def stream_jsonl(rows: Iterable[Dict[str, Any]]) -> Iterator[bytes]:
+    for row in rows:
+        yield _jsonl_row(row)
+
+
+def streaming_export_response(rows: Iterable[Dict[str, Any]], format: str, header: List[str]) -> StreamingHttpResponse:
+    """
+    Streams `rows` as CSV (with `header` as columns) or JSON lines. Nothing is buffered, so memory use doesn't depend
+    on the number of rows and the first bytes go out as soon as the first rows are there.
+    """
+    if format == "csv":
+        return StreamingHttpResponse(stream_csv(rows, header), content_type="text/csv; charset=utf-8")
+    return StreamingHttpResponse(stream_jsonl(rows), content_type="%s; charset=utf-8" % JSONLinesRenderer.media_type)
+
+
+def _csv_value(value: Any) -> Any:
+    if isinstance(value, (dict, list)):
+        return json.dumps(value, cls=DjangoJSONEncoder)
+    return value
+
+
+def _jsonl_row(row: Any) -> bytes:
+    return json.dumps(row, cls=DjangoJSONEncoder).encode("utf-8") + b"\n"
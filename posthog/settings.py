@@ -80,6 +80,28 @@ PLUGINS_PREINSTALLED_URLS: List[str] = os.getenv(
 PLUGINS_CELERY_QUEUE = os.getenv("PLUGINS_CELERY_QUEUE", "posthog-plugins")
 PLUGINS_RELOAD_PUBSUB_CHANNEL = os.getenv("PLUGINS_RELOAD_PUBSUB_CHANNEL", "reload-plugins")
 
+# In-process API token -> Team cache used by the capture and decide endpoints
+TEAM_CACHE_TTL_SECONDS = get_from_env("TEAM_CACHE_TTL_SECONDS", 60, type_cast=int)
+TEAM_CACHE_MAX_SIZE = get_from_env("TEAM_CACHE_MAX_SIZE", 10000, type_cast=int)
+TEAM_CACHE_INVALIDATION_PUBSUB_CHANNEL = os.getenv("TEAM_CACHE_INVALIDATION_PUBSUB_CHANNEL", "invalidate-team-cache")
+# In-process cache of each team's active feature flags, compiled for in-memory evaluation
+FEATURE_FLAG_CACHE_TTL_SECONDS = get_from_env("FEATURE_FLAG_CACHE_TTL_SECONDS", 30, type_cast=int)
+FEATURE_FLAG_CACHE_MAX_SIZE = get_from_env("FEATURE_FLAG_CACHE_MAX_SIZE", 10000, type_cast=int)
+FEATURE_FLAG_CACHE_INVALIDATION_PUBSUB_CHANNEL = os.getenv(
+    "FEATURE_FLAG_CACHE_INVALIDATION_PUBSUB_CHANNEL", "invalidate-feature-flag-cache"
+)
+# In-process cache of each team's actions, compiled for matching incoming events against them in-memory
+ACTION_MATCHER_CACHE_TTL_SECONDS = get_from_env("ACTION_MATCHER_CACHE_TTL_SECONDS", 30, type_cast=int)
+ACTION_MATCHER_CACHE_MAX_SIZE = get_from_env("ACTION_MATCHER_CACHE_MAX_SIZE", 10000, type_cast=int)
+ACTION_MATCHER_CACHE_INVALIDATION_PUBSUB_CHANNEL = os.getenv(
+    "ACTION_MATCHER_CACHE_INVALIDATION_PUBSUB_CHANNEL", "invalidate-action-matcher-cache"
+)
+# Feature flags added to web events on capture are memoized per distinct ID for a short while
+CAPTURE_FEATURE_FLAGS_CACHE_TTL_SECONDS = get_from_env("CAPTURE_FEATURE_FLAGS_CACHE_TTL_SECONDS", 60, type_cast=int)
+CAPTURE_FEATURE_FLAGS_CACHE_MAX_SIZE = get_from_env("CAPTURE_FEATURE_FLAGS_CACHE_MAX_SIZE", 10000, type_cast=int)
+# Leave adding $active_feature_flags to web events to the plugin server, keeping flag evaluation off capture
+CAPTURE_DEFER_FEATURE_FLAG_ENRICHMENT = get_from_env("CAPTURE_DEFER_FEATURE_FLAG_ENRICHMENT", False, type_cast=strtobool)
+
 # Tokens used when installing plugins, for example to get the latest commit SHA or to download private repositories.
 # Used mainly to get around API limits and only if no ?private_token=TOKEN found in the plugin URL.
 GITLAB_TOKEN = os.getenv("GITLAB_TOKEN", None)
@@ -153,6 +175,15 @@ CLICKHOUSE_VERIFY = get_from_env("CLICKHOUSE_VERIFY", True, type_cast=strtobool)
 CLICKHOUSE_REPLICATION = get_from_env("CLICKHOUSE_REPLICATION", False, type_cast=strtobool)
 CLICKHOUSE_ENABLE_STORAGE_POLICY = get_from_env("CLICKHOUSE_ENABLE_STORAGE_POLICY", False, type_cast=strtobool)
 CLICKHOUSE_ASYNC = get_from_env("CLICKHOUSE_ASYNC", False, type_cast=strtobool)
+# Seconds interactive (API) queries may run for before ClickHouse cancels them, 0 for no limit
+CLICKHOUSE_INTERACTIVE_MAX_EXECUTION_TIME = get_from_env("CLICKHOUSE_INTERACTIVE_MAX_EXECUTION_TIME", 0, type_cast=int)
+# Sharded deployments keep the data of each table in sharded_<table> on every shard of CLICKHOUSE_CLUSTER, with <table>
+# being a Distributed table over those, which is what ingestion writes to and queries read from
+CLICKHOUSE_SHARDED = get_from_env("CLICKHOUSE_SHARDED", False, type_cast=strtobool)
+CLICKHOUSE_CLUSTER = os.getenv("CLICKHOUSE_CLUSTER", "posthog")
+# "team_id" keeps each team on a single shard, so that queries only touch that shard and all joins are shard-local.
+# "distinct_id" spreads big teams over all shards, joins to persons are then done globally.
+CLICKHOUSE_SHARDING_KEY = os.getenv("CLICKHOUSE_SHARDING_KEY", "team_id")
 
 _clickhouse_http_protocol = "http://"
 _clickhouse_http_port = "8123"
@@ -174,6 +205,16 @@ KAFKA_URL = os.getenv("KAFKA_URL", "kafka://kafka")
 KAFKA_HOSTS_LIST = [urlparse(host).netloc for host in KAFKA_URL.split(",")]
 KAFKA_HOSTS = ",".join(KAFKA_HOSTS_LIST)
 KAFKA_BASE64_KEYS = get_from_env("KAFKA_BASE64_KEYS", False, type_cast=strtobool)
+# Producer batching: messages are accumulated for up to KAFKA_PRODUCER_LINGER_MS (or until a batch of
+# KAFKA_PRODUCER_BATCH_SIZE bytes is full) and sent in one request per partition
+KAFKA_PRODUCER_LINGER_MS = get_from_env("KAFKA_PRODUCER_LINGER_MS", 20, type_cast=int)
+KAFKA_PRODUCER_BATCH_SIZE = get_from_env("KAFKA_PRODUCER_BATCH_SIZE", 256 * 1024, type_cast=int)
+KAFKA_PRODUCER_COMPRESSION_TYPE = get_from_env("KAFKA_PRODUCER_COMPRESSION_TYPE", "gzip") or None
+KAFKA_PRODUCER_MAX_IN_FLIGHT_REQUESTS = get_from_env("KAFKA_PRODUCER_MAX_IN_FLIGHT_REQUESTS", 5, type_cast=int)
+# Backpressure: once KAFKA_PRODUCER_BUFFER_MEMORY bytes are waiting to be sent, producing blocks for at most
+# KAFKA_PRODUCER_MAX_BLOCK_MS before failing
+KAFKA_PRODUCER_BUFFER_MEMORY = get_from_env("KAFKA_PRODUCER_BUFFER_MEMORY", 64 * 1024 * 1024, type_cast=int)
+KAFKA_PRODUCER_MAX_BLOCK_MS = get_from_env("KAFKA_PRODUCER_MAX_BLOCK_MS", 1000, type_cast=int)
 
 _primary_db = os.getenv("PRIMARY_DB", "postgres")
 try:
@@ -184,12 +225,19 @@ except ValueError:
 EE_AVAILABLE = False
 
 ACTION_EVENT_MAPPING_INTERVAL_SECONDS = get_from_env("ACTION_EVENT_MAPPING_INTERVAL_SECONDS", 300, type_cast=int)
+# New events are matched against actions in batches of this many events, across all teams
+ACTION_EVENTS_BATCH_SIZE = get_from_env("ACTION_EVENTS_BATCH_SIZE", 10000, type_cast=int)
+# Events younger than this are left for the next run, so that ones still being inserted (with lower IDs) aren't skipped
+ACTION_EVENTS_GRACE_SECONDS = get_from_env("ACTION_EVENTS_GRACE_SECONDS", 0 if TEST else 10, type_cast=int)
 
 ASYNC_EVENT_PROPERTY_USAGE = get_from_env("ASYNC_EVENT_PROPERTY_USAGE", False, type_cast=strtobool)
 EVENT_PROPERTY_USAGE_INTERVAL_SECONDS = get_from_env(
     "ASYNC_EVENT_PROPERTY_USAGE_INTERVAL_SECONDS", 60 * 60, type_cast=int
 )
 
+# How long opening a dashboard may spend computing items without a cached result together, see
+# DashboardsViewSet._refresh_batched_items. Items left over are loaded by the frontend one by one.
+DASHBOARD_RETRIEVE_REFRESH_SECONDS = get_from_env("DASHBOARD_RETRIEVE_REFRESH_SECONDS", 10, type_cast=int)
 UPDATE_CACHED_DASHBOARD_ITEMS_INTERVAL_SECONDS = get_from_env(
     "UPDATE_CACHED_DASHBOARD_ITEMS_INTERVAL_SECONDS", 90, type_cast=int
 )
@@ -283,6 +331,8 @@ CORS_ORIGIN_ALLOW_ALL = True
 
 # Max size of a POST body (for event ingestion)
 DATA_UPLOAD_MAX_MEMORY_SIZE = 20971520  # 20 MB
+# Max size of a POST body after gzip decompression, protecting against decompression bombs
+MAX_DECOMPRESSED_REQUEST_SIZE = get_from_env("MAX_DECOMPRESSED_REQUEST_SIZE", 104857600, type_cast=int)  # 100 MB
 
 ROOT_URLCONF = "posthog.urls"
 
@@ -453,6 +503,12 @@ REDBEAT_LOCK_TIMEOUT = 45  # keep distributed beat lock for 45sec
 
 CACHED_RESULTS_TTL = 7 * 24 * 60 * 60  # how long to keep cached results for
 TEMP_CACHE_RESULTS_TTL = 24 * 60 * 60  # how long to keep non dashboard cached results for
+# cached insights older than this are still served, but recomputed in the background
+CACHED_RESULTS_STALE_AFTER_SECONDS = get_from_env("CACHED_RESULTS_STALE_AFTER_SECONDS", 15 * 60, type_cast=int)
+# dashboard trends only recompute their last few buckets on refresh, the overlap picks up late-arriving events
+INCREMENTAL_REFRESH_OVERLAP_BUCKETS = get_from_env("INCREMENTAL_REFRESH_OVERLAP_BUCKETS", 2, type_cast=int)
+# ...and are recomputed in full every so often, for events that arrive even later
+INCREMENTAL_REFRESH_FULL_EVERY_HOURS = get_from_env("INCREMENTAL_REFRESH_FULL_EVERY_HOURS", 24, type_cast=int)
 
 # Password validation
 # https://docs.djangoproject.com/en/2.2/ref/settings/#auth-password-validators
@@ -1,14 +1,46 @@
+import io
 import logging
 import time
-from typing import Sequence, cast
+from collections import defaultdict
+from datetime import timedelta
+from typing import Any, Dict, List, Set, Tuple
 
+import celery
+import statsd
 from celery import shared_task
+from django.conf import settings
+from django.db import connection, transaction
+from django.db.models import F, Min
+from django.utils import timezone
 
 from posthog.ee import is_ee_enabled
-from posthog.models import Action
+from posthog.models import Action, Element, Event, PersonDistinctId
+from posthog.models.action import ActionEventsWatermark
+from posthog.models.action_matcher import CompiledAction, EventForActions, get_compiled_actions, match_actions
 
 logger = logging.getLogger(__name__)
 
+# posthog_action_events has a unique (action, event) constraint, which COPY can't skip conflicts on. Rows are copied
+# into this table first, and from there inserted into posthog_action_events with ON CONFLICT DO NOTHING.
+# The table is emptied right away too, as it outlives batches run within a surrounding transaction.
+CREATE_ACTION_EVENTS_BATCH_TABLE_SQL = """
+CREATE TEMPORARY TABLE IF NOT EXISTS action_events_batch (action_id integer, event_id integer) ON COMMIT DROP
+"""
+COPY_ACTION_EVENTS_BATCH_SQL = "COPY action_events_batch (action_id, event_id) FROM STDIN"
+INSERT_ACTION_EVENTS_SQL = """
+INSERT INTO posthog_action_events (action_id, event_id)
+SELECT action_id, event_id FROM action_events_batch
+ON CONFLICT DO NOTHING
+"""
+TRUNCATE_ACTION_EVENTS_BATCH_SQL = "TRUNCATE action_events_batch"
+
+# Held while materializing, so that a run still catching up when the next one is due keeps that one from reading and
+# posting the same batches
+MATERIALIZE_LOCK_SQL = "SELECT pg_try_advisory_lock(hashtext('materialize_action_events'))"
+MATERIALIZE_UNLOCK_SQL = "SELECT pg_advisory_unlock(hashtext('materialize_action_events'))"
+# Share of ACTION_EVENT_MAPPING_INTERVAL_SECONDS a run may spend, the rest is left for the next run to start on time
+MATERIALIZE_TIME_BUDGET = 0.5
+
 
 @shared_task(ignore_result=True)
 def calculate_action(action_id: int) -> None:
@@ -23,10 +55,180 @@ def calculate_actions_from_last_calculation() -> None:
     if is_ee_enabled():  # In EE, actions are not precalculated
         return
     start_time_overall = time.time()
-    for action in cast(Sequence[Action], Action.objects.filter(is_calculating=False, deleted=False)):
-        start_time = time.time()
-        action.calculate_events(start=action.last_calculated_at)
-        total_time = time.time() - start_time
-        logger.info(f"Calculating action {action.pk} took {total_time:.2f} seconds")
+    event_count = materialize_action_events()
     total_time_overall = time.time() - start_time_overall
-    logger.info(f"Calculated new event-action pairs in {total_time_overall:.2f} s")
+    logger.info(f"Calculated new event-action pairs for {event_count} events in {total_time_overall:.2f} s")
+
+
+def materialize_action_events() -> int:
+    """
+    Matches the events created since the last run against the actions of their team, and stores the matches in
+    posthog_action_events. New events are read once, in ID order, in batches shared by all teams with actions, and
+    every action of a team is evaluated in that one pass (see posthog.models.action_matcher). Each team's watermark,
+    and the last_calculated_at of its actions, is moved along in the same transaction as the matches are stored, so a
+    crash never loses or repeats a batch. Returns the number of events read. Actions that are created or changed are
+    fully calculated by calculate_action, which leaves posting to Slack to this.
+
+    Only one run goes at a time, a run finding another one going returns 0 right away.
+    """
+    with connection.cursor() as cursor:
+        cursor.execute(MATERIALIZE_LOCK_SQL)
+        if not cursor.fetchone()[0]:
+            logger.info("Action events are already being materialized, skipping")
+            return 0
+    try:
+        return _materialize_action_events()
+    finally:
+        with connection.cursor() as cursor:
+            cursor.execute(MATERIALIZE_UNLOCK_SQL)
+
+
+def _materialize_action_events() -> int:
+    start_time = time.time()
+    team_ids = set(Action.objects.filter(deleted=False).values_list("team_id", flat=True).distinct())
+    # Teams without actions stop moving along. Should they get actions again, those are calculated in full, and the
+    # team starts over from there instead of holding every other team back to where it stopped.
+    ActionEventsWatermark.objects.exclude(team_id__in=team_ids).delete()
+    if not team_ids:
+        return 0
+
+    watermarks = _get_watermarks(team_ids)
+    cutoff = timezone.now() - timedelta(seconds=settings.ACTION_EVENTS_GRACE_SECONDS)
+    last_event_id = min(watermarks.values())
+    oldest_created_at: Dict[int, Any] = {}
+    event_count = 0
+
+    while time.time() - start_time < settings.ACTION_EVENT_MAPPING_INTERVAL_SECONDS * MATERIALIZE_TIME_BUDGET:
+        events = list(
+            Event.objects.filter(team_id__in=team_ids, id__gt=last_event_id, created_at__lte=cutoff)
+            .only("id", "team_id", "event", "distinct_id", "properties", "elements_hash", "site_url", "created_at")
+            .order_by("id")[: settings.ACTION_EVENTS_BATCH_SIZE]
+        )
+        if not events:
+            break
+
+        events_by_team: Dict[int, List[Event]] = defaultdict(list)
+        for event in events:
+            # Teams that were picked up later can already be past this batch
+            if event.pk > watermarks[event.team_id]:
+                events_by_team[event.team_id].append(event)
+                oldest_created_at.setdefault(event.team_id, event.created_at)
+
+        matches: List[Tuple[int, int]] = []
+        for team_id, team_events in events_by_team.items():
+            matches.extend(_match_events(team_id, team_events, get_compiled_actions(team_id)))
+
+        last_event_id = events[-1].pk
+        _store_matches(matches, team_ids, last_event_id, events)
+        for team_id in team_ids:
+            watermarks[team_id] = max(watermarks[team_id], last_event_id)
+
+        event_count += len(events)
+        if len(events) < settings.ACTION_EVENTS_BATCH_SIZE:
+            break
+
+    gauge = statsd.Gauge("%s_posthog_cloud_action_events" % (settings.STATSD_PREFIX,))
+    now = timezone.now()
+    for team_id, created_at in oldest_created_at.items():
+        # How long the team's events waited to be matched, at worst
+        gauge.send("lag_seconds.team_{}".format(team_id), (now - created_at).total_seconds())
+    gauge.send("events", event_count)
+    return event_count
+
+
+def _get_watermarks(team_ids: Set[int]) -> Dict[int, int]:
+    watermarks = dict(
+        ActionEventsWatermark.objects.filter(team_id__in=team_ids).values_list("team_id", "last_event_id")
+    )
+    for team_id in team_ids - set(watermarks):
+        # Start where the calculation of the team's actions left off before, or now for teams with new actions
+        since = Action.objects.filter(team_id=team_id, deleted=False).aggregate(Min("last_calculated_at"))[
+            "last_calculated_at__min"
+        ]
+        last_event_id = (
+            Event.objects.filter(created_at__lt=since or timezone.now())
+            .order_by("-id")
+            .values_list("id", flat=True)
+            .first()
+        )
+        watermark, _ = ActionEventsWatermark.objects.get_or_create(
+            team_id=team_id, defaults={"last_event_id": last_event_id or 0}
+        )
+        watermarks[team_id] = watermark.last_event_id
+    return watermarks
+
+
+def _match_events(team_id: int, events: List[Event], compiled_actions: List[CompiledAction]) -> List[Tuple[int, int]]:
+    elements = _get_elements(team_id, events)
+    needs_person = any(action.needs_person for action in compiled_actions if action.in_memory)
+    persons = _get_persons(team_id, events) if needs_person else None
+    events_for_actions = []
+    for event in events:
+        event_for_actions = EventForActions(
+            team_id, event.event, event.distinct_id, event.properties, elements.get(event.elements_hash, [])
+        )
+        if persons is not None:
+            event_for_actions.set_person(persons.get(event.distinct_id))
+        events_for_actions.append(event_for_actions)
+
+    matched_actions = match_actions(compiled_actions, events_for_actions, [event.pk for event in events])
+    return [(action.pk, event.pk) for event, actions in zip(events, matched_actions) for action in actions]
+
+
+def _get_elements(team_id: int, events: List[Event]) -> Dict[str, List[Element]]:
+    hashes = {event.elements_hash for event in events if event.elements_hash}
+    elements: Dict[str, List[Element]] = defaultdict(list)
+    if hashes:
+        for element in Element.objects.filter(group__team_id=team_id, group__hash__in=hashes).annotate(
+            group_hash=F("group__hash")
+        ):
+            elements[element.group_hash].append(element)  # type: ignore
+    return elements
+
+
+def _get_persons(team_id: int, events: List[Event]) -> Dict[str, Tuple[int, Dict[str, Any]]]:
+    distinct_ids = {event.distinct_id for event in events}
+    return {
+        distinct_id: (person_id, properties or {})
+        for distinct_id, person_id, properties in PersonDistinctId.objects.filter(
+            team_id=team_id, distinct_id__in=distinct_ids
+        ).values_list("distinct_id", "person_id", "person__properties")
+    }
+
+
+def _store_matches(matches: List[Tuple[int, int]], team_ids: Set[int], last_event_id: int, events: List[Event]):
+    with transaction.atomic():
+        if matches:
+            rows = io.StringIO("".join("{}\t{}\n".format(action_id, event_id) for action_id, event_id in matches))
+            with connection.cursor() as cursor:
+                cursor.execute(CREATE_ACTION_EVENTS_BATCH_TABLE_SQL)
+                cursor.copy_expert(COPY_ACTION_EVENTS_BATCH_SQL, rows)
+                cursor.execute(INSERT_ACTION_EVENTS_SQL)
+                cursor.execute(TRUNCATE_ACTION_EVENTS_BATCH_SQL)
+        ActionEventsWatermark.objects.filter(team_id__in=team_ids, last_event_id__lt=last_event_id).update(
+            last_event_id=last_event_id, updated_at=timezone.now()
+        )
+        # Actions being calculated in full still get their new events matched above, which is harmless, but
+        # calculate_events sets their last_calculated_at itself once it's done
+        last_calculated_at = max(event.created_at for event in events)
+        Action.objects.filter(
+            team_id__in=team_ids, deleted=False, is_calculating=False, last_calculated_at__lt=last_calculated_at
+        ).update(last_calculated_at=last_calculated_at)
+    # Only once the batch is committed, so that hooks aren't fired again if storing it fails
+    _post_to_slack(matches, events)
+
+
+def _post_to_slack(matches: List[Tuple[int, int]], events: List[Event]) -> None:
+    if not matches:
+        return
+    slack_action_ids = set(
+        Action.objects.filter(
+            pk__in={action_id for action_id, _ in matches},
+            post_to_slack=True,
+            team__slack_incoming_webhook__isnull=False,
+        ).values_list("id", flat=True)
+    )
+    event_ids = {event_id for action_id, event_id in matches if action_id in slack_action_ids}
+    for event in events:
+        if event.pk in event_ids:
+            celery.current_app.send_task("posthog.tasks.webhooks.post_event_to_webhook", (event.pk, event.site_url))
@@ -8,9 +8,10 @@ from dateutil.relativedelta import relativedelta
 from django.db.models import F
 from django.utils import timezone
 
-from posthog.constants import INSIGHT_STICKINESS
+from posthog.constants import INSIGHT_STICKINESS, QueryProfile
 from posthog.ee import is_ee_enabled
 from posthog.models import Cohort
+from posthog.utils import query_profile
 
 logger = logging.getLogger(__name__)
 
@@ -38,7 +39,8 @@ def calculate_cohorts() -> None:
 def calculate_cohort(cohort_id: int) -> None:
     start_time = time.time()
     cohort = Cohort.objects.get(pk=cohort_id)
-    cohort.calculate_people()
+    with query_profile(QueryProfile.BACKGROUND_TASK):
+        cohort.calculate_people()
     logger.info("Calculating cohort {} took {:.2f} seconds".format(cohort.pk, (time.time() - start_time)))
 
 
@@ -66,13 +68,14 @@ def insert_cohort_from_query(
 
         cohort = Cohort.objects.get(pk=cohort_id)
         entity = Entity(data=entity_data)
-        if insight_type == INSIGHT_STICKINESS:
-            _stickiness_filter = StickinessFilter(
-                data=filter_data, team=cohort.team, get_earliest_timestamp=get_earliest_timestamp
-            )
-            insert_stickiness_people_into_cohort(cohort, entity, _stickiness_filter)
-        else:
-            _filter = Filter(data=filter_data)
-            insert_entity_people_into_cohort(cohort, entity, _filter)
+        with query_profile(QueryProfile.BACKGROUND_TASK):
+            if insight_type == INSIGHT_STICKINESS:
+                _stickiness_filter = StickinessFilter(
+                    data=filter_data, team=cohort.team, get_earliest_timestamp=get_earliest_timestamp
+                )
+                insert_stickiness_people_into_cohort(cohort, entity, _stickiness_filter)
+            else:
+                _filter = Filter(data=filter_data)
+                insert_entity_people_into_cohort(cohort, entity, _filter)
 
-        insert_cohort_people_into_pg(cohort=cohort)
+            insert_cohort_people_into_pg(cohort=cohort)
@@ -6,6 +6,7 @@ from django.db import connection
 from django.db.models import Count
 from django.utils.timezone import now
 
+from posthog.constants import QueryProfile
 from posthog.ee import is_ee_enabled
 from posthog.models import Team
 from posthog.models.dashboard_item import DashboardItem
@@ -66,7 +67,9 @@ def _get_properties_volume(team: Team) -> List[Tuple[str, int]]:
         from ee.clickhouse.client import sync_execute
         from ee.clickhouse.sql.events import GET_PROPERTIES_VOLUME
 
-        return sync_execute(GET_PROPERTIES_VOLUME, {"team_id": team.pk, "timestamp": timestamp},)
+        return sync_execute(
+            GET_PROPERTIES_VOLUME, {"team_id": team.pk, "timestamp": timestamp}, profile=QueryProfile.BACKGROUND_TASK
+        )
     cursor = connection.cursor()
     cursor.execute(
         "SELECT json_build_array(jsonb_object_keys(properties)) ->> 0 as key1, count(1) FROM posthog_event WHERE team_id = %s AND timestamp > %s group by key1 order by count desc",
@@ -81,7 +84,9 @@ def _get_events_volume(team: Team) -> List[Tuple[str, int]]:
         from ee.clickhouse.client import sync_execute
         from ee.clickhouse.sql.events import GET_EVENTS_VOLUME
 
-        return sync_execute(GET_EVENTS_VOLUME, {"team_id": team.pk, "timestamp": timestamp},)
+        return sync_execute(
+            GET_EVENTS_VOLUME, {"team_id": team.pk, "timestamp": timestamp}, profile=QueryProfile.BACKGROUND_TASK
+        )
     return (
         Event.objects.filter(team=team, timestamp__gt=timestamp)
         .values("event")
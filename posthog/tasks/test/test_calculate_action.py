@@ -0,0 +1,142 @@
+import threading
+from unittest.mock import patch
+
+from django.db import connection
+
+from posthog.models import Action, ActionStep, Event, Person, Team
+from posthog.models.action import ActionEventsWatermark
+from posthog.tasks.calculate_action import MATERIALIZE_LOCK_SQL, MATERIALIZE_UNLOCK_SQL, materialize_action_events
+from posthog.test.base import BaseTest
+
+
+class TestMaterializeActionEvents(BaseTest):
+    def test_matches_new_events_of_all_teams(self):
+        other_team = Team.objects.create(organization=self.organization)
+        pageview = Action.objects.create(team=self.team, name="pageview")
+        ActionStep.objects.create(action=pageview, event="$pageview")
+        other_pageview = Action.objects.create(team=other_team, name="pageview")
+        ActionStep.objects.create(action=other_pageview, event="$pageview")
+
+        event = Event.objects.create(team=self.team, event="$pageview", distinct_id="1")
+        Event.objects.create(team=self.team, event="$autocapture", distinct_id="1")
+        other_event = Event.objects.create(team=other_team, event="$pageview", distinct_id="1")
+
+        self.assertEqual(materialize_action_events(), 3)
+
+        self.assertEqual(list(pageview.events.all()), [event])
+        self.assertEqual(list(other_pageview.events.all()), [other_event])
+        self.assertEqual(
+            set(ActionEventsWatermark.objects.values_list("team_id", "last_event_id")),
+            {(self.team.pk, other_event.pk), (other_team.pk, other_event.pk)},
+        )
+
+    def test_events_are_read_once(self):
+        action = Action.objects.create(team=self.team, name="pageview")
+        ActionStep.objects.create(action=action, event="$pageview")
+        Event.objects.create(team=self.team, event="$pageview", distinct_id="1")
+
+        self.assertEqual(materialize_action_events(), 1)
+        self.assertEqual(materialize_action_events(), 0)
+
+        event = Event.objects.create(team=self.team, event="$pageview", distinct_id="1")
+        self.assertEqual(materialize_action_events(), 1)
+        self.assertEqual(action.events.count(), 2)
+        self.assertEqual(ActionEventsWatermark.objects.get(team=self.team).last_event_id, event.pk)
+
+    def test_batches(self):
+        action = Action.objects.create(team=self.team, name="pageview")
+        ActionStep.objects.create(action=action, event="$pageview")
+        for _ in range(5):
+            Event.objects.create(team=self.team, event="$pageview", distinct_id="1")
+
+        with self.settings(ACTION_EVENTS_BATCH_SIZE=2):
+            self.assertEqual(materialize_action_events(), 5)
+        self.assertEqual(action.events.count(), 5)
+
+    def test_only_one_run_at_a_time(self):
+        action = Action.objects.create(team=self.team, name="pageview")
+        ActionStep.objects.create(action=action, event="$pageview")
+        Event.objects.create(team=self.team, event="$pageview", distinct_id="1")
+        locked, release = threading.Event(), threading.Event()
+
+        def other_run():
+            # Holds the lock on its own connection, as a run still going would
+            with connection.cursor() as cursor:
+                cursor.execute(MATERIALIZE_LOCK_SQL)
+                locked.set()
+                release.wait()
+                cursor.execute(MATERIALIZE_UNLOCK_SQL)
+            connection.close()
+
+        thread = threading.Thread(target=other_run)
+        thread.start()
+        locked.wait()
+        try:
+            self.assertEqual(materialize_action_events(), 0)
+        finally:
+            release.set()
+            thread.join()
+
+        self.assertEqual(materialize_action_events(), 1)
+        self.assertEqual(action.events.count(), 1)
+
+    def test_teams_without_actions_lose_their_watermark(self):
+        other_team = Team.objects.create(organization=self.organization)
+        action = Action.objects.create(team=self.team, name="pageview")
+        ActionStep.objects.create(action=action, event="$pageview")
+        other_action = Action.objects.create(team=other_team, name="pageview")
+        Event.objects.create(team=other_team, event="$pageview", distinct_id="1")
+        materialize_action_events()
+
+        other_action.deleted = True
+        other_action.save()
+        for _ in range(3):
+            Event.objects.create(team=self.team, event="$pageview", distinct_id="1")
+        materialize_action_events()
+
+        self.assertEqual(list(ActionEventsWatermark.objects.values_list("team_id", flat=True)), [self.team.pk])
+
+        # Back with a new action, the team doesn't drag the others back to where it stopped
+        Action.objects.create(team=other_team, name="pageview again")
+        self.assertEqual(materialize_action_events(), 0)
+
+    def test_person_properties_and_postgres_fallback(self):
+        Person.objects.create(team=self.team, distinct_ids=["paid"], properties={"plan": "paid"})
+        Person.objects.create(team=self.team, distinct_ids=["free"], properties={"plan": "free"})
+        in_memory = Action.objects.create(team=self.team, name="in memory")
+        ActionStep.objects.create(
+            action=in_memory, event="$pageview", properties=[{"key": "plan", "value": "paid", "type": "person"}]
+        )
+        in_postgres = Action.objects.create(team=self.team, name="in postgres")
+        ActionStep.objects.create(
+            action=in_postgres, event="$pageview", properties=[{"key": "plan", "value": "pai", "operator": "contains"}]
+        )
+
+        paid = Event.objects.create(team=self.team, event="$pageview", distinct_id="paid")
+        Event.objects.create(team=self.team, event="$pageview", distinct_id="free")
+        with_property = Event.objects.create(
+            team=self.team, event="$pageview", distinct_id="free", properties={"plan": "paid"}
+        )
+
+        materialize_action_events()
+
+        self.assertEqual(list(in_memory.events.all()), [paid])
+        self.assertEqual(list(in_postgres.events.all()), [with_property])
+
+    @patch("celery.current_app.send_task")
+    def test_last_calculated_at_moves_along_and_recalculating_does_not_post_again(self, patch_send_task):
+        self.team.slack_incoming_webhook = "http://slack.com/hook"
+        self.team.save()
+        action = Action.objects.create(team=self.team, name="user paid", post_to_slack=True)
+        ActionStep.objects.create(action=action, event="user paid")
+        event = Event.objects.create(team=self.team, event="user paid", distinct_id="1")
+
+        materialize_action_events()
+        action.refresh_from_db()
+        self.assertEqual(action.last_calculated_at, event.created_at)
+        self.assertEqual(patch_send_task.call_count, 1)
+
+        # As when the action is edited
+        action.calculate_events()
+        self.assertEqual(action.events.count(), 1)
+        self.assertEqual(patch_send_task.call_count, 1)
@@ -1,6 +1,7 @@
 from datetime import timedelta
 from unittest.mock import MagicMock, patch
 
+from django.core.cache import cache
 from django.utils.timezone import now
 from freezegun import freeze_time
 
@@ -104,6 +105,35 @@ class TestUpdateCache(APIBaseTest):
             patch_update_cache_item,
         )
 
+    @freeze_time("2012-01-15")
+    @patch("posthog.tasks.update_cache.group.apply_async")
+    @patch("posthog.celery.update_cache_item_task.s")
+    @patch("posthog.tasks.update_cache.PARALLEL_DASHBOARD_ITEM_CACHE", 2)
+    def test_refresh_dashboard_cache_priority(
+        self, patch_update_cache_item: MagicMock, _patch_apply_async: MagicMock
+    ) -> None:
+        def create_item(event: str, last_accessed_at, last_refresh) -> FilterType:
+            filter = Filter(data={"events": [{"id": event}]})
+            dashboard = Dashboard.objects.create(team=self.team, last_accessed_at=last_accessed_at)
+            DashboardItem.objects.create(
+                dashboard=dashboard, filters=filter.to_dict(), team=self.team, last_refresh=last_refresh
+            )
+            return filter
+
+        viewed_recently = create_item("viewed recently", now(), now() - timedelta(hours=1))
+        viewed_long_ago = create_item("viewed long ago", now() - timedelta(days=5), now() - timedelta(hours=1))
+        expensive = create_item("expensive", now(), now() - timedelta(hours=1))
+        # the same insight on a second dashboard is only refreshed once
+        create_item("viewed recently", now(), now() - timedelta(minutes=10))
+
+        expensive_key = generate_cache_key("{}_{}".format(expensive.toJSON(), self.team.pk))
+        cache.set(expensive_key, {"result": [], "refresh_duration": 300})
+
+        update_cached_items()
+
+        refreshed = [call[0][2]["filter"] for call in patch_update_cache_item.call_args_list]
+        self.assertEqual(refreshed, [viewed_recently.toJSON(), viewed_long_ago.toJSON()])
+
     @freeze_time("2012-01-15")
     @patch("posthog.tasks.update_cache.import_from", return_value=Trends)
     def test_update_cache_item_calls_right_class(self, patch_import_from: MagicMock) -> None:
@@ -123,6 +153,50 @@ class TestUpdateCache(APIBaseTest):
         self.assertEqual(updated_dashboard_item.refreshing, False)
         self.assertEqual(updated_dashboard_item.last_refresh, now())
 
+    def test_refresh_trends_incrementally(self) -> None:
+        filter = Filter(data={"insight": "TRENDS", "events": [{"id": "$pageview"}], "date_from": "-7d"})
+        self._create_dashboard(filter)
+        key = generate_cache_key("{}_{}".format(filter.toJSON(), self.team.pk))
+        args = [key, CacheType.TRENDS, {"filter": filter.toJSON(), "team_id": self.team.pk}]
+
+        with self.settings(EE_AVAILABLE=False, INCREMENTAL_REFRESH_OVERLAP_BUCKETS=2):
+            with freeze_time("2012-01-15T12:00:00Z"):
+                Event.objects.create(
+                    team=self.team, event="$pageview", distinct_id="1", timestamp="2012-01-09T10:00:00Z"
+                )
+                Event.objects.create(
+                    team=self.team, event="$pageview", distinct_id="1", timestamp="2012-01-14T10:00:00Z"
+                )
+                update_cache_item(*args)  # type: ignore
+
+            self.assertEqual(get_safe_cache(key)["result"][0]["data"], [0.0, 1.0, 0.0, 0.0, 0.0, 0.0, 1.0, 0.0])
+
+            with freeze_time("2012-01-16T11:00:00Z"):
+                # arrives late, outside of the recomputed buckets
+                Event.objects.create(
+                    team=self.team, event="$pageview", distinct_id="1", timestamp="2012-01-12T10:00:00Z"
+                )
+                Event.objects.create(
+                    team=self.team, event="$pageview", distinct_id="1", timestamp="2012-01-15T10:00:00Z"
+                )
+                Event.objects.create(
+                    team=self.team, event="$pageview", distinct_id="1", timestamp="2012-01-16T10:00:00Z"
+                )
+                update_cache_item(*args)  # type: ignore
+
+            result = get_safe_cache(key)["result"][0]
+            self.assertEqual(result["days"][0], "2012-01-09")
+            self.assertEqual(result["days"][-1], "2012-01-16")
+            self.assertEqual(result["data"], [1.0, 0.0, 0.0, 0.0, 0.0, 1.0, 1.0, 1.0])
+            self.assertEqual(result["count"], 4.0)
+
+            with freeze_time("2012-01-17T13:00:00Z"):
+                update_cache_item(*args)  # type: ignore
+
+            result = get_safe_cache(key)["result"][0]
+            self.assertEqual(result["days"][0], "2012-01-10")
+            self.assertEqual(result["data"], [0.0, 0.0, 1.0, 0.0, 1.0, 1.0, 1.0, 0.0])
+
     def _test_refresh_dashboard_cache_types(
         self, filter: FilterType, cache_type: CacheType, patch_update_cache_item: MagicMock,
     ) -> None:
@@ -1,40 +1,63 @@
 import importlib
 import json
 import logging
+import math
 import os
-from typing import Any, Dict, List, Optional, Union
+import time
+from datetime import datetime, timedelta
+from typing import Any, Dict, List, Optional, Set, Tuple, Union, cast
 
+import statsd
 from celery import group
 from dateutil.relativedelta import relativedelta
+from django.conf import settings
 from django.core.cache import cache
 from django.db.models import Prefetch, Q
-from django.db.models.expressions import F, Subquery
+from django.db.models.expressions import F
 from django.utils import timezone
 
-from posthog.celery import update_cache_item_task
+from posthog.celery import update_cache_item_task, update_cache_items_batch_task
 from posthog.constants import (
     INSIGHT_FUNNELS,
     INSIGHT_PATHS,
     INSIGHT_RETENTION,
     INSIGHT_SESSIONS,
+    INSIGHT_STICKINESS,
     INSIGHT_TRENDS,
+    TRENDS_CUMULATIVE,
+    TRENDS_DISPLAY_BY_VALUE,
+    TRENDS_LIFECYCLE,
     TRENDS_STICKINESS,
+    QueryProfile,
 )
-from posthog.decorators import CacheType
+from posthog.decorators import CacheType, revalidation_lock_key
 from posthog.ee import is_ee_enabled
-from posthog.models import DashboardItem, Filter, Team
+from posthog.models import Dashboard, DashboardItem, Filter, Team
 from posthog.models.filters.path_filter import PathFilter
 from posthog.models.filters.retention_filter import RetentionFilter
 from posthog.models.filters.stickiness_filter import StickinessFilter
 from posthog.models.filters.utils import get_filter
 from posthog.settings import CACHED_RESULTS_TTL
 from posthog.types import FilterType
-from posthog.utils import generate_cache_key
+from posthog.utils import generate_cache_key, get_safe_cache, query_profile, tag_queries
 
 PARALLEL_DASHBOARD_ITEM_CACHE = int(os.environ.get("PARALLEL_DASHBOARD_ITEM_CACHE", 5))
+# least recently refreshed items considered on every run
+DASHBOARD_REFRESH_CANDIDATES = int(os.environ.get("DASHBOARD_REFRESH_CANDIDATES", 500))
+# number of running ClickHouse queries at which only one item is refreshed at a time
+DASHBOARD_REFRESH_BUSY_QUERIES = int(os.environ.get("DASHBOARD_REFRESH_BUSY_QUERIES", 20))
 
 logger = logging.getLogger(__name__)
 
+CACHE_TYPE_TO_INSIGHT = {
+    CacheType.TRENDS: INSIGHT_TRENDS,
+    CacheType.FUNNEL: INSIGHT_FUNNELS,
+    CacheType.SESSION: INSIGHT_SESSIONS,
+    CacheType.STICKINESS: INSIGHT_STICKINESS,
+    CacheType.RETENTION: INSIGHT_RETENTION,
+    CacheType.PATHS: INSIGHT_PATHS,
+}
+
 CH_TYPE_TO_IMPORT = {
     CacheType.TRENDS: ("ee.clickhouse.queries.trends.clickhouse_trends", "ClickhouseTrends"),
     CacheType.SESSION: ("ee.clickhouse.queries.sessions.clickhouse_sessions", "ClickhouseSessions"),
@@ -52,19 +75,117 @@ TYPE_TO_IMPORT = {
 }
 
 
-def update_cache_item(key: str, cache_type: CacheType, payload: dict) -> None:
+def update_cache_item(
+    key: str, cache_type: CacheType, payload: dict, profile: QueryProfile = QueryProfile.DASHBOARD_REFRESH
+) -> None:
 
     result: Optional[Union[List, Dict]] = None
     filter_dict = json.loads(payload["filter"])
     team_id = int(payload["team_id"])
     filter = get_filter(data=filter_dict, team=Team(pk=team_id))
-    if cache_type == CacheType.FUNNEL:
-        result = _calculate_funnel(filter, key, team_id)
-    else:
-        result = _calculate_by_filter(filter, key, team_id, cache_type)
+    now = timezone.now()
+    last_full_refresh = now
+    start_time = time.monotonic()
+    with query_profile(QueryProfile(profile)), tag_queries(
+        insight=CACHE_TYPE_TO_INSIGHT[cache_type], team_id=team_id, filter_hash=key
+    ):
+        if cache_type == CacheType.FUNNEL:
+            result = _calculate_funnel(filter, key, team_id)
+        else:
+            previous = _get_incremental_base(key, filter, cache_type)
+            if previous is not None:
+                result = _calculate_incrementally(cast(Filter, filter), key, team_id, previous["result"])
+                last_full_refresh = previous["last_full_refresh"] if result else now
+            if not result:
+                result = _calculate_by_filter(filter, key, team_id, cache_type)
 
     if result:
-        cache.set(key, {"result": result, "type": cache_type, "last_refresh": timezone.now()}, CACHED_RESULTS_TTL)
+        _set_cached_result(
+            key,
+            cache_type,
+            result,
+            now,
+            last_full_refresh,
+            time.monotonic() - start_time,
+            payload.get("ttl", CACHED_RESULTS_TTL),
+        )
+    cache.delete(revalidation_lock_key(key))
+
+
+def update_cache_items_batch(
+    items: List[Tuple[str, dict]], profile: QueryProfile = QueryProfile.DASHBOARD_REFRESH
+) -> None:
+    """
+    Like update_cache_item for several trends insights of one team, computed together with shared queries. Pass
+    items with the same get_refresh_batches batch, anything that can't be batched after all is refreshed on its own.
+    """
+    from ee.clickhouse.queries.trends.batch import batch_trends
+
+    team_id = int(items[0][1]["team_id"])
+    keys = [key for key, _ in items]
+    filters = [get_filter(data=json.loads(payload["filter"]), team=Team(pk=team_id)) for _, payload in items]
+    dashboard_items = DashboardItem.objects.filter(team_id=team_id, filters_hash__in=keys)
+    dashboard_items.update(refreshing=True)
+
+    now = timezone.now()
+    start_time = time.monotonic()
+    try:
+        with query_profile(QueryProfile(profile)), tag_queries(insight=INSIGHT_TRENDS, team_id=team_id, kind="batch"):
+            results = batch_trends(filters, Team(pk=team_id))
+    except Exception:
+        dashboard_items.update(refreshing=False)
+        raise
+    refresh_duration = (time.monotonic() - start_time) / len(items)
+
+    for (key, payload), result in zip(items, results):
+        if result is None:
+            update_cache_item(key, CacheType.TRENDS, payload, profile)
+            continue
+        _set_cached_result(key, CacheType.TRENDS, result, now, now, refresh_duration)
+        cache.delete(revalidation_lock_key(key))
+    dashboard_items.update(last_refresh=timezone.now(), refreshing=False)
+
+
+def get_refresh_batches(items: List[Tuple[str, dict]]) -> List[List[Tuple[str, dict]]]:
+    """
+    Groups (cache key, payload) pairs of insights that update_cache_items_batch can compute together, only groups of
+    more than one. Always empty without ClickHouse.
+    """
+    if not is_ee_enabled():
+        return []
+
+    from ee.clickhouse.queries.trends.batch import get_batch_key
+
+    batches: Dict[str, List[Tuple[str, dict]]] = {}
+    for key, payload in items:
+        team_id = int(payload["team_id"])
+        filter = get_filter(data=json.loads(payload["filter"]), team=Team(pk=team_id))
+        batch_key = get_batch_key(filter, team_id)
+        if batch_key is not None:
+            batches.setdefault(batch_key, []).append((key, payload))
+    return [batch for batch in batches.values() if len(batch) > 1]
+
+
+def _set_cached_result(
+    key: str,
+    cache_type: CacheType,
+    result: Any,
+    last_refresh: datetime,
+    last_full_refresh: datetime,
+    refresh_duration: float,
+    ttl: int = CACHED_RESULTS_TTL,
+) -> None:
+    cache.set(
+        key,
+        {
+            "result": result,
+            "type": cache_type,
+            "last_refresh": last_refresh,
+            "last_full_refresh": last_full_refresh,
+            "refresh_duration": refresh_duration,
+        },
+        ttl,
+    )
 
 
 def get_cache_type(filter: FilterType) -> CacheType:
@@ -87,33 +208,115 @@ def get_cache_type(filter: FilterType) -> CacheType:
 
 
 def update_cached_items() -> None:
-
-    tasks = []
+    """
+    Queues a refresh for the dashboard items most worth refreshing right now, see _get_refresh_priority. Items that
+    end up with the same cache key are refreshed once. Fewer items are queued while ClickHouse is busy.
+    """
+    now = timezone.now()
     items = (
         DashboardItem.objects.filter(
-            Q(Q(dashboard__is_shared=True) | Q(dashboard__last_accessed_at__gt=timezone.now() - relativedelta(days=7)))
+            Q(Q(dashboard__is_shared=True) | Q(dashboard__last_accessed_at__gt=now - relativedelta(days=7)))
         )
+        .filter(filters__isnull=False)
+        .exclude(filters={})
         .exclude(dashboard__deleted=True)
         .exclude(refreshing=True)
         .exclude(deleted=True)
-        .distinct("filters_hash")
+        .select_related("dashboard", "team")
+        .order_by(F("last_refresh").asc(nulls_first=True))[0:DASHBOARD_REFRESH_CANDIDATES]
     )
 
-    for item in DashboardItem.objects.filter(
-        pk__in=Subquery(items.filter(filters__isnull=False).exclude(filters={}).distinct("filters").values("pk"))
-    ).order_by(F("last_refresh").asc(nulls_first=True))[0:PARALLEL_DASHBOARD_ITEM_CACHE]:
+    candidates: Dict[str, Dict[str, Any]] = {}
+    for item in items:
         filter = get_filter(data=item.dashboard_filters(), team=item.team)
         cache_key = generate_cache_key("{}_{}".format(filter.toJSON(), item.team_id))
+        candidate = candidates.setdefault(cache_key, {"filter": filter, "team_id": item.team_id, "items": []})
+        candidate["items"].append(item)
 
-        cache_type = get_cache_type(filter)
-        payload = {"filter": filter.toJSON(), "team_id": item.team_id}
-        tasks.append(update_cache_item_task.s(cache_key, cache_type, payload))
+    cached = cache.get_many(list(candidates.keys()))
+    ranked = sorted(
+        candidates.items(),
+        key=lambda candidate: _get_refresh_priority(
+            candidate[1]["items"], (cached.get(candidate[0]) or {}).get("refresh_duration"), now
+        ),
+        reverse=True,
+    )
+
+    payloads = {
+        cache_key: {"filter": candidate["filter"].toJSON(), "team_id": candidate["team_id"]}
+        for cache_key, candidate in ranked
+    }
+    # An item that can share its queries with others brings those along, they're refreshed at no extra cost
+    batches = {key: batch for batch in get_refresh_batches(list(payloads.items())) for key, _ in batch}
+
+    tasks = []
+    queued: Set[str] = set()
+    timer = statsd.Timer("%s_posthog_cloud_dashboard_refresh" % (settings.STATSD_PREFIX,))
+    for cache_key, candidate in ranked[0 : _get_refresh_concurrency()]:
+        if cache_key in queued:
+            continue
+        if cache_key in batches:
+            tasks.append(update_cache_items_batch_task.s(batches[cache_key]))
+            queued.update(key for key, _ in batches[cache_key])
+        else:
+            tasks.append(update_cache_item_task.s(cache_key, get_cache_type(candidate["filter"]), payloads[cache_key]))
+            queued.add(cache_key)
+        last_refresh = min(_last_refresh(item, now) for item in candidate["items"])
+        timer.send("queue_lag", (now - last_refresh).total_seconds())
+
+    gauge = statsd.Gauge("%s_posthog_cloud_dashboard_refresh" % (settings.STATSD_PREFIX,))
+    gauge.send("queued_items", len(queued))
+    gauge.send("waiting_items", len(ranked) - len(queued))
 
     logger.info("Found {} items to refresh".format(len(tasks)))
     taskset = group(tasks)
     taskset.apply_async()
 
 
+def _get_refresh_priority(items: List[DashboardItem], refresh_duration: Optional[float], now: datetime) -> float:
+    """
+    Stale items on recently viewed dashboards go first, and cheap ones before expensive ones: the score is staleness
+    divided by hours since the dashboard was last viewed and by how long the last refresh took. Shared dashboards are
+    viewed without updating last_accessed_at, they count as viewed a day ago. An insight shown on several dashboards
+    counts once per dashboard.
+    """
+    staleness = max((now - _last_refresh(item, now)).total_seconds() for item in items)
+    hours_since_viewed = min(_hours_since_viewed(item.dashboard, now) for item in items)
+    return len(items) * staleness / (1 + hours_since_viewed) / max(refresh_duration or 0, 1)
+
+
+def _hours_since_viewed(dashboard: Optional[Dashboard], now: datetime) -> float:
+    hours = 7 * 24.0
+    if dashboard and dashboard.last_accessed_at:
+        hours = min(hours, (now - dashboard.last_accessed_at).total_seconds() / 3600)
+    if dashboard and dashboard.is_shared:
+        hours = min(hours, 24.0)
+    return hours
+
+
+def _last_refresh(item: DashboardItem, now: datetime) -> datetime:
+    # never refreshed items are as stale as it gets
+    return item.last_refresh or now - timedelta(days=7)
+
+
+def _get_refresh_concurrency() -> int:
+    """
+    Up to PARALLEL_DASHBOARD_ITEM_CACHE refreshes, fewer the more queries ClickHouse is already running and only one
+    once DASHBOARD_REFRESH_BUSY_QUERIES are.
+    """
+    if not is_ee_enabled():
+        return PARALLEL_DASHBOARD_ITEM_CACHE
+
+    from ee.clickhouse.client import sync_execute
+    from ee.clickhouse.sql.query_log import RUNNING_QUERIES_SQL
+
+    running = sync_execute(RUNNING_QUERIES_SQL)[0][0]
+    idle = max(DASHBOARD_REFRESH_BUSY_QUERIES - running, 0) / DASHBOARD_REFRESH_BUSY_QUERIES
+    concurrency = max(math.ceil(PARALLEL_DASHBOARD_ITEM_CACHE * idle), 1)
+    statsd.Gauge("%s_posthog_cloud_dashboard_refresh" % (settings.STATSD_PREFIX,)).send("concurrency", concurrency)
+    return concurrency
+
+
 def import_from(module: str, name: str) -> Any:
     return getattr(importlib.import_module(module), name)
 
@@ -122,15 +325,91 @@ def _calculate_by_filter(filter: FilterType, key: str, team_id: int, cache_type:
     dashboard_items = DashboardItem.objects.filter(team_id=team_id, filters_hash=key)
     dashboard_items.update(refreshing=True)
 
+    insight_class = _get_insight_class(cache_type)
+    result = insight_class().run(filter, Team(pk=team_id))
+    dashboard_items.update(last_refresh=timezone.now(), refreshing=False)
+    return result
+
+
+def _get_insight_class(cache_type: CacheType) -> Any:
     if is_ee_enabled():
         insight_class_path = CH_TYPE_TO_IMPORT[cache_type]
     else:
         insight_class_path = TYPE_TO_IMPORT[cache_type]
 
-    insight_class = import_from(insight_class_path[0], insight_class_path[1])
-    result = insight_class().run(filter, Team(pk=team_id))
+    return import_from(insight_class_path[0], insight_class_path[1])
+
+
+def _get_incremental_base(key: str, filter: FilterType, cache_type: CacheType) -> Optional[Dict[str, Any]]:
+    """
+    The cached result to refresh incrementally from, if there is a recent enough full one. Only plain trends qualify:
+    every bucket of those is computed on its own, so recomputing the trailing ones gives the same answer as
+    recomputing everything. Stickiness, lifecycle, cumulative graphs and single values all depend on the whole range.
+    """
+    if (
+        cache_type != CacheType.TRENDS
+        or not isinstance(filter, Filter)
+        or filter.display in TRENDS_DISPLAY_BY_VALUE
+        or filter.display == TRENDS_CUMULATIVE
+        or filter.shown_as == TRENDS_LIFECYCLE
+        or filter.breakdown  # the top breakdown values can change with every new event
+        or filter.compare
+        or filter.formula
+        or filter.sampling_factor  # the error margins of sampled results aren't merged
+        or filter._date_from == "all"
+    ):
+        return None
+
+    cached = get_safe_cache(key)
+    if not cached or not cached.get("result") or not cached.get("last_full_refresh"):
+        return None
+    if timezone.now() - cached["last_full_refresh"] > timedelta(hours=settings.INCREMENTAL_REFRESH_FULL_EVERY_HOURS):
+        return None
+    return cached
+
+
+def _calculate_incrementally(filter: Filter, key: str, team_id: int, previous_result: List) -> Optional[List]:
+    """
+    Recomputes the last INCREMENTAL_REFRESH_OVERLAP_BUCKETS buckets of `previous_result` and everything after, and
+    merges them in. Buckets that dropped out of a relative date range are removed. Returns None if the previous
+    result doesn't line up with the new one, the caller then recomputes everything.
+    """
+    days = previous_result[0].get("days")
+    overlap = max(settings.INCREMENTAL_REFRESH_OVERLAP_BUCKETS, 1)
+    if not days or len(days) <= overlap or any(series.get("days") != days for series in previous_result):
+        return None
+    if not filter.date_from:
+        return None
+
+    dashboard_items = DashboardItem.objects.filter(team_id=team_id, filters_hash=key)
+    dashboard_items.update(refreshing=True)
+
+    window_start = days[-overlap]
+    insight_class = _get_insight_class(CacheType.TRENDS)
+    with tag_queries(refresh="incremental"):
+        window_result = insight_class().run(filter.with_data({"date_from": window_start}), Team(pk=team_id))
     dashboard_items.update(last_refresh=timezone.now(), refreshing=False)
-    return result
+    if len(window_result) != len(previous_result):
+        return None
+
+    # days are formatted so that they sort as strings, with a time for hour and minute intervals
+    date_from = filter.date_from.strftime("%Y-%m-%d %H:%M:%S" if " " in window_start else "%Y-%m-%d")
+    # a bucket is still in range if the bucket after it starts after date_from
+    first_bucket = next((index for index, day in enumerate(days[1:]) if day > date_from), len(days) - 1)
+
+    merged = []
+    for previous_series, window_series in zip(previous_result, window_result):
+        if previous_series.get("label") != window_series.get("label"):
+            return None
+        start = next((index for index, day in enumerate(window_series["days"]) if day >= window_start), None)
+        if start is None:
+            return None
+        series = {**window_series}
+        for field in ("data", "labels", "days"):
+            series[field] = previous_series[field][first_bucket:-overlap] + window_series[field][start:]
+        series["count"] = float(sum(series["data"]))
+        merged.append(series)
+    return merged
 
 
 def _calculate_funnel(filter: Filter, key: str, team_id: int) -> List[Dict[str, Any]]:
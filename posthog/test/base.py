@@ -4,7 +4,10 @@ from django.test import TestCase
 from rest_framework.test import APITestCase as DRFTestCase
 
 from posthog.models import Organization, Team, User
+from posthog.models.action_matcher import ACTION_MATCHER_CACHE
+from posthog.models.feature_flag import ACTIVE_FEATURE_FLAGS_CACHE, FEATURE_FLAG_CACHE
 from posthog.models.organization import OrganizationMembership
+from posthog.models.team import TEAM_CACHE
 
 
 def _setup_test_data(klass):
@@ -103,6 +106,11 @@ class TestMixin:
             _setup_test_data(cls)
 
     def setUp(self):
+        # Teams are recreated (with the same API token and IDs reused) across tests, so cached data must not leak
+        TEAM_CACHE.clear()
+        FEATURE_FLAG_CACHE.clear()
+        ACTIVE_FEATURE_FLAGS_CACHE.clear()
+        ACTION_MATCHER_CACHE.clear()
         if not self.CLASS_DATA_LEVEL_SETUP:
             _setup_test_data(self)
 
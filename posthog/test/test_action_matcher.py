@@ -0,0 +1,109 @@
+from typing import List
+from unittest.mock import patch
+
+from django.db.models import Prefetch
+
+from posthog.models import Action, ActionStep, Element, Event, Person, Team
+from posthog.models.action_matcher import (
+    ACTION_MATCHER_CACHE,
+    CompiledAction,
+    EventForActions,
+    get_compiled_actions,
+    match_actions,
+)
+from posthog.test.base import BaseTest
+from posthog.test.test_event_model import filter_by_actions_factory
+
+
+def _get_events_for_action(action: Action) -> List[Event]:
+    action = Action.objects.prefetch_related(Prefetch("steps", queryset=ActionStep.objects.order_by("id"))).get(
+        pk=action.pk
+    )
+    compiled_action = CompiledAction(action)
+    events = []
+    for event in Event.objects.filter(team_id=action.team_id).order_by("-id"):
+        elements = (
+            list(Element.objects.filter(group__hash=event.elements_hash, group__team_id=event.team_id))
+            if event.elements_hash
+            else []
+        )
+        if compiled_action.matches(
+            EventForActions(event.team_id, event.event, event.distinct_id, event.properties, elements)
+        ):
+            events.append(event)
+    return events
+
+
+class TestActionMatcher(
+    filter_by_actions_factory(Event.objects.create, Person.objects.create, _get_events_for_action)  # type: ignore
+):
+    def test_in_memory(self):
+        action = Action.objects.create(team=self.team)
+        ActionStep.objects.create(
+            action=action, event="$pageview", properties=[{"key": "plan", "value": "paid", "operator": "icontains"}]
+        )
+        self.assertTrue(CompiledAction(action).in_memory)
+
+        ActionStep.objects.create(
+            action=action, event="$pageview", properties=[{"key": "plan", "value": "paid", "operator": "contains"}]
+        )
+        self.assertFalse(CompiledAction(action).in_memory)
+
+    def test_invalid_regex_matches_nothing(self):
+        action = Action.objects.create(team=self.team)
+        ActionStep.objects.create(action=action, event="$pageview", url="[", url_matching=ActionStep.REGEX)
+        event = EventForActions(self.team.pk, "$pageview", "whatever", {"$current_url": "["}, [])
+
+        self.assertFalse(CompiledAction(action).matches(event))
+
+    def test_compiled_actions_are_cached(self):
+        action = Action.objects.create(team=self.team, name="first")
+
+        with self.settings(ACTION_MATCHER_CACHE_TTL_SECONDS=60):
+            self.assertEqual([compiled.action.name for compiled in get_compiled_actions(self.team.pk)], ["first"])
+            with self.assertNumQueries(0):
+                self.assertEqual(len(get_compiled_actions(self.team.pk)), 1)
+
+            Action.objects.create(team=self.team, name="second")
+            self.assertEqual(len(get_compiled_actions(self.team.pk)), 2)
+
+            ActionStep.objects.create(action=action, event="$pageview")
+            self.assertEqual(len(get_compiled_actions(self.team.pk)[0].steps), 1)
+
+    @patch("posthog.models.action.get_client")
+    def test_cache_invalidated_when_redis_is_down(self, patch_get_client):
+        patch_get_client.return_value.publish.side_effect = ConnectionError
+
+        with self.settings(ACTION_MATCHER_CACHE_TTL_SECONDS=60):
+            get_compiled_actions(self.team.pk)
+            Action.objects.create(team=self.team, name="first")
+            self.assertEqual(len(get_compiled_actions(self.team.pk)), 1)
+
+    def test_cache_is_bounded(self):
+        other_team = Team.objects.create(organization=self.organization)
+
+        with self.settings(ACTION_MATCHER_CACHE_TTL_SECONDS=60, ACTION_MATCHER_CACHE_MAX_SIZE=1):
+            get_compiled_actions(self.team.pk)
+            get_compiled_actions(other_team.pk)
+
+        self.assertEqual(list(ACTION_MATCHER_CACHE), [other_team.pk])
+
+    def test_match_actions(self):
+        in_memory = Action.objects.create(team=self.team, name="in memory")
+        ActionStep.objects.create(action=in_memory, event="$pageview")
+        in_postgres = Action.objects.create(team=self.team, name="in postgres")
+        ActionStep.objects.create(
+            action=in_postgres, event="$pageview", properties=[{"key": "plan", "value": "pai", "operator": "contains"}]
+        )
+        free = Event.objects.create(team=self.team, event="$pageview", distinct_id="1", properties={"plan": "free"})
+        paid = Event.objects.create(team=self.team, event="$pageview", distinct_id="1", properties={"plan": "paid"})
+        events = [
+            EventForActions(self.team.pk, event.event, event.distinct_id, event.properties, [])
+            for event in [free, paid]
+        ]
+        compiled_actions = get_compiled_actions(self.team.pk)
+
+        self.assertEqual(
+            match_actions(compiled_actions, events, [free.pk, paid.pk]), [[in_memory], [in_memory, in_postgres]]
+        )
+        self.assertEqual(match_actions(compiled_actions, events), [[in_memory], [in_memory]])
@@ -1,4 +1,7 @@
-from posthog.models import Cohort, FeatureFlag, Person
+from unittest.mock import patch
+
+from posthog.models import Cohort, FeatureFlag, Person, Team
+from posthog.models.feature_flag import FEATURE_FLAG_CACHE, get_active_feature_flags, get_compiled_feature_flags
 from posthog.test.base import BaseTest
 
 
@@ -134,3 +137,100 @@ class TestFeatureFlag(BaseTest):
         return FeatureFlag.objects.create(
             team=self.team, name="Beta feature", key="beta-feature", created_by=self.user, **kwargs
         )
+
+
+class TestActiveFeatureFlags(BaseTest):
+    def test_person_fetched_once_for_all_flags(self):
+        Person.objects.create(
+            team=self.team, distinct_ids=["example_id"], properties={"email": "tim@posthog.com", "plan": 3},
+        )
+        self.create_feature_flag(
+            "email-flag", {"groups": [{"properties": [{"key": "email", "value": "tim@posthog.com"}]}]}
+        )
+        self.create_feature_flag(
+            "plan-flag", {"groups": [{"properties": [{"key": "plan", "value": 2, "operator": "gt"}]}]}
+        )
+        self.create_feature_flag("other-flag", {"groups": [{"properties": [{"key": "email", "value": "other"}]}]})
+        self.create_feature_flag("rollout-flag", {"groups": [{"rollout_percentage": 100}]})
+
+        with self.assertNumQueries(2):
+            flags = get_active_feature_flags(self.team, "example_id")
+        self.assertEqual(sorted(flags), ["email-flag", "plan-flag", "rollout-flag"])
+
+        # Flag definitions are cached
+        with self.assertNumQueries(1):
+            self.assertEqual(get_active_feature_flags(self.team, "another_id"), ["rollout-flag"])
+
+    def test_cache_invalidated_when_flag_changes(self):
+        feature_flag = self.create_feature_flag("flag", {"groups": [{"rollout_percentage": 100}]})
+        self.assertEqual(get_active_feature_flags(self.team, "example_id"), ["flag"])
+
+        feature_flag.active = False
+        feature_flag.save()
+        self.assertEqual(get_active_feature_flags(self.team, "example_id"), [])
+
+    @patch("posthog.models.feature_flag.get_client")
+    def test_cache_invalidated_when_redis_is_down(self, patch_get_client):
+        patch_get_client.return_value.publish.side_effect = ConnectionError
+        feature_flag = self.create_feature_flag("flag", {"groups": [{"rollout_percentage": 100}]})
+        self.assertEqual(get_active_feature_flags(self.team, "example_id"), ["flag"])
+
+        feature_flag.active = False
+        feature_flag.save()
+        self.assertEqual(get_active_feature_flags(self.team, "example_id"), [])
+
+    def test_cache_is_bounded(self):
+        other_team = Team.objects.create(organization=self.organization)
+
+        with self.settings(FEATURE_FLAG_CACHE_MAX_SIZE=1):
+            get_compiled_feature_flags(self.team.pk)
+            get_compiled_feature_flags(other_team.pk)
+
+        self.assertEqual(list(FEATURE_FLAG_CACHE), [other_team.pk])
+
+    def test_in_memory_matching_agrees_with_database(self):
+        Person.objects.create(
+            team=self.team,
+            distinct_ids=["person_1"],
+            properties={"email": "tim@posthog.com", "age": 30, "beta": True, "name": None, "tags": ["a"]},
+        )
+        Person.objects.create(
+            team=self.team, distinct_ids=["person_2"], properties={"email": "x@example.com", "age": "30"}
+        )
+        Person.objects.create(team=self.team, distinct_ids=["person_3"], properties={})
+        cohort = Cohort.objects.create(team=self.team, groups=[{"properties": {"age": 30}}], name="cohort1")
+        cohort.calculate_people(use_clickhouse=False)
+
+        properties = [
+            {"key": "email", "value": "tim@posthog.com"},
+            {"key": "email", "value": ["tim@posthog.com", "x@example.com"], "operator": "exact"},
+            {"key": "email", "value": "tim@posthog.com", "operator": "is_not"},
+            {"key": "email", "value": "POSTHOG", "operator": "icontains"},
+            {"key": "email", "value": "posthog", "operator": "not_icontains"},
+            {"key": "email", "value": "^tim", "operator": "regex"},
+            {"key": "email", "value": "^tim", "operator": "not_regex"},
+            {"key": "email", "value": "(", "operator": "regex"},
+            {"key": "age", "value": 30},
+            {"key": "age", "value": "30"},
+            {"key": "age", "value": 20, "operator": "gt"},
+            {"key": "age", "value": 40, "operator": "lt"},
+            {"key": "beta", "value": "true"},
+            {"key": "name", "value": "", "operator": "is_set"},
+            {"key": "name", "value": "", "operator": "is_not_set"},
+            {"key": "name", "value": "tim", "operator": "not_icontains"},
+            {"key": "tags", "value": "a", "operator": "icontains"},
+            {"key": "id", "value": cohort.pk, "type": "cohort"},
+        ]
+        for index, prop in enumerate(properties):
+            self.create_feature_flag(f"flag-{index}", {"groups": [{"properties": [{"type": "person", **prop}]}]})
+
+        for distinct_id in ["person_1", "person_2", "person_3", "no_person"]:
+            expected = [
+                feature_flag.key
+                for feature_flag in FeatureFlag.objects.filter(team=self.team).order_by("id")
+                if feature_flag.distinct_id_matches(distinct_id)
+            ]
+            self.assertEqual(sorted(get_active_feature_flags(self.team, distinct_id)), sorted(expected), distinct_id)
+
+    def create_feature_flag(self, key, filters):
+        return FeatureFlag.objects.create(team=self.team, name=key, key=key, created_by=self.user, filters=filters)
@@ -1,10 +1,12 @@
 import random
+import time
 from unittest import mock
 
 from django.conf import settings
 
 from posthog.demo import create_demo_team
 from posthog.models import EventDefinition, Organization, PluginConfig, PropertyDefinition, Team, User
+from posthog.models.team import TEAM_CACHE
 from posthog.plugins.test.mock import mocked_plugin_requests_get
 from posthog.tasks.calculate_event_property_usage import calculate_event_property_usage_for_team
 
@@ -47,6 +49,55 @@ class TestTeam(BaseTest):
             ],
         )
 
+    def test_get_team_from_token_is_cached(self):
+        with self.assertNumQueries(1):
+            team = Team.objects.get_team_from_token(self.team.api_token)
+        with self.assertNumQueries(0):
+            cached_team = Team.objects.get_team_from_token(self.team.api_token)
+        self.assertEqual(team, self.team)
+        self.assertIs(cached_team, team)
+
+        with self.assertNumQueries(1):
+            self.assertIsNone(Team.objects.get_team_from_token("not-a-token"))
+        self.assertNotIn("not-a-token", TEAM_CACHE)
+
+    def test_team_cache_invalidated_on_save_and_delete(self):
+        team = Team.objects.create(organization=self.organization, api_token="token_for_cache")
+        Team.objects.get_team_from_token("token_for_cache")
+        self.assertIn("token_for_cache", TEAM_CACHE)
+
+        team.api_token = "rotated_token_for_cache"
+        team.save()
+        self.assertNotIn("token_for_cache", TEAM_CACHE)
+        self.assertIsNone(Team.objects.get_team_from_token("token_for_cache"))
+        self.assertEqual(Team.objects.get_team_from_token("rotated_token_for_cache"), team)
+
+        team.delete()
+        self.assertNotIn("rotated_token_for_cache", TEAM_CACHE)
+
+    @mock.patch("posthog.models.team.get_client")
+    def test_team_cache_invalidated_when_redis_is_down(self, patch_get_client):
+        patch_get_client.return_value.publish.side_effect = ConnectionError
+        team = Team.objects.create(organization=self.organization, api_token="token_for_cache")
+        Team.objects.get_team_from_token("token_for_cache")
+
+        team.save()
+
+        self.assertNotIn("token_for_cache", TEAM_CACHE)
+
+    def test_team_cache_expires_and_is_bounded(self):
+        Team.objects.create(organization=self.organization, api_token="token_for_cache_1")
+        Team.objects.create(organization=self.organization, api_token="token_for_cache_2")
+
+        with self.settings(TEAM_CACHE_MAX_SIZE=1):
+            Team.objects.get_team_from_token("token_for_cache_1")
+            Team.objects.get_team_from_token("token_for_cache_2")
+        self.assertEqual(list(TEAM_CACHE.keys()), ["token_for_cache_2"])
+
+        with mock.patch("posthog.models.team.time.monotonic", return_value=time.monotonic() + 3600):
+            with self.assertNumQueries(1):
+                Team.objects.get_team_from_token("token_for_cache_2")
+
     # TODO: #4070 Temporary test until relevant attributes are migrated from `Team` model
     def test_updating_team_events_or_related_updates_event_definitions(self):
         random.seed(900)
@@ -1,7 +1,15 @@
+import gzip
+
 from django.test import TestCase
 from freezegun import freeze_time
 
-from posthog.utils import get_available_timezones_with_offsets, mask_email_address, relative_date_parse
+from posthog.exceptions import RequestParsingError
+from posthog.utils import (
+    decompress_gzip,
+    get_available_timezones_with_offsets,
+    mask_email_address,
+    relative_date_parse,
+)
 
 
 class TestGeneralUtils(TestCase):
@@ -21,6 +29,21 @@ class TestGeneralUtils(TestCase):
         timezones = get_available_timezones_with_offsets()
         self.assertEqual(timezones.get("Europe/Moscow"), 3)
 
+    def test_decompress_gzip(self):
+        data = b'[{"event": "$pageview"}]' * 10000
+        self.assertEqual(decompress_gzip(gzip.compress(data), max_size=len(data), chunk_size=1024), data)
+        # Concatenated gzip members are all decompressed
+        self.assertEqual(decompress_gzip(gzip.compress(b"a") + gzip.compress(b"b"), max_size=2), b"ab")
+
+    def test_decompress_gzip_rejects_oversized_payloads(self):
+        with self.assertRaises(RequestParsingError) as e:
+            decompress_gzip(gzip.compress(b"0" * 1024 * 1024), max_size=1024)
+        self.assertEqual(str(e.exception), "Failed to decompress data. Decompressed data exceeds 1024 bytes")
+
+    def test_decompress_gzip_rejects_non_latin1_strings(self):
+        with self.assertRaises(RequestParsingError):
+            decompress_gzip("💻", max_size=1024)
+
 
 class TestRelativeDateParse(TestCase):
     @freeze_time("2020-01-31T12:22:23")
@@ -1,7 +1,6 @@
 import base64
 import datetime
 import datetime as dt
-import gzip
 import hashlib
 import json
 import os
@@ -9,6 +8,9 @@ import re
 import subprocess
 import time
 import uuid
+import zlib
+from contextlib import contextmanager
+from contextvars import ContextVar
 from itertools import count
 from typing import (
     Any,
@@ -35,6 +37,7 @@ from django.template.loader import get_template
 from django.utils import timezone
 from sentry_sdk import push_scope
 
+from posthog.constants import QueryProfile
 from posthog.exceptions import RequestParsingError
 from posthog.redis import get_client
 from posthog.settings import print_warning
@@ -293,6 +296,43 @@ def cors_response(request, response):
     return response
 
 
+_query_profile: ContextVar[QueryProfile] = ContextVar("query_profile", default=QueryProfile.INTERACTIVE)
+
+
+@contextmanager
+def query_profile(profile: QueryProfile) -> Generator[None, None, None]:
+    """Queries run within this block (that don't ask for a profile themselves) are run with `profile`."""
+    token = _query_profile.set(profile)
+    try:
+        yield
+    finally:
+        _query_profile.reset(token)
+
+
+def get_query_profile() -> QueryProfile:
+    return _query_profile.get()
+
+
+_query_tags: ContextVar[Dict[str, Any]] = ContextVar("query_tags", default={})
+
+
+@contextmanager
+def tag_queries(**tags: Any) -> Generator[None, None, None]:
+    """
+    Tags queries run within this block (e.g. with the insight and team they're for), on top of the tags of any
+    surrounding block. Tags end up in metrics and in ClickHouse's query log.
+    """
+    token = _query_tags.set({**_query_tags.get(), **tags})
+    try:
+        yield
+    finally:
+        _query_tags.reset(token)
+
+
+def get_query_tags() -> Dict[str, Any]:
+    return _query_tags.get()
+
+
 def generate_cache_key(stringified: str) -> str:
     return "cache_" + hashlib.md5(stringified.encode("utf-8")).hexdigest()
 
@@ -318,6 +358,53 @@ def base64_decode(data):
     return data.decode("utf8", "surrogatepass").encode("utf-16", "surrogatepass")
 
 
+def decompress_gzip(data: Union[bytes, str], max_size: int, chunk_size: int = 64 * 1024) -> bytes:
+    """
+    Inflates gzip data incrementally, so that a payload inflating beyond `max_size` bytes (e.g. a decompression bomb)
+    is rejected without ever being held in memory in full.
+    """
+    if isinstance(data, str):
+        try:
+            data = data.encode("latin-1")
+        except UnicodeEncodeError as error:
+            # Binary bodies arrive as latin-1 str, anything outside of it can't be gzip data
+            raise RequestParsingError("Failed to decompress data. %s" % (str(error)))
+    output = bytearray()
+    remaining = memoryview(data)
+    try:
+        while remaining:
+            decompressor = zlib.decompressobj(16 + zlib.MAX_WBITS)
+            while not decompressor.eof:
+                if decompressor.unconsumed_tail:
+                    chunk = decompressor.unconsumed_tail
+                elif remaining:
+                    chunk, remaining = remaining[:chunk_size], remaining[chunk_size:]
+                else:
+                    output += decompressor.flush()
+                    break
+                output += decompressor.decompress(chunk, max_size + 1 - len(output))
+                if len(output) > max_size:
+                    raise RequestParsingError(
+                        "Failed to decompress data. Decompressed data exceeds %d bytes" % (max_size,)
+                    )
+            if not decompressor.eof:
+                raise RequestParsingError(
+                    "Failed to decompress data. Compressed file ended before the end-of-stream marker was reached"
+                )
+            # Like gzip.decompress, accept concatenated gzip members but ignore any trailing padding
+            unused_data = decompressor.unused_data + bytes(remaining)
+            remaining = memoryview(unused_data if unused_data[:2] == b"\x1f\x8b" else b"")
+    except zlib.error as error:
+        raise RequestParsingError("Failed to decompress data. %s" % (str(error)))
+    return bytes(output)
+
+
+def _looks_base64_encoded(data: Union[bytes, str]) -> bool:
+    """JSON payloads start with "{" or "[", characters that never appear in base64 - no need to try decoding those."""
+    head = data[:64].lstrip()
+    return head[:1] not in ("{", "[", b"{", b"[")
+
+
 # Used by non-DRF endpoins from capture.py and decide.py (/decide, /batch, /capture, etc)
 def load_data_from_request(request):
     data = None
@@ -342,10 +429,7 @@ def load_data_from_request(request):
     compression = compression.lower()
 
     if compression == "gzip" or compression == "gzip-js":
-        try:
-            data = gzip.decompress(data)
-        except (EOFError, OSError) as error:
-            raise RequestParsingError("Failed to decompress data. %s" % (str(error)))
+        data = decompress_gzip(data, settings.MAX_DECOMPRESSED_REQUEST_SIZE)
 
     if compression == "lz64":
         if not isinstance(data, str):
@@ -359,14 +443,15 @@ def load_data_from_request(request):
 
         data = data.encode("utf-16", "surrogatepass").decode("utf-16")
 
-    base64_decoded = None
-    try:
-        base64_decoded = base64_decode(data)
-    except Exception:
-        pass
+    if _looks_base64_encoded(data):
+        base64_decoded = None
+        try:
+            base64_decoded = base64_decode(data)
+        except Exception:
+            pass
 
-    if base64_decoded:
-        data = base64_decoded
+        if base64_decoded:
+            data = base64_decoded
 
     try:
         # parse_constant gets called in case of NaN, Infinity etc